@@ -0,0 +1,155 @@
+package nu.nerd.dvda;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ----------------------------------------------------------------------------
+/**
+ * Benchmarks of updating view distances, tracking ranges and activation
+ * ranges in a realistic multi-world spigot.yml.
+ *
+ * Compares the line-based edit done by {@link SpigotConfigWriter} with setting
+ * the values in a YamlConfiguration and re-serialising the whole tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConfigWriterBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Number of worlds in spigot.yml, all of which are adjusted.
+     */
+    @Param({ "3", "30" })
+    public int worlds;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Generate spigot.yml and the settings to set.
+     */
+    @Setup
+    public void setup() throws InvalidConfigurationException {
+        StringBuilder yaml = new StringBuilder();
+        yaml.append("# This is the main configuration file for Spigot.\n");
+        yaml.append("config-version: 10\n");
+        yaml.append("settings:\n");
+        yaml.append("  debug: false\n");
+        yaml.append("  save-user-cache-on-stop-only: false\n");
+        yaml.append("  bungeecord: false\n");
+        yaml.append("  timeout-time: 60\n");
+        yaml.append("  restart-on-crash: true\n");
+        yaml.append("  restart-script: ./start.sh\n");
+        yaml.append("  netty-threads: 4\n");
+        yaml.append("commands:\n");
+        yaml.append("  log: true\n");
+        yaml.append("  tab-complete: 0\n");
+        yaml.append("messages:\n");
+        yaml.append("  whitelist: You are not whitelisted on this server!\n");
+        yaml.append("  unknown-command: Unknown command. Type \"/help\" for help.\n");
+        yaml.append("world-settings:\n");
+        yaml.append("  default:\n");
+        appendWorldSettings(yaml);
+        for (int i = 0; i < worlds; ++i) {
+            yaml.append("  world").append(i).append(":\n");
+            appendWorldSettings(yaml);
+        }
+        yaml.append("stats:\n");
+        yaml.append("  disable-saving: false\n");
+        yaml.append("  forced-stats: {}\n");
+        _yaml = yaml.toString();
+
+        _settings = new LinkedHashMap<String, WorldSettings>();
+        for (int i = 0; i < worlds; ++i) {
+            _settings.put("world" + i, new WorldSettings(6, 4, 48, 32));
+        }
+        _config = new YamlConfiguration();
+        _config.loadFromString(_yaml);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Edit only the lines of the keys that change.
+     */
+    @Benchmark
+    public String patch() {
+        return SpigotConfigWriter.patch(_yaml, _settings);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the settings in the configuration tree and re-serialise it, as DVDA
+     * used to.
+     */
+    @Benchmark
+    public String reserialise() {
+        for (Map.Entry<String, WorldSettings> entry : _settings.entrySet()) {
+            for (Map.Entry<String, Integer> key : entry.getValue().getKeys().entrySet()) {
+                _config.set("world-settings." + entry.getKey() + "." + key.getKey(), key.getValue());
+            }
+        }
+        return _config.saveToString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append typical per-world settings.
+     *
+     * @param yaml the text to append to.
+     */
+    protected static void appendWorldSettings(StringBuilder yaml) {
+        yaml.append("    verbose: true\n");
+        yaml.append("    view-distance: 10\n");
+        yaml.append("    mob-spawn-range: 4\n");
+        yaml.append("    growth:\n");
+        yaml.append("      cactus-modifier: 100\n");
+        yaml.append("      cane-modifier: 100\n");
+        yaml.append("      melon-modifier: 100\n");
+        yaml.append("    entity-activation-range:\n");
+        yaml.append("      animals: 32\n");
+        yaml.append("      monsters: 32\n");
+        yaml.append("      misc: 16\n");
+        yaml.append("    entity-tracking-range:\n");
+        yaml.append("      players: 48\n");
+        yaml.append("      animals: 48\n");
+        yaml.append("      monsters: 48\n");
+        yaml.append("      misc: 32\n");
+        yaml.append("      other: 64\n");
+        yaml.append("    ticks-per:\n");
+        yaml.append("      hopper-transfer: 8\n");
+        yaml.append("      hopper-check: 8\n");
+        yaml.append("    max-tnt-per-tick: 100\n");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The contents of spigot.yml.
+     */
+    protected String _yaml;
+
+    /**
+     * The settings to set, by world name.
+     */
+    protected Map<String, WorldSettings> _settings;
+
+    /**
+     * spigot.yml, parsed.
+     */
+    protected YamlConfiguration _config;
+} // class ConfigWriterBenchmark
@@ -0,0 +1,213 @@
+package nu.nerd.dvda;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.MemoryConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// ----------------------------------------------------------------------------
+/**
+ * Benchmarks of schedule parsing, loading and evaluation.
+ *
+ * The schedule is interpreted in an explicit zone, {@link #ZONE}, whatever the
+ * host's time zone, so that the DST benchmarks straddle real offset
+ * transitions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScheduleBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * The time zone of the schedule, whose DST transitions fall on the dates
+     * used by the spring forward and fall back benchmarks.
+     */
+    public static final ZoneId ZONE = ZoneId.of("Europe/London");
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of entries in each day's schedule.
+     */
+    @Param({ "10", "1000", "10000" })
+    public int entriesPerDay;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Build the schedule configuration and load it.
+     */
+    @Setup
+    public void setup() {
+        _section = new MemoryConfiguration();
+        _section.set("zone", ZONE.getId());
+        _section.set("default", generate(entriesPerDay, 0));
+        for (int day = 0; day < 7; ++day) {
+            String key = DayOfWeek.of(day + 1).getDisplayName(TextStyle.SHORT, Locale.US);
+            _section.set(key, generate(entriesPerDay, day + 1));
+        }
+        _serialised = generate(1000, 0).toArray(new String[0]);
+        DaySchedule.loadAll(NULL_SINK, _section);
+
+        ZoneId zone = ZONE;
+        // A Sunday evening to Monday morning uptime.
+        _dayStart = toMillis(LocalDateTime.of(2026, 10, 11, 22, 15), zone);
+        _dayEnd = toMillis(LocalDateTime.of(2026, 10, 12, 3, 45), zone);
+        // Uptimes across the spring forward and fall back transitions.
+        _springStart = toMillis(LocalDateTime.of(2026, 3, 28, 23, 0), zone);
+        _springEnd = toMillis(LocalDateTime.of(2026, 3, 29, 4, 0), zone);
+        _fallStart = toMillis(LocalDateTime.of(2026, 10, 24, 23, 0), zone);
+        _fallEnd = toMillis(LocalDateTime.of(2026, 10, 25, 4, 0), zone);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse serialised changes.
+     */
+    @Benchmark
+    public void parseChange(Blackhole blackhole) {
+        for (String serialised : _serialised) {
+            blackhole.consume(ScheduleParser.parse(serialised));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load and compile all schedules.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ScheduleIndex loadAll() {
+        DaySchedule.loadAll(NULL_SINK, _section);
+        return DaySchedule.getIndex();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the change across a day boundary.
+     */
+    @Benchmark
+    public ViewDistanceChange getChangeAcrossMidnight() {
+        return DaySchedule.getIndex().findLast(_dayStart, _dayEnd);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the change across the start of daylight saving time.
+     */
+    @Benchmark
+    public ViewDistanceChange getChangeAcrossSpringForward() {
+        return DaySchedule.getIndex().findLast(_springStart, _springEnd);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the change across the end of daylight saving time.
+     */
+    @Benchmark
+    public ViewDistanceChange getChangeAcrossFallBack() {
+        return DaySchedule.getIndex().findLast(_fallStart, _fallEnd);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Generate a schedule of evenly spaced entries.
+     *
+     * @param count the number of entries.
+     * @param seed varies the view distances between schedules.
+     * @return the serialised entries.
+     */
+    protected static List<String> generate(int count, int seed) {
+        List<String> entries = new ArrayList<String>(count);
+        int secondsApart = Math.max(1, WeeklyTable.SECONDS_PER_DAY / count);
+        for (int i = 0; i < count; ++i) {
+            int second = i * secondsApart;
+            entries.add(String.format("%02d:%02d:%02d %d", second / 3600, second / 60 % 60, second % 60,
+                                      4 + (i + seed) % 9));
+        }
+        return entries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the specified local date and time in milliseconds since the epoch.
+     *
+     * @param time the local date and time.
+     * @param zone the time zone.
+     * @return milliseconds since the epoch.
+     */
+    protected static long toMillis(LocalDateTime time, ZoneId zone) {
+        return time.atZone(zone).toInstant().toEpochMilli();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A MessageSink that discards all messages.
+     */
+    protected static final MessageSink NULL_SINK = new MessageSink() {
+        @Override
+        public void accept(String msg) {
+        }
+    };
+
+    /**
+     * The schedule configuration section.
+     */
+    protected ConfigurationSection _section;
+
+    /**
+     * Serialised changes to parse.
+     */
+    protected String[] _serialised;
+
+    /**
+     * Start of an uptime that crosses midnight, in milliseconds since the
+     * epoch.
+     */
+    protected long _dayStart;
+
+    /**
+     * End of an uptime that crosses midnight.
+     */
+    protected long _dayEnd;
+
+    /**
+     * Start of an uptime that crosses the start of daylight saving time.
+     */
+    protected long _springStart;
+
+    /**
+     * End of an uptime that crosses the start of daylight saving time.
+     */
+    protected long _springEnd;
+
+    /**
+     * Start of an uptime that crosses the end of daylight saving time.
+     */
+    protected long _fallStart;
+
+    /**
+     * End of an uptime that crosses the end of daylight saving time.
+     */
+    protected long _fallEnd;
+} // class ScheduleBenchmark
@@ -0,0 +1,85 @@
+package nu.nerd.dvda;
+
+import java.time.LocalTime;
+
+// ----------------------------------------------------------------------------
+/**
+ * Chooses the view distance to apply at the next restart on the basis of the
+ * server's measured tick rate.
+ *
+ * The schedule is treated as a hint: when the server is neither lagging nor
+ * comfortably healthy, the scheduled view distance (or the current one, if no
+ * change fell due) is used. When the long window TPS falls below the lower
+ * threshold, the view distance is reduced by at least one step below the
+ * current setting. When both the short and long window TPS exceed the raise
+ * threshold, and the schedule is not asking for a reduction, the scheduled
+ * view distance is applied in full, but never exceeded; if no change fell due,
+ * the view distance is increased by one step. The gap between the two
+ * thresholds provides hysteresis. The result is always clamped to the
+ * configured limits. The scheduled change's chunk budget and other settings
+ * are kept.
+ */
+public class AdaptiveController {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param sampler the source of tick rate measurements.
+     */
+    public AdaptiveController(TickSampler sampler) {
+        _sampler = sampler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the TickSampler that supplies tick rate measurements.
+     *
+     * @return the TickSampler.
+     */
+    public TickSampler getSampler() {
+        return _sampler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decide the view distance to use after the next restart.
+     *
+     * @param currentViewDistance the view distance currently in effect, under
+     *        which the tick rate was measured.
+     * @param scheduled the change that fell due according to the schedule, or
+     *        null if there was none.
+     * @return the change to apply, or null if the view distance should not be
+     *         altered.
+     */
+    public ViewDistanceChange decide(int currentViewDistance, ViewDistanceChange scheduled) {
+        Configuration config = DVDA.CONFIG;
+        int hint = (scheduled != null) ? scheduled.getViewDistance() : currentViewDistance;
+        int viewDistance = hint;
+        if (_sampler.getSampleCount() != 0) {
+            if (_sampler.getLongTps() < config.ADAPTIVE_LOWER_TPS) {
+                viewDistance = Math.min(hint, currentViewDistance - config.ADAPTIVE_STEP);
+            } else if (_sampler.getLongTps() > config.ADAPTIVE_RAISE_TPS &&
+                       _sampler.getShortTps() > config.ADAPTIVE_RAISE_TPS &&
+                       hint >= currentViewDistance) {
+                // A scheduled view distance is an upper bound.
+                viewDistance = (scheduled != null) ? hint : currentViewDistance + config.ADAPTIVE_STEP;
+            }
+        }
+        viewDistance = Math.max(config.ADAPTIVE_MIN_VIEW_DISTANCE,
+                                Math.min(config.ADAPTIVE_MAX_VIEW_DISTANCE, viewDistance));
+
+        if (viewDistance == currentViewDistance && scheduled == null) {
+            return null;
+        }
+        if (scheduled != null) {
+            return scheduled.derive(scheduled.getTime(), viewDistance);
+        }
+        return new ViewDistanceChange(LocalTime.now(), viewDistance);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The source of tick rate measurements.
+     */
+    protected TickSampler _sampler;
+} // class AdaptiveController
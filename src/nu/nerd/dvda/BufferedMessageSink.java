@@ -0,0 +1,328 @@
+package nu.nerd.dvda;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+// ----------------------------------------------------------------------------
+/**
+ * A MessageSink that queues messages and writes them in batches from a
+ * background thread, so that callers emitting many lines, such as schedule
+ * listings and the configuration dump, never block on output.
+ *
+ * Each sink has a bounded queue. Accepting a message only offers it to the
+ * queue and, if no drain is pending, schedules one on a single shared drainer
+ * thread. The drainer removes up to {@link #BATCH_LINES} messages at a time
+ * and hands them to the sink's writer as one batch. When the queue is full,
+ * further messages are dropped and counted, and the count is reported at the
+ * end of the next batch.
+ *
+ * Batches for a Logger are written as a single multi-line log record. Batches
+ * for a CommandSender are delivered on the main thread to a pager, which
+ * sends players {@link #PAGE_LINES} lines at a time and holds the rest until
+ * they run /dvda more. The console is not paginated.
+ *
+ * Messages from one sink are written in the order they were accepted.
+ */
+public class BufferedMessageSink extends MessageSink {
+    // ------------------------------------------------------------------------
+    /**
+     * The maximum number of messages queued by one sink.
+     */
+    public static final int CAPACITY = 4096;
+
+    /**
+     * The maximum number of messages written in one batch.
+     */
+    public static final int BATCH_LINES = 256;
+
+    /**
+     * The number of lines sent to a player per page.
+     */
+    public static final int PAGE_LINES = 15;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a BufferedMessageSink that writes to the specified Logger.
+     *
+     * @param logger the Logger.
+     * @return the MessageSink.
+     */
+    public static BufferedMessageSink to(Logger logger) {
+        return new BufferedMessageSink(lines -> logger.info(String.join("\n", lines)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a BufferedMessageSink that writes to the specified CommandSender,
+     * replacing any output still waiting to be paged to the sender.
+     *
+     * This must be called on the main thread, but the returned sink can be
+     * used on any thread.
+     *
+     * @param sender the command sender.
+     * @return the MessageSink.
+     */
+    public static BufferedMessageSink to(CommandSender sender) {
+        Pager pager = new Pager(sender, (sender instanceof Player) ? PAGE_LINES : Integer.MAX_VALUE);
+        PAGERS.put(sender, pager);
+        return new BufferedMessageSink(lines -> {
+            if (DVDA.PLUGIN.isEnabled()) {
+                Bukkit.getScheduler().runTask(DVDA.PLUGIN, () -> pager.add(lines));
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Send the next page of output waiting for the specified sender.
+     *
+     * This must be called on the main thread.
+     *
+     * @param sender the command sender.
+     */
+    public static void more(CommandSender sender) {
+        Pager pager = PAGERS.get(sender);
+        if (pager == null || pager.isEmpty()) {
+            sender.sendMessage(ChatColor.GOLD + "There is no more output.");
+        } else {
+            pager.nextPage();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write all queued messages and stop the drainer thread.
+     *
+     * Output for CommandSenders that is not yet on the main thread is
+     * discarded. The drainer is restarted if a sink is used again.
+     *
+     * @param timeoutMillis the maximum time to wait for queued messages to be
+     *        written.
+     */
+    public static synchronized void shutdown(long timeoutMillis) {
+        if (_drainer != null) {
+            _drainer.shutdown();
+            try {
+                _drainer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            _drainer = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param writer writes a batch of messages; called on the drainer thread.
+     */
+    public BufferedMessageSink(Consumer<List<String>> writer) {
+        _writer = writer;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a message to be written.
+     *
+     * @see java.util.function.Consumer#accept(java.lang.Object)
+     */
+    @Override
+    public void accept(String msg) {
+        if (!_queue.offer(msg)) {
+            _dropped.incrementAndGet();
+        }
+        if (_scheduled.compareAndSet(false, true)) {
+            getDrainer().execute(this::drain);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write all queued messages in batches.
+     *
+     * This runs on the drainer thread.
+     */
+    protected void drain() {
+        // Clear the flag first, so that messages queued after the queue is
+        // emptied schedule another drain.
+        _scheduled.set(false);
+        List<String> lines = new ArrayList<String>();
+        while (_queue.drainTo(lines, BATCH_LINES) > 0 || _dropped.get() > 0) {
+            int dropped = _dropped.getAndSet(0);
+            if (dropped > 0) {
+                lines.add(ChatColor.GRAY + "(" + dropped + " lines of output dropped)");
+            }
+            try {
+                _writer.accept(lines);
+            } catch (Exception ex) {
+                // Output must never kill the shared drainer thread.
+            }
+            lines = new ArrayList<String>();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the shared drainer thread, starting it if necessary.
+     *
+     * @return the drainer.
+     */
+    protected static synchronized ExecutorService getDrainer() {
+        if (_drainer == null) {
+            _drainer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "DVDA message drainer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _drainer;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sends output to a CommandSender one page at a time.
+     *
+     * Only used on the main thread.
+     */
+    protected static final class Pager {
+        /**
+         * Constructor.
+         *
+         * @param sender the command sender.
+         * @param pageLines the number of lines per page.
+         */
+        Pager(CommandSender sender, int pageLines) {
+            this.sender = sender;
+            this.pageLines = pageLines;
+        }
+
+        /**
+         * Add a batch of lines and send as many as fit on the current page.
+         *
+         * @param lines the lines.
+         */
+        void add(List<String> lines) {
+            pending.addAll(lines);
+            while (pending.size() > CAPACITY) {
+                pending.removeLast();
+            }
+            send();
+        }
+
+        /**
+         * Return true if there are no lines waiting.
+         *
+         * @return true if there are no lines waiting.
+         */
+        boolean isEmpty() {
+            return pending.isEmpty();
+        }
+
+        /**
+         * Start a new page and send it.
+         */
+        void nextPage() {
+            sent = 0;
+            prompted = false;
+            send();
+        }
+
+        /**
+         * Send the lines that fit on the current page, as one message, and
+         * prompt for the next page if lines remain.
+         */
+        void send() {
+            int count = Math.min(pending.size(), pageLines - sent);
+            if (count > 0) {
+                String[] page = new String[count];
+                for (int i = 0; i < count; ++i) {
+                    page[i] = pending.removeFirst();
+                }
+                sender.sendMessage(page);
+                sent += count;
+            }
+            if (!pending.isEmpty() && !prompted) {
+                sender.sendMessage(ChatColor.GOLD + "" + pending.size() + " more lines. Use " +
+                                    ChatColor.YELLOW + "/dvda more" + ChatColor.GOLD + " to continue.");
+                prompted = true;
+            }
+        }
+
+        /**
+         * The command sender.
+         */
+        final CommandSender sender;
+
+        /**
+         * The number of lines per page.
+         */
+        final int pageLines;
+
+        /**
+         * Lines not yet sent.
+         */
+        final Deque<String> pending = new ArrayDeque<String>();
+
+        /**
+         * The number of lines sent on the current page.
+         */
+        int sent;
+
+        /**
+         * True if the sender has been told how to see the next page.
+         */
+        boolean prompted;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from command sender to the pager of its most recent output; only
+     * used on the main thread. Weak keys let the pagers of players who have
+     * left be collected.
+     */
+    protected static final Map<CommandSender, Pager> PAGERS = new WeakHashMap<CommandSender, Pager>();
+
+    /**
+     * The shared drainer thread, or null if not started.
+     */
+    protected static ExecutorService _drainer;
+
+    /**
+     * Writes a batch of messages.
+     */
+    protected final Consumer<List<String>> _writer;
+
+    /**
+     * Messages waiting to be written.
+     */
+    protected final BlockingQueue<String> _queue = new ArrayBlockingQueue<String>(CAPACITY);
+
+    /**
+     * The number of messages dropped since the last batch.
+     */
+    protected final AtomicInteger _dropped = new AtomicInteger();
+
+    /**
+     * True if a drain has been scheduled and has not yet started.
+     */
+    protected final AtomicBoolean _scheduled = new AtomicBoolean();
+} // class BufferedMessageSink
@@ -0,0 +1,239 @@
+package nu.nerd.dvda;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable index of every scheduled view distance change on a span of
+ * calendar dates, sorted by time.
+ *
+ * The schedule in effect on each date is resolved once, when the index is
+ * compiled: the highest priority {@link DateRule} covering the date, or else
+ * the schedule of that day of the week. Each change is converted to an
+ * absolute time in the configured zone, so daylight saving transitions are
+ * handled when compiling rather than on every lookup, and lookups are a binary
+ * search over a primitive array that does not allocate.
+ *
+ * Because the index spans a limited number of dates, it must be recompiled
+ * once the current time approaches the end of the span; see
+ * {@link #covers(long)}.
+ */
+public class CalendarIndex implements ScheduleIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Number of days before the current date included in the index, so that
+     * the change in force after a long uptime can still be found.
+     */
+    public static final int PAST_DAYS = 8;
+
+    /**
+     * Number of days after the current date included in the index.
+     */
+    public static final int FUTURE_DAYS = 62;
+
+    /**
+     * Number of days before the end of the index when it is considered stale
+     * and should be recompiled.
+     */
+    public static final int MARGIN_DAYS = 7;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile an index spanning the days around the specified date.
+     *
+     * @param today the current date in the specified zone.
+     * @param days the schedule of each day of the week, indexed by
+     *        {@link java.time.DayOfWeek#ordinal()}.
+     * @param rules date rules, in declaration order.
+     * @param zone the time zone used to interpret scheduled times.
+     * @return the index.
+     */
+    public static CalendarIndex compile(LocalDate today, DaySchedule[] days, List<DateRule> rules, ZoneId zone) {
+        LocalDate first = today.minusDays(PAST_DAYS);
+        LocalDate last = today.plusDays(FUTURE_DAYS);
+
+        DaySchedule[] schedules = new DaySchedule[PAST_DAYS + FUTURE_DAYS + 1];
+        int size = 0;
+        for (int i = 0; i < schedules.length; ++i) {
+            LocalDate date = first.plusDays(i);
+            DateRule rule = resolve(date, rules);
+            schedules[i] = (rule != null) ? rule.getSchedule() : days[date.getDayOfWeek().ordinal()];
+            size += schedules[i].size();
+        }
+
+        long[] seconds = new long[size];
+        ViewDistanceChange[] changes = new ViewDistanceChange[size];
+        int n = 0;
+        for (int i = 0; i < schedules.length; ++i) {
+            LocalDate date = first.plusDays(i);
+            for (Iterator<ViewDistanceChange> it = schedules[i].iterator(); it.hasNext();) {
+                ViewDistanceChange change = it.next();
+                long time = date.atTime(change.getTime()).atZone(zone).toEpochSecond();
+
+                // Times that fall in a daylight saving gap are moved forward,
+                // and may overtake later entries. Keep the arrays sorted.
+                int j = n;
+                while (j > 0 && seconds[j - 1] > time) {
+                    seconds[j] = seconds[j - 1];
+                    changes[j] = changes[j - 1];
+                    --j;
+                }
+                seconds[j] = time;
+                changes[j] = change;
+                ++n;
+            }
+        }
+
+        long validFrom = today.minusDays(1).atStartOfDay(zone).toEpochSecond() * 1000L;
+        long validTo = last.minusDays(MARGIN_DAYS).atStartOfDay(zone).toEpochSecond() * 1000L;
+        return new CalendarIndex(seconds, changes, validFrom, validTo);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the rule that applies on the specified date.
+     *
+     * The rule with the highest priority takes precedence, then the one that
+     * spans the fewest days, then the first declared.
+     *
+     * @param date the date.
+     * @param rules the rules, in declaration order.
+     * @return the rule, or null if no rule covers the date.
+     */
+    public static DateRule resolve(LocalDate date, List<DateRule> rules) {
+        DateRule best = null;
+        for (DateRule rule : rules) {
+            if (rule.covers(date) && rule.overrides(best)) {
+                best = rule;
+            }
+        }
+        return best;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of changes in the index.
+     *
+     * @return the number of changes in the index.
+     */
+    public int size() {
+        return _seconds.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.dvda.ScheduleIndex#findLast(long, long)
+     */
+    @Override
+    public ViewDistanceChange findLast(long startMillis, long endMillis) {
+        int index = lastIndex(Math.floorDiv(endMillis - 1, 1000L));
+        return (index >= 0 && _seconds[index] * 1000L > startMillis) ? _changes[index] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.dvda.ScheduleIndex#inForce(long)
+     */
+    @Override
+    public ViewDistanceChange inForce(long millis) {
+        int index = lastIndex(Math.floorDiv(millis, 1000L));
+        return (index >= 0) ? _changes[index] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.dvda.ScheduleIndex#nextTime(long)
+     */
+    @Override
+    public long nextTime(long millis) {
+        int index = lastIndex(Math.floorDiv(millis, 1000L)) + 1;
+        return (index < _seconds.length) ? _seconds[index] * 1000L : -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.dvda.ScheduleIndex#next(long)
+     */
+    @Override
+    public ViewDistanceChange next(long millis) {
+        int index = lastIndex(Math.floorDiv(millis, 1000L)) + 1;
+        return (index < _seconds.length) ? _changes[index] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the specified time falls within the part of the span
+     * where the index is valid, i.e. after the start of yesterday at the time
+     * of compilation and at least {@link #MARGIN_DAYS} before the end.
+     *
+     * @see nu.nerd.dvda.ScheduleIndex#covers(long)
+     */
+    @Override
+    public boolean covers(long millis) {
+        return millis >= _validFromMillis && millis < _validToMillis;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param seconds the time of each change in seconds since the epoch, in
+     *        ascending order.
+     * @param changes the corresponding changes.
+     * @param validFromMillis the start of the period when the index is valid.
+     * @param validToMillis the end of the period when the index is valid.
+     */
+    protected CalendarIndex(long[] seconds, ViewDistanceChange[] changes, long validFromMillis, long validToMillis) {
+        _seconds = seconds;
+        _changes = changes;
+        _validFromMillis = validFromMillis;
+        _validToMillis = validToMillis;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the last change at or before the specified time.
+     *
+     * @param seconds the time in seconds since the epoch.
+     * @return the index of the last change at or before that time, or -1 if
+     *         there is none.
+     */
+    protected int lastIndex(long seconds) {
+        int index = Arrays.binarySearch(_seconds, seconds);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // Step forward to the last of any equal keys.
+        while (index + 1 < _seconds.length && _seconds[index + 1] == seconds) {
+            ++index;
+        }
+        return index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Time of each change in seconds since the epoch, in ascending order.
+     */
+    protected final long[] _seconds;
+
+    /**
+     * Changes corresponding to _seconds.
+     */
+    protected final ViewDistanceChange[] _changes;
+
+    /**
+     * Start of the period when the index is valid, in milliseconds since the
+     * epoch.
+     */
+    protected final long _validFromMillis;
+
+    /**
+     * End of the period when the index is valid, in milliseconds since the
+     * epoch.
+     */
+    protected final long _validToMillis;
+} // class CalendarIndex
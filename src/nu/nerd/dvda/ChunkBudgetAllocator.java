@@ -0,0 +1,309 @@
+package nu.nerd.dvda;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * Divides a total loaded chunk budget between the adjusted worlds.
+ *
+ * Each {@link ScheduleProfile}'s budget is divided between the worlds of that
+ * profile only, and each profile's allocation is cached separately. Every
+ * player is given the same allowance of chunks, weighted by the cost of
+ * loading chunks in their world: a world where a larger fraction of chunk
+ * loads are newly generated chunks is more expensive per chunk. Each world's
+ * view distance is the largest radius whose square of chunks fits within a
+ * player's weighted allowance, clamped between the configured minimum and the
+ * view distance of the scheduled change. Worlds that are usually empty get the
+ * minimum.
+ *
+ * Player counts are tracked incrementally from join, quit and world change
+ * events and smoothed with an exponential moving average, so that a brief
+ * excursion to the nether doesn't swing the allocation. View distances are
+ * recomputed when the counts or the budget change, and at least every
+ * {@link #REALLOCATE_MILLIS}, since the averages keep moving after a change.
+ */
+public class ChunkBudgetAllocator implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Time constant of the player count moving average in milliseconds.
+     */
+    public static final double AVERAGE_MILLIS = 15 * 60 * 1000.0;
+
+    /**
+     * The maximum age of an allocation in milliseconds.
+     */
+    public static final long REALLOCATE_MILLIS = 60 * 1000;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param stats the source of chunk load statistics used to weight the
+     *        cost of each world.
+     */
+    public ChunkBudgetAllocator(ChunkLoadStats stats) {
+        _stats = stats;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the worlds between which the budget is divided, and count the
+     * players currently in them.
+     *
+     * @param worlds the worlds.
+     */
+    public void configure(List<World> worlds) {
+        long now = System.currentTimeMillis();
+        Map<World, WorldLoad> loads = new IdentityHashMap<World, WorldLoad>();
+        for (World world : worlds) {
+            WorldLoad load = new WorldLoad();
+            load.players = world.getPlayers().size();
+            load.averagePlayers = load.players;
+            load.updatedMillis = now;
+            loads.put(world, load);
+        }
+        _loads = loads;
+        _allocations = new IdentityHashMap<ScheduleProfile, Allocation>();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the view distance of the specified world after a change.
+     *
+     * @param world the world.
+     * @param change the change.
+     * @return the view distance allocated to the world if the change has a
+     *         chunk budget, or the change's view distance otherwise.
+     */
+    public int getViewDistance(World world, ViewDistanceChange change) {
+        if (!change.hasChunkBudget()) {
+            return change.getViewDistance();
+        }
+        WorldLoad load = _loads.get(world);
+        if (load == null) {
+            return change.getViewDistance();
+        }
+        ScheduleProfile profile = DVDA.CONFIG.getProfile(world);
+        Allocation allocation = _allocations.get(profile);
+        if (allocation == null || change != allocation.change ||
+            System.currentTimeMillis() - allocation.millis >= REALLOCATE_MILLIS) {
+            allocate(profile, change);
+        }
+        return load.viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the smoothed player count of the specified world.
+     *
+     * @param world the world.
+     * @return the smoothed player count, or 0 if the world is not adjusted.
+     */
+    public double getAveragePlayers(World world) {
+        WorldLoad load = _loads.get(world);
+        if (load == null) {
+            return 0;
+        }
+        load.update(System.currentTimeMillis());
+        return load.averagePlayers;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Divide the change's chunk budget between the worlds of a profile.
+     *
+     * @param profile the profile whose schedule contains the change.
+     * @param change the change, which must have a chunk budget.
+     */
+    protected void allocate(ScheduleProfile profile, ViewDistanceChange change) {
+        long now = System.currentTimeMillis();
+        int minViewDistance = DVDA.CONFIG.BUDGET_MIN_VIEW_DISTANCE;
+        int maxViewDistance = change.getViewDistance();
+
+        // The budget is shared equally between players. If there are none, it
+        // is shared equally between worlds.
+        double totalPlayers = 0;
+        double budget = change.getChunkBudget();
+        Map<World, WorldLoad> loads = new IdentityHashMap<World, WorldLoad>();
+        for (World world : DVDA.CONFIG.PROFILE_WORLDS.getOrDefault(profile, Collections.<World> emptyList())) {
+            WorldLoad load = _loads.get(world);
+            if (load != null) {
+                load.update(now);
+                totalPlayers += load.averagePlayers;
+                loads.put(world, load);
+            }
+        }
+
+        for (Map.Entry<World, WorldLoad> entry : loads.entrySet()) {
+            WorldLoad load = entry.getValue();
+            double allowance = (totalPlayers > 0) ? budget / totalPlayers : budget / loads.size();
+            double cost = getCost(entry.getKey());
+            int radius = (int) Math.floor((Math.sqrt(allowance / cost) - 1) / 2);
+            if (totalPlayers > 0 && load.averagePlayers < 0.5) {
+                // Worlds that are usually empty get the minimum.
+                radius = minViewDistance;
+            }
+            load.viewDistance = Math.max(minViewDistance, Math.min(maxViewDistance, radius));
+        }
+        _allocations.put(profile, new Allocation(change, now));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the relative cost of loading a chunk in the world.
+     *
+     * The cost is 1 plus the fraction of chunk loads in the last minute that
+     * were newly generated chunks, or 1 if no statistics are available.
+     *
+     * @param world the world.
+     * @return the relative cost, at least 1.
+     */
+    protected double getCost(World world) {
+        WorldStats stats = _stats.getStats(world);
+        if (stats == null) {
+            return 1;
+        }
+        long loads = stats.getLastMinute(WorldStats.CHUNK_LOADS);
+        return (loads == 0) ? 1 : 1 + (double) stats.getLastMinute(WorldStats.CHUNK_GENERATIONS) / loads;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add one to the player count of the player's world when they join.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        adjust(event.getPlayer().getWorld(), 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Subtract one from the player count of the player's world when they
+     * leave.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        adjust(event.getPlayer().getWorld(), -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move one player between world counts when a player changes world.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        Player player = event.getPlayer();
+        adjust(event.getFrom(), -1);
+        adjust(player.getWorld(), 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Adjust the player count of a world and invalidate the allocation of
+     * its profile.
+     *
+     * @param world the world.
+     * @param delta the change in player count.
+     */
+    protected void adjust(World world, int delta) {
+        WorldLoad load = _loads.get(world);
+        if (load != null) {
+            load.update(System.currentTimeMillis());
+            load.players = Math.max(0, load.players + delta);
+            _allocations.remove(DVDA.CONFIG.getProfile(world));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Player count and allocated view distance of one world.
+     */
+    protected static final class WorldLoad {
+        /**
+         * Bring the moving average up to date.
+         *
+         * @param now the current time in milliseconds since the epoch.
+         */
+        void update(long now) {
+            double elapsed = Math.max(0, now - updatedMillis);
+            averagePlayers += (players - averagePlayers) * (1 - Math.exp(-elapsed / AVERAGE_MILLIS));
+            updatedMillis = now;
+        }
+
+        /**
+         * Number of players in the world.
+         */
+        int players;
+
+        /**
+         * Exponential moving average of the number of players.
+         */
+        double averagePlayers;
+
+        /**
+         * The time when averagePlayers was last updated.
+         */
+        long updatedMillis;
+
+        /**
+         * The most recently allocated view distance.
+         */
+        int viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The change for which a profile's view distances were last allocated.
+     */
+    protected static final class Allocation {
+        /**
+         * Constructor.
+         *
+         * @param change the change.
+         * @param millis the time of the allocation.
+         */
+        Allocation(ViewDistanceChange change, long millis) {
+            this.change = change;
+            this.millis = millis;
+        }
+
+        /**
+         * The change for which view distances were allocated.
+         */
+        final ViewDistanceChange change;
+
+        /**
+         * The time of the allocation, in milliseconds since the epoch.
+         */
+        final long millis;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The source of chunk load statistics.
+     */
+    protected final ChunkLoadStats _stats;
+
+    /**
+     * Map from world to player count and allocation.
+     */
+    protected Map<World, WorldLoad> _loads = new IdentityHashMap<World, WorldLoad>();
+
+    /**
+     * Map from profile to its most recent allocation; profiles whose view
+     * distances need to be recomputed are absent.
+     */
+    protected Map<ScheduleProfile, Allocation> _allocations = new IdentityHashMap<ScheduleProfile, Allocation>();
+} // class ChunkBudgetAllocator
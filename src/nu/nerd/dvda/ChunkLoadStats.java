@@ -0,0 +1,302 @@
+package nu.nerd.dvda;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * Collects chunk load pressure metrics for the adjusted worlds.
+ *
+ * Event handlers look up the {@link WorldStats} of the event's world in an
+ * identity map and increment a counter, so they do not allocate. Once a
+ * second, this task snapshots the counters to compute rolling rates. The
+ * metrics are periodically flushed to a file in the data folder, in either
+ * Prometheus text format or as appended CSV rows.
+ */
+public class ChunkLoadStats implements Listener, Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Name of the Prometheus text format metrics file in the data folder.
+     */
+    public static final String PROMETHEUS_FILE = "stats.prom";
+
+    /**
+     * Name of the CSV metrics file in the data folder.
+     */
+    public static final String CSV_FILE = "stats.csv";
+
+    /**
+     * The header row written when the CSV metrics file is created.
+     */
+    public static final String CSV_HEADER = "time_millis,world,loaded_chunks,players," +
+                                            String.join(",", WorldStats.NAMES) + "\n";
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the worlds for which statistics are collected.
+     *
+     * Counts of worlds that are still configured are retained.
+     *
+     * @param worlds the worlds.
+     */
+    public void configure(List<World> worlds) {
+        Map<World, WorldStats> stats = new IdentityHashMap<World, WorldStats>();
+        for (World world : worlds) {
+            WorldStats existing = _stats.get(world);
+            stats.put(world, (existing != null) ? existing : new WorldStats(world));
+        }
+        _stats = stats;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the statistics of all configured worlds.
+     *
+     * @return the statistics of all configured worlds.
+     */
+    public Collection<WorldStats> getStats() {
+        return _stats.values();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the statistics of the specified world.
+     *
+     * @param world the world.
+     * @return the statistics, or null if not collected for that world.
+     */
+    public WorldStats getStats(World world) {
+        return _stats.get(world);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Snapshot all counters and, if the flush period has elapsed, flush the
+     * metrics file.
+     *
+     * This task should run once per second.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        for (WorldStats stats : _stats.values()) {
+            stats.snapshot();
+        }
+        if (++_secondsSinceFlush >= DVDA.CONFIG.STATS_FLUSH_SECONDS) {
+            _secondsSinceFlush = 0;
+            flush();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List the statistics of all configured worlds to the sink.
+     *
+     * @param sink the MessageSink to report to.
+     */
+    public void list(MessageSink sink) {
+        if (_stats.isEmpty()) {
+            sink.accept(ChatColor.RED + "No statistics are being collected.");
+            return;
+        }
+        for (WorldStats stats : _stats.values()) {
+            World world = stats.getWorld();
+            sink.accept(ChatColor.YELLOW + world.getName() + ChatColor.GOLD +
+                        ": loaded chunks: " + ChatColor.WHITE + world.getLoadedChunks().length + ChatColor.GOLD +
+                        ", players: " + ChatColor.WHITE + world.getPlayers().size());
+            StringBuilder msg = new StringBuilder();
+            msg.append(ChatColor.GOLD).append("  total (last minute): ");
+            for (int i = 0; i < WorldStats.COUNTERS; ++i) {
+                if (i != 0) {
+                    msg.append(ChatColor.GOLD).append(", ");
+                }
+                msg.append(WorldStats.NAMES[i]).append(": ");
+                msg.append(ChatColor.WHITE).append(stats.get(i));
+                msg.append(" (").append(stats.getLastMinute(i)).append(')');
+            }
+            sink.accept(msg.toString());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format the current metrics on the main thread and write them to the
+     * metrics file asynchronously.
+     */
+    protected void flush() {
+        if (_stats.isEmpty()) {
+            return;
+        }
+
+        boolean csv = DVDA.CONFIG.STATS_FORMAT.equalsIgnoreCase("csv");
+        StringBuilder text = new StringBuilder();
+        if (csv) {
+            long now = System.currentTimeMillis();
+            for (WorldStats stats : _stats.values()) {
+                World world = stats.getWorld();
+                text.append(now).append(',').append(world.getName());
+                text.append(',').append(world.getLoadedChunks().length);
+                text.append(',').append(world.getPlayers().size());
+                for (int i = 0; i < WorldStats.COUNTERS; ++i) {
+                    text.append(',').append(stats.get(i));
+                }
+                text.append('\n');
+            }
+        } else {
+            appendGauge(text, "loaded_chunks", "Number of loaded chunks.", w -> w.getWorld().getLoadedChunks().length);
+            appendGauge(text, "players", "Number of players in the world.", w -> w.getWorld().getPlayers().size());
+            for (int i = 0; i < WorldStats.COUNTERS; ++i) {
+                String name = WorldStats.NAMES[i];
+                text.append("# HELP dvda_").append(name).append("_total Total ").append(name.replace('_', ' ')).append(".\n");
+                text.append("# TYPE dvda_").append(name).append("_total counter\n");
+                for (WorldStats stats : _stats.values()) {
+                    text.append("dvda_").append(name).append("_total{world=\"").append(stats.getWorld().getName());
+                    text.append("\"} ").append(stats.get(i)).append('\n');
+                }
+            }
+        }
+
+        File dataFolder = DVDA.PLUGIN.getDataFolder();
+        String content = text.toString();
+        Bukkit.getScheduler().runTaskAsynchronously(DVDA.PLUGIN, () -> {
+            try {
+                dataFolder.mkdirs();
+                if (csv) {
+                    Path target = new File(dataFolder, CSV_FILE).toPath();
+                    String rows = (Files.exists(target) && Files.size(target) > 0) ? content : CSV_HEADER + content;
+                    Files.write(target, rows.getBytes(StandardCharsets.UTF_8),
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } else {
+                    Path target = new File(dataFolder, PROMETHEUS_FILE).toPath();
+                    Path temp = new File(dataFolder, PROMETHEUS_FILE + ".tmp").toPath();
+                    Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+                    try {
+                        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException ex) {
+                        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            } catch (IOException ex) {
+                DVDA.PLUGIN.getLogger().warning("Unable to write statistics: " + ex.getMessage());
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a per-world gauge in Prometheus text format.
+     *
+     * @param text the text to append to.
+     * @param name the metric name, without the "dvda_" prefix.
+     * @param help the metric description.
+     * @param value a function computing the value from a world's statistics.
+     */
+    protected void appendGauge(StringBuilder text, String name, String help,
+                               ToIntFunction<WorldStats> value) {
+        text.append("# HELP dvda_").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE dvda_").append(name).append(" gauge\n");
+        for (WorldStats stats : _stats.values()) {
+            text.append("dvda_").append(name).append("{world=\"").append(stats.getWorld().getName());
+            text.append("\"} ").append(value.applyAsInt(stats)).append('\n');
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count chunk loads and generations.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        WorldStats stats = _stats.get(event.getWorld());
+        if (stats != null) {
+            stats.increment(WorldStats.CHUNK_LOADS);
+            if (event.isNewChunk()) {
+                stats.increment(WorldStats.CHUNK_GENERATIONS);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count chunk unloads.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        WorldStats stats = _stats.get(event.getWorld());
+        if (stats != null) {
+            stats.increment(WorldStats.CHUNK_UNLOADS);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count player joins.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        WorldStats stats = _stats.get(event.getPlayer().getWorld());
+        if (stats != null) {
+            stats.increment(WorldStats.JOINS);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count player quits.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        WorldStats stats = _stats.get(event.getPlayer().getWorld());
+        if (stats != null) {
+            stats.increment(WorldStats.QUITS);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count player teleports, by the world teleported from.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        WorldStats stats = _stats.get(event.getFrom().getWorld());
+        if (stats != null) {
+            stats.increment(WorldStats.TELEPORTS);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from world to statistics, replaced rather than modified when the
+     * configuration changes.
+     */
+    protected volatile Map<World, WorldStats> _stats = new IdentityHashMap<World, WorldStats>();
+
+    /**
+     * Seconds since the metrics file was last flushed.
+     */
+    protected int _secondsSinceFlush;
+} // class ChunkLoadStats
@@ -0,0 +1,541 @@
+package nu.nerd.dvda;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+// ----------------------------------------------------------------------------
+/**
+ * Generates and loads the chunks that a scheduled view distance increase will
+ * bring into view, ahead of time, while the server is quiet.
+ *
+ * When the next scheduled change raises a world's view distance and falls due
+ * within the configured lead time, the ring of chunks between the current and
+ * the new view distance is visited around the world spawn and the places where
+ * players most often are. Each chunk that is not already loaded is loaded
+ * (generating it if necessary) and then queued for unloading, so that it is
+ * saved to disk and served from the OS page cache when players first arrive
+ * after the restart.
+ *
+ * Work is done only while few players are online and the tick rate is high,
+ * and is limited to a configured number of milliseconds per tick. Progress is
+ * saved in the data folder periodically and on shutdown, so that a job
+ * interrupted by a restart resumes where it left off.
+ *
+ * Frequently visited places are found by sampling player positions once a
+ * minute and counting visits to 8x8 chunk regions.
+ */
+public class ChunkPregenerator implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Base 2 logarithm of the side length, in chunks, of hotspot regions.
+     */
+    public static final int REGION_SHIFT = 3;
+
+    /**
+     * Maximum number of hotspot regions tracked per world.
+     */
+    public static final int MAX_REGIONS = 256;
+
+    /**
+     * Period in ticks between samples of player positions.
+     */
+    public static final int SAMPLE_TICKS = 60 * 20;
+
+    /**
+     * Period in ticks between checks of whether to pre-generate.
+     */
+    public static final int CHECK_TICKS = 20;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param sampler measures the tick rate.
+     */
+    public ChunkPregenerator(TickSampler sampler) {
+        _sampler = sampler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load saved progress and hotspots of the adjusted worlds from a file.
+     *
+     * @param file the progress file, which need not exist.
+     */
+    public void load(File file) {
+        _file = file;
+        _jobs.clear();
+        _regions.clear();
+        YamlConfiguration progress = YamlConfiguration.loadConfiguration(file);
+        for (World world : DVDA.CONFIG.WORLDS) {
+            ConfigurationSection section = progress.getConfigurationSection("jobs." + world.getName());
+            if (section != null) {
+                Job job = new Job(world, section.getLong("due"), section.getInt("inner"), section.getInt("outer"));
+                for (String centre : section.getStringList("centres")) {
+                    String[] parts = centre.split(",");
+                    if (parts.length == 2) {
+                        job.centres.add(new int[] { Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()) });
+                    }
+                }
+                job.centre = section.getInt("centre");
+                job.offset = section.getLong("offset");
+                job.loaded = section.getLong("loaded");
+                if (job.outer > job.inner && !job.centres.isEmpty()) {
+                    _jobs.put(world, job);
+                }
+            }
+
+            Map<Long, Integer> regions = new HashMap<Long, Integer>();
+            for (String region : progress.getStringList("hotspots." + world.getName())) {
+                String[] parts = region.split(",");
+                if (parts.length == 3) {
+                    regions.put(toKey(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())),
+                                Integer.parseInt(parts[2].trim()));
+                }
+            }
+            _regions.put(world, regions);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Save progress and hotspots to the file they were loaded from.
+     *
+     * @param async if true, the file is written asynchronously; the contents
+     *        are always formatted on the calling thread.
+     */
+    public void save(boolean async) {
+        if (_file == null) {
+            return;
+        }
+
+        YamlConfiguration progress = new YamlConfiguration();
+        for (Job job : _jobs.values()) {
+            String path = "jobs." + job.world.getName();
+            List<String> centres = new ArrayList<String>();
+            for (int[] centre : job.centres) {
+                centres.add(centre[0] + "," + centre[1]);
+            }
+            progress.set(path + ".due", job.due);
+            progress.set(path + ".inner", job.inner);
+            progress.set(path + ".outer", job.outer);
+            progress.set(path + ".centres", centres);
+            progress.set(path + ".centre", job.centre);
+            progress.set(path + ".offset", job.offset);
+            progress.set(path + ".loaded", job.loaded);
+        }
+        for (Map.Entry<World, Map<Long, Integer>> entry : _regions.entrySet()) {
+            List<String> regions = new ArrayList<String>();
+            for (Map.Entry<Long, Integer> region : entry.getValue().entrySet()) {
+                long key = region.getKey();
+                regions.add((int) (key >> 32) + "," + (int) key + "," + region.getValue());
+            }
+            progress.set("hotspots." + entry.getKey().getName(), regions);
+        }
+
+        Path target = _file.toPath();
+        String content = progress.saveToString();
+        Runnable write = () -> {
+            try {
+                Files.createDirectories(target.getParent());
+                Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+                Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException ex) {
+                DVDA.PLUGIN.getLogger().warning("Unable to save pre-generation progress: " + ex.getMessage());
+            }
+        };
+        if (async) {
+            Bukkit.getScheduler().runTaskAsynchronously(DVDA.PLUGIN, write);
+        } else {
+            write.run();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sample player positions, decide whether to pre-generate and, if so, load
+     * chunks until this tick's time budget is spent.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        ++_ticks;
+        if (_ticks % SAMPLE_TICKS == 0) {
+            sampleHotspots();
+        }
+        if (_ticks % (DVDA.CONFIG.PREGEN_SAVE_SECONDS * 20L) == 0) {
+            save(true);
+        }
+        if (_ticks % CHECK_TICKS == 0) {
+            _active = check();
+        }
+        if (!_active) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long budget = (long) (DVDA.CONFIG.PREGEN_TICK_BUDGET_MILLIS * 1000000L);
+        for (Job job : _jobs.values()) {
+            while (!job.isDone()) {
+                if (System.nanoTime() - start >= budget) {
+                    return;
+                }
+                job.step();
+            }
+        }
+        _active = false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List the progress of pre-generation in each world to the sink.
+     *
+     * @param sink the MessageSink to report to.
+     */
+    public void list(MessageSink sink) {
+        if (_jobs.isEmpty()) {
+            sink.accept(ChatColor.GOLD + "No chunks are scheduled for pre-generation.");
+            return;
+        }
+        for (Job job : _jobs.values()) {
+            sink.accept(ChatColor.YELLOW + job.world.getName() + ChatColor.GOLD +
+                        ": view distance " + ChatColor.WHITE + job.inner + " to " + job.outer + ChatColor.GOLD +
+                        " around " + ChatColor.WHITE + job.centres.size() + ChatColor.GOLD + " centres, " +
+                        ChatColor.WHITE + job.getVisited() + "/" + job.getTotal() + ChatColor.GOLD +
+                        " chunks visited, " + ChatColor.WHITE + job.loaded + ChatColor.GOLD + " loaded" +
+                        (job.isDone() ? " (done)" : (_active ? " (running)" : " (waiting)")));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decide whether chunks should be pre-generated now, creating jobs for an
+     * upcoming view distance increase if necessary.
+     *
+     * @return true if chunks should be pre-generated.
+     */
+    protected boolean check() {
+        Configuration config = DVDA.CONFIG;
+        long now = System.currentTimeMillis();
+        boolean pending = false;
+        for (Map.Entry<ScheduleProfile, List<World>> entry : config.PROFILE_WORLDS.entrySet()) {
+            ScheduleIndex index = entry.getKey().getIndex();
+            ViewDistanceChange next = index.next(now);
+            ViewDistanceChange current = index.inForce(now);
+            long nextTime = index.nextTime(now);
+            if (next == null || current == null || nextTime - now > config.PREGEN_LEAD_MINUTES * 60000L) {
+                continue;
+            }
+
+            for (World world : entry.getValue()) {
+                int inner = DVDA.PLUGIN.getTargetViewDistance(world, current);
+                int outer = DVDA.PLUGIN.getTargetViewDistance(world, next);
+                Job job = _jobs.get(world);
+                if (outer > inner &&
+                    (job == null || job.due != nextTime || job.inner != inner || job.outer != outer)) {
+                    job = new Job(world, nextTime, inner, outer);
+                    job.centres.addAll(findCentres(world, outer));
+                    _jobs.put(world, job);
+                }
+                pending |= (job != null && !job.isDone());
+            }
+        }
+
+        return pending &&
+               Bukkit.getOnlinePlayers().size() <= config.PREGEN_MAX_PLAYERS &&
+               _sampler.isWarmedUp() && _sampler.getLongTps() >= config.PREGEN_MIN_TPS;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the chunk coordinates of the centres of pre-generation in a
+     * world: the spawn and the most visited hotspot regions.
+     *
+     * Hotspots within the radius of an earlier centre are skipped, since their
+     * ring would largely overlap.
+     *
+     * @param world the world.
+     * @param radius the outer radius of the ring in chunks.
+     * @return a list of [x, z] chunk coordinates.
+     */
+    protected List<int[]> findCentres(World world, int radius) {
+        List<int[]> centres = new ArrayList<int[]>();
+        Location spawn = world.getSpawnLocation();
+        centres.add(new int[] { spawn.getBlockX() >> 4, spawn.getBlockZ() >> 4 });
+
+        List<Map.Entry<Long, Integer>> regions = new ArrayList<Map.Entry<Long, Integer>>(
+            _regions.getOrDefault(world, new HashMap<Long, Integer>()).entrySet());
+        regions.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        int half = 1 << (REGION_SHIFT - 1);
+        for (Map.Entry<Long, Integer> region : regions) {
+            if (centres.size() > DVDA.CONFIG.PREGEN_HOTSPOTS) {
+                break;
+            }
+            long key = region.getKey();
+            int x = ((int) (key >> 32) << REGION_SHIFT) + half;
+            int z = ((int) key << REGION_SHIFT) + half;
+            boolean overlaps = false;
+            for (int[] centre : centres) {
+                overlaps |= Math.max(Math.abs(centre[0] - x), Math.abs(centre[1] - z)) <= radius;
+            }
+            if (!overlaps) {
+                centres.add(new int[] { x, z });
+            }
+        }
+        return centres;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count the regions currently occupied by players in the adjusted worlds.
+     *
+     * When a world's region map is full, the least visited half is discarded.
+     */
+    protected void sampleHotspots() {
+        for (World world : DVDA.CONFIG.WORLDS) {
+            Map<Long, Integer> regions = _regions.get(world);
+            if (regions == null) {
+                regions = new HashMap<Long, Integer>();
+                _regions.put(world, regions);
+            }
+            for (Player player : world.getPlayers()) {
+                Location location = player.getLocation();
+                long key = toKey(location.getBlockX() >> (4 + REGION_SHIFT), location.getBlockZ() >> (4 + REGION_SHIFT));
+                regions.merge(key, 1, Integer::sum);
+            }
+            if (regions.size() > MAX_REGIONS) {
+                // Keep the most visited half. Ties at the cut are broken
+                // arbitrarily, so the map shrinks even if most counts are 1.
+                List<Map.Entry<Long, Integer>> entries = new ArrayList<Map.Entry<Long, Integer>>(regions.entrySet());
+                entries.sort(Map.Entry.<Long, Integer> comparingByValue().reversed());
+                List<Long> evicted = new ArrayList<Long>();
+                for (Map.Entry<Long, Integer> entry : entries.subList(MAX_REGIONS / 2, entries.size())) {
+                    evicted.add(entry.getKey());
+                }
+                regions.keySet().removeAll(evicted);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Pack region coordinates into a map key.
+     *
+     * @param x the region X coordinate.
+     * @param z the region Z coordinate.
+     * @return the key.
+     */
+    protected static long toKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The pre-generation of the rings around all centres in one world.
+     *
+     * Chunks are visited in a fixed order, so that progress can be saved as a
+     * centre index and an offset into that centre's ring: for each radius r
+     * from inner + 1 to outer, the 8r chunks on the perimeter of the square of
+     * that radius, starting from the -X, -Z corner.
+     */
+    protected static final class Job {
+        /**
+         * Constructor.
+         *
+         * @param world the world.
+         * @param due the time of the upcoming change.
+         * @param inner the current view distance.
+         * @param outer the upcoming view distance.
+         */
+        Job(World world, long due, int inner, int outer) {
+            this.world = world;
+            this.due = due;
+            this.inner = inner;
+            this.outer = outer;
+        }
+
+        /**
+         * Return the number of chunks in the ring around each centre.
+         *
+         * @return the number of chunks in the ring.
+         */
+        long getRingSize() {
+            long outerSide = 2L * outer + 1;
+            long innerSide = 2L * inner + 1;
+            return outerSide * outerSide - innerSide * innerSide;
+        }
+
+        /**
+         * Return the total number of chunks to visit.
+         *
+         * @return the total number of chunks to visit.
+         */
+        long getTotal() {
+            return getRingSize() * centres.size();
+        }
+
+        /**
+         * Return the number of chunks visited so far.
+         *
+         * @return the number of chunks visited so far.
+         */
+        long getVisited() {
+            return Math.min(getTotal(), getRingSize() * centre + offset);
+        }
+
+        /**
+         * Return true if all chunks have been visited.
+         *
+         * @return true if all chunks have been visited.
+         */
+        boolean isDone() {
+            return centre >= centres.size();
+        }
+
+        /**
+         * Visit the next chunk, loading it if it is not already loaded.
+         */
+        void step() {
+            int[] c = centres.get(centre);
+            // Find the radius of the square whose perimeter contains offset.
+            int r = inner + 1;
+            long k = offset;
+            while (k >= 8L * r) {
+                k -= 8L * r;
+                ++r;
+            }
+            int side = (int) (k / (2 * r));
+            int i = (int) (k % (2 * r));
+            int x;
+            int z;
+            switch (side) {
+            case 0:
+                x = -r + i;
+                z = -r;
+                break;
+            case 1:
+                x = r;
+                z = -r + i;
+                break;
+            case 2:
+                x = r - i;
+                z = r;
+                break;
+            default:
+                x = -r;
+                z = r - i;
+                break;
+            }
+            x += c[0];
+            z += c[1];
+
+            if (!world.isChunkLoaded(x, z)) {
+                world.loadChunk(x, z, true);
+                world.unloadChunkRequest(x, z);
+                ++loaded;
+            }
+
+            if (++offset >= getRingSize()) {
+                offset = 0;
+                ++centre;
+            }
+        }
+
+        /**
+         * The world.
+         */
+        final World world;
+
+        /**
+         * The time of the upcoming change in milliseconds since the epoch.
+         */
+        final long due;
+
+        /**
+         * The current view distance; the radius of the inside of the ring.
+         */
+        final int inner;
+
+        /**
+         * The upcoming view distance; the radius of the outside of the ring.
+         */
+        final int outer;
+
+        /**
+         * Chunk coordinates of the centres of the rings.
+         */
+        final List<int[]> centres = new ArrayList<int[]>();
+
+        /**
+         * Index of the current centre.
+         */
+        int centre;
+
+        /**
+         * Offset of the next chunk in the current centre's ring.
+         */
+        long offset;
+
+        /**
+         * Number of chunks loaded so far.
+         */
+        long loaded;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Measures the tick rate.
+     */
+    protected final TickSampler _sampler;
+
+    /**
+     * The progress file, or null if not loaded.
+     */
+    protected File _file;
+
+    /**
+     * Pre-generation jobs, by world.
+     */
+    protected Map<World, Job> _jobs = new LinkedHashMap<World, Job>();
+
+    /**
+     * Visit counts of hotspot regions, keyed by packed region coordinates, by
+     * world.
+     */
+    protected Map<World, Map<Long, Integer>> _regions = new IdentityHashMap<World, Map<Long, Integer>>();
+
+    /**
+     * Number of ticks this task has run.
+     */
+    protected long _ticks;
+
+    /**
+     * True if chunks should be pre-generated this tick.
+     */
+    protected boolean _active;
+} // class ChunkPregenerator
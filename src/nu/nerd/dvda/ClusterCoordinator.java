@@ -0,0 +1,529 @@
+package nu.nerd.dvda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+
+// ----------------------------------------------------------------------------
+/**
+ * Coordinates the view distances of several servers on the same host, so that
+ * together they stay within a host-level budget of loaded chunks.
+ *
+ * Each server (node) publishes its load in a small fixed size file,
+ * &lt;node-id&gt;.node, in a shared directory. The file is memory-mapped, so
+ * publishing is a handful of writes to the mapped buffer, and the files of
+ * other nodes are mapped read-only and re-read in place. A sequence number is
+ * incremented before and after each update (so it is odd while an update is
+ * in progress), and readers retry until they see the same even number on both
+ * sides of their reads.
+ *
+ * Every node applies the same deterministic {@link #allocate(List, long, int)}
+ * policy to the same set of records, so they agree on the allocation without
+ * further communication. The resulting view distance of this node is a ceiling
+ * on the view distance of all of its adjusted worlds.
+ */
+public class ClusterCoordinator implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * The ceiling when coordination is not enabled or has not yet run.
+     */
+    public static final int NONE = Integer.MAX_VALUE;
+
+    /**
+     * File name suffix of node records.
+     */
+    public static final String SUFFIX = ".node";
+
+    /**
+     * Magic number identifying the record format ("DVDC").
+     */
+    protected static final int MAGIC = 0x44564443;
+
+    /**
+     * Record format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Offset of the sequence number (long), which is odd during an update.
+     */
+    protected static final int SEQUENCE_OFFSET = 8;
+
+    /**
+     * Offset of the time of the last update (long), in milliseconds since the
+     * epoch.
+     */
+    protected static final int UPDATED_OFFSET = 16;
+
+    /**
+     * Offset of the player count (int).
+     */
+    protected static final int PLAYERS_OFFSET = 24;
+
+    /**
+     * Offset of the view distance requested by the schedule (int).
+     */
+    protected static final int REQUESTED_OFFSET = 28;
+
+    /**
+     * Offset of the view distance allocated to the node (int).
+     */
+    protected static final int ALLOCATED_OFFSET = 32;
+
+    /**
+     * Offset of the number of loaded chunks (int).
+     */
+    protected static final int CHUNKS_OFFSET = 36;
+
+    /**
+     * Offset of the milliseconds per tick (float).
+     */
+    protected static final int MSPT_OFFSET = 40;
+
+    /**
+     * Total record size in bytes.
+     */
+    protected static final int RECORD_SIZE = 48;
+
+    /**
+     * Maximum number of attempts to read a consistent record.
+     */
+    protected static final int READ_ATTEMPTS = 4;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compute the view distance of every node so that the estimated total
+     * number of loaded chunks fits within the budget.
+     *
+     * Each node starts at its requested view distance. While the total is over
+     * budget, the node with the highest view distance is reduced by one chunk;
+     * ties are broken in favour of reducing the node with more players, then
+     * the node whose id sorts last. No node is reduced below the minimum, so
+     * the budget may still be exceeded if it is too small.
+     *
+     * @param nodes the nodes, which are sorted by id.
+     * @param budget the total budget of loaded chunks.
+     * @param minViewDistance the minimum view distance of any node.
+     * @return a map from node id to view distance, in id order.
+     */
+    public static Map<String, Integer> allocate(List<Node> nodes, long budget, int minViewDistance) {
+        Collections.sort(nodes, (a, b) -> a.id.compareTo(b.id));
+        int[] viewDistances = new int[nodes.size()];
+        long total = 0;
+        for (int i = 0; i < viewDistances.length; ++i) {
+            viewDistances[i] = nodes.get(i).requested;
+            total += nodes.get(i).estimateChunks(viewDistances[i]);
+        }
+
+        while (total > budget) {
+            int victim = -1;
+            for (int i = 0; i < viewDistances.length; ++i) {
+                if (viewDistances[i] <= minViewDistance) {
+                    continue;
+                }
+                if (victim < 0 || viewDistances[i] > viewDistances[victim] ||
+                    (viewDistances[i] == viewDistances[victim] && nodes.get(i).players >= nodes.get(victim).players)) {
+                    victim = i;
+                }
+            }
+            if (victim < 0) {
+                break;
+            }
+            Node node = nodes.get(victim);
+            total -= node.estimateChunks(viewDistances[victim]);
+            --viewDistances[victim];
+            total += node.estimateChunks(viewDistances[victim]);
+        }
+
+        Map<String, Integer> allocation = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < viewDistances.length; ++i) {
+            allocation.put(nodes.get(i).id, viewDistances[i]);
+        }
+        return allocation;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param sampler the source of tick rate measurements.
+     */
+    public ClusterCoordinator(TickSampler sampler) {
+        _sampler = sampler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start publishing this node's record in the shared directory.
+     *
+     * @param directory the shared directory.
+     * @param nodeId the id of this node, which must be unique in the cluster.
+     * @throws IOException if the record could not be created or mapped.
+     */
+    public synchronized void start(File directory, String nodeId) throws IOException {
+        stop();
+        directory.mkdirs();
+        _directory = directory;
+        _nodeId = nodeId;
+        _file = new RandomAccessFile(new File(directory, nodeId + SUFFIX), "rw");
+        _file.setLength(RECORD_SIZE);
+        _record = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, RECORD_SIZE);
+        _record.putInt(0, MAGIC);
+        _record.putInt(4, VERSION);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop publishing, unmap all records and remove the ceiling.
+     */
+    public synchronized void stop() {
+        _ceiling = NONE;
+        _nodes = Collections.<Node> emptyList();
+        _peers.clear();
+        if (_record != null) {
+            // Mark the record stale, so that other nodes ignore it at once.
+            _record.putLong(UPDATED_OFFSET, 0);
+            _record.force();
+            _record = null;
+        }
+        if (_file != null) {
+            try {
+                _file.close();
+            } catch (IOException ex) {
+            }
+            _file = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ceiling on the view distance of this node.
+     *
+     * @return the ceiling, or {@link #NONE} if not coordinating.
+     */
+    public int getCeiling() {
+        return _ceiling;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Measure the load of this node and exchange records with the other nodes
+     * off the main thread.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        int players = 0;
+        int chunks = 0;
+        for (World world : DVDA.CONFIG.WORLDS) {
+            players += world.getPlayers().size();
+            chunks += world.getLoadedChunks().length;
+        }
+        // This server requests the highest view distance that any of its
+        // schedule profiles has in force.
+        long now = System.currentTimeMillis();
+        int requested = DVDA.CONFIG.PROFILE_WORLDS.isEmpty() ? Bukkit.getServer().getViewDistance() : 0;
+        for (ScheduleProfile profile : DVDA.CONFIG.PROFILE_WORLDS.keySet()) {
+            ViewDistanceChange change = profile.getIndex().inForce(now);
+            requested = Math.max(requested, (change != null) ? change.getViewDistance()
+                                                             : Bukkit.getServer().getViewDistance());
+        }
+        float mspt = (float) _sampler.getShortMspt();
+
+        int finalPlayers = players;
+        int finalRequested = requested;
+        int finalChunks = chunks;
+        Bukkit.getScheduler().runTaskAsynchronously(DVDA.PLUGIN, () -> {
+            exchange(finalPlayers, finalRequested, finalChunks, mspt);
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List the nodes of the cluster and their allocated view distances.
+     *
+     * @param sink the MessageSink to report to.
+     */
+    public void list(MessageSink sink) {
+        List<Node> nodes = _nodes;
+        if (nodes.isEmpty()) {
+            sink.accept(ChatColor.GOLD + "No cluster nodes are known.");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        sink.accept(ChatColor.GOLD + "Cluster budget: " + ChatColor.WHITE + DVDA.CONFIG.CLUSTER_CHUNK_BUDGET +
+                    ChatColor.GOLD + " chunks.");
+        for (Node node : nodes) {
+            sink.accept(String.format("%s%s%s: %s%d%s players, view distance %s%d%s of %s%d%s, " +
+                                      "%s%d%s chunks, %s%.1f%s MSPT, updated %ds ago",
+                                      ChatColor.YELLOW, node.id, ChatColor.GOLD,
+                                      ChatColor.WHITE, node.players, ChatColor.GOLD,
+                                      ChatColor.WHITE, node.allocated, ChatColor.GOLD,
+                                      ChatColor.WHITE, node.requested, ChatColor.GOLD,
+                                      ChatColor.WHITE, node.chunks, ChatColor.GOLD,
+                                      ChatColor.WHITE, node.mspt, ChatColor.GOLD,
+                                      (now - node.updatedMillis) / 1000));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Publish this node's record, read the records of all live nodes and
+     * compute this node's ceiling.
+     *
+     * @param players the number of players in the adjusted worlds.
+     * @param requested the view distance requested by the schedule.
+     * @param chunks the number of loaded chunks in the adjusted worlds.
+     * @param mspt the milliseconds per tick.
+     */
+    protected synchronized void exchange(int players, int requested, int chunks, float mspt) {
+        if (_record == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Node self = new Node(_nodeId, now, players, requested, Math.min(requested, _ceiling), chunks, mspt);
+        write(self);
+
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(self);
+        File[] files = _directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        Map<String, File> found = new HashMap<String, File>();
+        if (files != null) {
+            for (File file : files) {
+                String id = file.getName().substring(0, file.getName().length() - SUFFIX.length());
+                if (!id.equals(_nodeId)) {
+                    found.put(id, file);
+                }
+            }
+        }
+        for (Iterator<String> it = _peers.keySet().iterator(); it.hasNext();) {
+            if (!found.containsKey(it.next())) {
+                it.remove();
+            }
+        }
+
+        long staleMillis = DVDA.CONFIG.CLUSTER_STALE_SECONDS * 1000L;
+        for (Map.Entry<String, File> entry : found.entrySet()) {
+            MappedByteBuffer buffer = _peers.get(entry.getKey());
+            if (buffer == null) {
+                buffer = map(entry.getValue());
+                if (buffer == null) {
+                    continue;
+                }
+                _peers.put(entry.getKey(), buffer);
+            }
+            Node node = read(entry.getKey(), buffer);
+            if (node != null && now - node.updatedMillis <= staleMillis) {
+                nodes.add(node);
+            }
+        }
+
+        Map<String, Integer> allocation = allocate(nodes, DVDA.CONFIG.CLUSTER_CHUNK_BUDGET,
+                                                   DVDA.CONFIG.CLUSTER_MIN_VIEW_DISTANCE);
+        int ceiling = allocation.get(_nodeId);
+        _ceiling = (ceiling >= requested) ? NONE : ceiling;
+        _nodes = Collections.unmodifiableList(nodes);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write this node's record.
+     *
+     * @param node the record contents.
+     */
+    protected void write(Node node) {
+        long sequence = _record.getLong(SEQUENCE_OFFSET);
+        if ((sequence & 1) != 0) {
+            ++sequence;
+        }
+        _record.putLong(SEQUENCE_OFFSET, sequence + 1);
+        _record.putLong(UPDATED_OFFSET, node.updatedMillis);
+        _record.putInt(PLAYERS_OFFSET, node.players);
+        _record.putInt(REQUESTED_OFFSET, node.requested);
+        _record.putInt(ALLOCATED_OFFSET, node.allocated);
+        _record.putInt(CHUNKS_OFFSET, node.chunks);
+        _record.putFloat(MSPT_OFFSET, node.mspt);
+        _record.putLong(SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a consistent copy of another node's record.
+     *
+     * @param id the node's id.
+     * @param buffer the mapped record.
+     * @return the record, or null if it is invalid or could not be read
+     *         consistently.
+     */
+    protected Node read(String id, MappedByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        for (int attempt = 0; attempt < READ_ATTEMPTS; ++attempt) {
+            long before = buffer.getLong(SEQUENCE_OFFSET);
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            Node node = new Node(id, buffer.getLong(UPDATED_OFFSET), buffer.getInt(PLAYERS_OFFSET),
+                                 buffer.getInt(REQUESTED_OFFSET), buffer.getInt(ALLOCATED_OFFSET),
+                                 buffer.getInt(CHUNKS_OFFSET), buffer.getFloat(MSPT_OFFSET));
+            if (buffer.getLong(SEQUENCE_OFFSET) == before) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map another node's record read-only.
+     *
+     * The mapping remains valid after the file is closed.
+     *
+     * @param file the record file.
+     * @return the mapped record, or null if the file is not a complete record.
+     */
+    protected MappedByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < RECORD_SIZE) {
+                return null;
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, RECORD_SIZE);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The published state of one node.
+     */
+    public static final class Node {
+        /**
+         * Constructor.
+         *
+         * @param id the node's id.
+         * @param updatedMillis the time of the last update.
+         * @param players the number of players.
+         * @param requested the view distance requested by the schedule.
+         * @param allocated the view distance allocated to the node.
+         * @param chunks the number of loaded chunks.
+         * @param mspt the milliseconds per tick.
+         */
+        public Node(String id, long updatedMillis, int players, int requested, int allocated, int chunks,
+                    float mspt) {
+            this.id = id;
+            this.updatedMillis = updatedMillis;
+            this.players = players;
+            this.requested = requested;
+            this.allocated = allocated;
+            this.chunks = chunks;
+            this.mspt = mspt;
+        }
+
+        /**
+         * Estimate the number of chunks this node would load at the specified
+         * view distance: one square of chunks per player (or one, if there
+         * are no players), assuming they don't overlap.
+         *
+         * @param viewDistance the view distance.
+         * @return the estimated number of loaded chunks.
+         */
+        public long estimateChunks(int viewDistance) {
+            long side = 2L * viewDistance + 1;
+            return Math.max(1, players) * side * side;
+        }
+
+        /**
+         * The node's id.
+         */
+        public final String id;
+
+        /**
+         * The time of the last update in milliseconds since the epoch.
+         */
+        public final long updatedMillis;
+
+        /**
+         * The number of players in the adjusted worlds.
+         */
+        public final int players;
+
+        /**
+         * The view distance requested by the schedule.
+         */
+        public final int requested;
+
+        /**
+         * The view distance allocated to the node when it last published.
+         */
+        public final int allocated;
+
+        /**
+         * The number of loaded chunks in the adjusted worlds.
+         */
+        public final int chunks;
+
+        /**
+         * The milliseconds per tick.
+         */
+        public final float mspt;
+    } // class Node
+
+    // ------------------------------------------------------------------------
+    /**
+     * The source of tick rate measurements.
+     */
+    protected final TickSampler _sampler;
+
+    /**
+     * The shared directory.
+     */
+    protected File _directory;
+
+    /**
+     * The id of this node.
+     */
+    protected String _nodeId;
+
+    /**
+     * This node's record file, or null if not started.
+     */
+    protected RandomAccessFile _file;
+
+    /**
+     * This node's mapped record, or null if not started.
+     */
+    protected MappedByteBuffer _record;
+
+    /**
+     * Mapped records of other nodes, by id.
+     */
+    protected final Map<String, MappedByteBuffer> _peers = new HashMap<String, MappedByteBuffer>();
+
+    /**
+     * The live nodes found by the most recent exchange, including this one.
+     */
+    protected volatile List<Node> _nodes = Collections.<Node> emptyList();
+
+    /**
+     * The ceiling on the view distance of this node, or {@link #NONE}.
+     */
+    protected volatile int _ceiling = NONE;
+} // class ClusterCoordinator
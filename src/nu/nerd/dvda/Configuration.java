@@ -1,13 +1,25 @@
 package nu.nerd.dvda;
 
+import java.io.File;
+import java.io.Reader;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.bukkit.Bukkit;
 import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 
 // ----------------------------------------------------------------------------
 /**
@@ -23,35 +35,688 @@ public class Configuration {
     /**
      * Worlds where the view distance is adjusted.
      */
-    public List<World> WORLDS = new ArrayList<World>();
+    public List<World> WORLDS = Collections.<World> emptyList();
+
+    /**
+     * Schedule profiles other than the default, in declaration order.
+     */
+    public List<ScheduleProfile> PROFILES = Collections.<ScheduleProfile> emptyList();
+
+    /**
+     * The adjusted worlds, grouped by the profile whose schedule they follow.
+     * Profiles that apply to no adjusted world are omitted, so iterating over
+     * this map resolves each distinct schedule once.
+     */
+    public Map<ScheduleProfile, List<World>> PROFILE_WORLDS = Collections.<ScheduleProfile, List<World>> emptyMap();
+
+    /**
+     * If true, the view distance is adjusted according to the measured tick
+     * rate, using the schedule as a hint.
+     */
+    public boolean ADAPTIVE_ENABLED;
+
+    /**
+     * The minimum view distance that the adaptive controller will choose.
+     */
+    public int ADAPTIVE_MIN_VIEW_DISTANCE;
+
+    /**
+     * The maximum view distance that the adaptive controller will choose.
+     */
+    public int ADAPTIVE_MAX_VIEW_DISTANCE;
+
+    /**
+     * The amount by which the adaptive controller raises or lowers the view
+     * distance in response to the tick rate.
+     */
+    public int ADAPTIVE_STEP;
+
+    /**
+     * The view distance is lowered when the long window TPS is below this.
+     */
+    public double ADAPTIVE_LOWER_TPS;
+
+    /**
+     * The view distance is raised when the short and long window TPS are both
+     * above this.
+     */
+    public double ADAPTIVE_RAISE_TPS;
+
+    /**
+     * The duration of the short tick rate sampling window in seconds.
+     */
+    public int ADAPTIVE_SHORT_WINDOW_SECONDS;
+
+    /**
+     * The duration of the long tick rate sampling window in seconds.
+     */
+    public int ADAPTIVE_LONG_WINDOW_SECONDS;
+
+    /**
+     * If true, apply scheduled view distance changes to running worlds, on
+     * servers that support it.
+     */
+    public boolean LIVE_ENABLED;
+
+    /**
+     * The period in seconds between one chunk steps of the live view distance.
+     */
+    public int LIVE_INTERVAL_SECONDS;
+
+    /**
+     * If true, the simulation distance of running worlds follows the view
+     * distance.
+     */
+    public boolean LIVE_SIMULATION_DISTANCE;
+
+    /**
+     * The minimum view distance of any world when a chunk budget is divided
+     * between worlds.
+     */
+    public int BUDGET_MIN_VIEW_DISTANCE;
+
+    /**
+     * If true, set the view distance of individual players, on servers that
+     * support it.
+     */
+    public boolean PLAYERS_ENABLED;
+
+    /**
+     * The number of players whose view distance is evaluated each tick.
+     */
+    public int PLAYERS_BATCH_SIZE;
+
+    /**
+     * The minimum per-player view distance.
+     */
+    public int PLAYERS_MIN_VIEW_DISTANCE;
+
+    /**
+     * The maximum per-player view distance.
+     */
+    public int PLAYERS_MAX_VIEW_DISTANCE;
+
+    /**
+     * The number of seconds without moving after which a player is AFK.
+     */
+    public int PLAYERS_AFK_SECONDS;
+
+    /**
+     * The view distance of AFK players.
+     */
+    public int PLAYERS_AFK_VIEW_DISTANCE;
+
+    /**
+     * Players moving horizontally slower than this speed, in blocks per
+     * second, are considered stationary.
+     */
+    public double PLAYERS_MOVING_SPEED;
+
+    /**
+     * The amount by which the view distance of stationary players is reduced.
+     */
+    public int PLAYERS_STATIONARY_REDUCTION;
+
+    /**
+     * Per-player view distance tiers, in order of decreasing precedence.
+     */
+    public List<PlayerTier> PLAYERS_TIERS = new ArrayList<PlayerTier>();
+
+    /**
+     * If true, index player locations to detect hotspots: dense clusters of
+     * players in which per-player view distances are reduced.
+     */
+    public boolean PLAYERS_HOTSPOTS_ENABLED;
+
+    /**
+     * The number of chunks along the side of a cell of the player index.
+     */
+    public int PLAYERS_HOTSPOTS_CELL_CHUNKS;
+
+    /**
+     * The default minimum number of players in the 3x3 block of cells around
+     * a player for the player to be in a hotspot.
+     */
+    public int PLAYERS_HOTSPOTS_THRESHOLD;
+
+    /**
+     * Map from world name to the hotspot threshold of that world, overriding
+     * PLAYERS_HOTSPOTS_THRESHOLD.
+     */
+    public Map<String, Integer> PLAYERS_HOTSPOTS_WORLD_THRESHOLDS = new HashMap<String, Integer>();
+
+    /**
+     * The maximum view distance of players in a hotspot.
+     */
+    public int PLAYERS_HOTSPOTS_VIEW_DISTANCE;
+
+    /**
+     * Regions in which the view distance of players is limited.
+     */
+    public List<ViewDistanceRegion> PLAYERS_REGIONS = new ArrayList<ViewDistanceRegion>();
+
+    /**
+     * If true, collect chunk load pressure statistics in the adjusted worlds.
+     */
+    public boolean STATS_ENABLED;
+
+    /**
+     * The period in seconds between writes of the statistics file.
+     */
+    public int STATS_FLUSH_SECONDS;
+
+    /**
+     * The format of the statistics file: "prometheus" or "csv".
+     */
+    public String STATS_FORMAT;
+
+    /**
+     * If true, record the peak player count in each minute of the week.
+     */
+    public boolean HISTOGRAM_ENABLED;
+
+    /**
+     * The period between player count samples in seconds; at most the width
+     * of a histogram bucket, so that every bucket is sampled.
+     */
+    public int HISTOGRAM_SAMPLE_SECONDS;
+
+    /**
+     * The minimum player count of a peak period in a derived schedule.
+     */
+    public int HISTOGRAM_DERIVE_THRESHOLD;
+
+    /**
+     * The minimum duration in minutes of a peak period in a derived schedule.
+     */
+    public int HISTOGRAM_DERIVE_MINUTES;
+
+    /**
+     * The view distance during peak periods in a derived schedule.
+     */
+    public int HISTOGRAM_DERIVE_PEAK_VIEW_DISTANCE;
+
+    /**
+     * The view distance outside of peak periods in a derived schedule.
+     */
+    public int HISTOGRAM_DERIVE_OFF_PEAK_VIEW_DISTANCE;
+
+    /**
+     * If true, chunks are pre-generated ahead of scheduled view distance
+     * increases.
+     */
+    public boolean PREGEN_ENABLED;
+
+    /**
+     * The maximum time spent pre-generating chunks in each tick, in
+     * milliseconds.
+     */
+    public double PREGEN_TICK_BUDGET_MILLIS;
+
+    /**
+     * Chunks are pre-generated only when the next view distance increase is
+     * due within this many minutes.
+     */
+    public int PREGEN_LEAD_MINUTES;
+
+    /**
+     * Chunks are pre-generated only when at most this many players are
+     * online.
+     */
+    public int PREGEN_MAX_PLAYERS;
+
+    /**
+     * Chunks are pre-generated only when the long window TPS is at least this.
+     */
+    public double PREGEN_MIN_TPS;
+
+    /**
+     * The number of frequently visited places, in addition to the spawn,
+     * around which chunks are pre-generated.
+     */
+    public int PREGEN_HOTSPOTS;
+
+    /**
+     * The period in seconds between saves of pre-generation progress.
+     */
+    public int PREGEN_SAVE_SECONDS;
+
+    /**
+     * If true, the view distance applied at shutdown is chosen to suit the
+     * whole of the predicted next uptime, rather than being the last change
+     * that fell due during the current uptime.
+     */
+    public boolean RESTART_ENABLED;
+
+    /**
+     * Local times of day when the server is restarted, or empty to learn the
+     * uptime from history.
+     */
+    public List<LocalTime> RESTART_TIMES = new ArrayList<LocalTime>();
+
+    /**
+     * The number of recent uptimes remembered.
+     */
+    public int RESTART_HISTORY;
+
+    /**
+     * The expected uptime in hours when no uptimes have been recorded.
+     */
+    public int RESTART_DEFAULT_UPTIME_HOURS;
+
+    /**
+     * If true, record a rolling timeline of view distance changes, restarts,
+     * player peaks and tick rates.
+     */
+    public boolean TIMELINE_ENABLED;
+
+    /**
+     * The length of a timeline interval in minutes.
+     */
+    public int TIMELINE_INTERVAL_MINUTES;
+
+    /**
+     * The number of days of history retained in the timeline.
+     */
+    public int TIMELINE_DAYS;
+
+    /**
+     * If true, drop the live view distance to an emergency floor on a
+     * sustained lag spike.
+     */
+    public boolean EMERGENCY_ENABLED;
+
+    /**
+     * The milliseconds per tick above which the server is lagging.
+     */
+    public double EMERGENCY_MSPT;
+
+    /**
+     * The number of consecutive seconds of lag that engage load shedding.
+     */
+    public int EMERGENCY_SPIKE_SECONDS;
+
+    /**
+     * The view distance while load shedding is engaged.
+     */
+    public int EMERGENCY_FLOOR_VIEW_DISTANCE;
+
+    /**
+     * The number of consecutive seconds without lag before the view distance
+     * is raised by one chunk.
+     */
+    public int EMERGENCY_STABLE_SECONDS;
+
+    /**
+     * If true, coordinate view distances with other servers through records
+     * in a shared directory.
+     */
+    public boolean CLUSTER_ENABLED;
+
+    /**
+     * The id of this server in the cluster, which must be unique.
+     */
+    public String CLUSTER_NODE_ID;
+
+    /**
+     * The directory shared by all servers in the cluster.
+     */
+    public String CLUSTER_DIRECTORY;
+
+    /**
+     * The estimated total number of loaded chunks that all servers in the
+     * cluster must fit within.
+     */
+    public long CLUSTER_CHUNK_BUDGET;
+
+    /**
+     * The minimum view distance allocated to any server in the cluster.
+     */
+    public int CLUSTER_MIN_VIEW_DISTANCE;
+
+    /**
+     * The period between exchanges of records in seconds.
+     */
+    public int CLUSTER_PUBLISH_SECONDS;
+
+    /**
+     * The age in seconds after which another server's record is ignored.
+     */
+    public int CLUSTER_STALE_SECONDS;
+
+    /**
+     * If true, sample loaded chunks to estimate the heap used per chunk.
+     */
+    public boolean ESTIMATE_ENABLED;
+
+    /**
+     * The number of chunks sampled per tick.
+     */
+    public int ESTIMATE_CHUNKS_PER_TICK;
+
+    /**
+     * The heap per chunk in KiB assumed until it can be measured.
+     */
+    public int ESTIMATE_DEFAULT_CHUNK_KIB;
+
+    /**
+     * The projected heap use in MiB above which the view distance is limited,
+     * or 0 for no limit.
+     */
+    public long ESTIMATE_HEAP_CEILING_MIB;
+
+    /**
+     * The view distance is never limited below this by the heap ceiling.
+     */
+    public int ESTIMATE_MIN_VIEW_DISTANCE;
 
     // ------------------------------------------------------------------------
     /**
-     * Reload the configuration file.
+     * Reload the configuration file on the main thread.
      */
     public void reload() {
         DVDA.PLUGIN.reloadConfig();
+        apply(getConfig(), DaySchedule.parse(getConfig().getConfigurationSection("schedule")),
+              ScheduleProfile.parseAll(getConfig().getConfigurationSection("profiles")), Bukkit::getWorld);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the configuration file without applying it.
+     *
+     * This does not use any Bukkit state and can be called off the main
+     * thread.
+     *
+     * @param file the configuration file.
+     * @param defaults the default configuration, or null.
+     * @return the loaded configuration.
+     */
+    public static FileConfiguration load(File file, Reader defaults) {
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        if (defaults != null) {
+            config.setDefaults(YamlConfiguration.loadConfiguration(defaults));
+        }
+        return config;
+    }
 
-        DEBUG_CONFIG = getConfig().getBoolean("debug.config");
-        WORLDS.clear();
-        for (String worldName : getConfig().getStringList("worlds")) {
-            World world = Bukkit.getWorld(worldName);
+    // ------------------------------------------------------------------------
+    /**
+     * Apply a loaded configuration and publish its schedules.
+     *
+     * This must be called on the main thread. Lists are replaced rather than
+     * modified, so that a reader holding the previous list is unaffected.
+     *
+     * @param config the loaded configuration.
+     * @param schedule the default schedules parsed from the configuration.
+     * @param profiles the other schedule profiles parsed from the
+     *        configuration.
+     * @param worldResolver returns the World with a given name, or null if
+     *        there is none; {@code Bukkit::getWorld} on a running server.
+     */
+    public void apply(ConfigurationSection config, ScheduleSnapshot schedule, List<ScheduleProfile> profiles,
+                      Function<String, World> worldResolver) {
+        DEBUG_CONFIG = config.getBoolean("debug.config");
+        List<World> worlds = new ArrayList<World>();
+        for (String worldName : config.getStringList("worlds")) {
+            World world = worldResolver.apply(worldName);
             if (world == null) {
                 getLogger().warning("Invalid world name: " + worldName);
             } else {
-                WORLDS.add(world);
+                worlds.add(world);
+            }
+        }
+        WORLDS = Collections.unmodifiableList(worlds);
+        DaySchedule.publish(schedule);
+        MessageSink log = MessageSink.buffered(getLogger());
+        schedule.getReport().list(log);
+
+        Map<World, ScheduleProfile> worldToProfile = new IdentityHashMap<World, ScheduleProfile>();
+        for (ScheduleProfile profile : profiles) {
+            ValidationReport report = profile.getSnapshot().getReport();
+            if (!report.isClean()) {
+                log.accept("Profile " + profile.getName() + ":");
+                report.list(log);
+            }
+            for (String worldName : profile.getWorlds()) {
+                World world = worldResolver.apply(worldName);
+                if (world == null || !WORLDS.contains(world)) {
+                    getLogger().warning("Profile " + profile.getName() + " lists a world that is not adjusted: " +
+                                        worldName);
+                } else if (worldToProfile.containsKey(world)) {
+                    getLogger().warning("Profile " + profile.getName() + " lists " + worldName +
+                                        ", which is already in profile " + worldToProfile.get(world).getName());
+                } else {
+                    worldToProfile.put(world, profile);
+                }
+            }
+        }
+        Map<ScheduleProfile, List<World>> profileWorlds = new LinkedHashMap<ScheduleProfile, List<World>>();
+        for (World world : WORLDS) {
+            profileWorlds.computeIfAbsent(worldToProfile.getOrDefault(world, ScheduleProfile.DEFAULT),
+                                          profile -> new ArrayList<World>()).add(world);
+        }
+        PROFILES = Collections.unmodifiableList(new ArrayList<ScheduleProfile>(profiles));
+        PROFILE_WORLDS = Collections.unmodifiableMap(profileWorlds);
+        _worldToProfile = worldToProfile;
+
+        ADAPTIVE_ENABLED = config.getBoolean("adaptive.enabled");
+        ADAPTIVE_MIN_VIEW_DISTANCE = config.getInt("adaptive.min-view-distance");
+        ADAPTIVE_MAX_VIEW_DISTANCE = config.getInt("adaptive.max-view-distance");
+        ADAPTIVE_STEP = config.getInt("adaptive.step");
+        ADAPTIVE_LOWER_TPS = config.getDouble("adaptive.lower-tps");
+        ADAPTIVE_RAISE_TPS = config.getDouble("adaptive.raise-tps");
+        ADAPTIVE_SHORT_WINDOW_SECONDS = config.getInt("adaptive.short-window-seconds");
+        ADAPTIVE_LONG_WINDOW_SECONDS = config.getInt("adaptive.long-window-seconds");
+
+        LIVE_ENABLED = config.getBoolean("live.enabled");
+        LIVE_INTERVAL_SECONDS = Math.max(1, config.getInt("live.interval-seconds"));
+        LIVE_SIMULATION_DISTANCE = config.getBoolean("live.simulation-distance");
+
+        BUDGET_MIN_VIEW_DISTANCE = config.getInt("budget.min-view-distance");
+
+        PLAYERS_ENABLED = config.getBoolean("players.enabled");
+        PLAYERS_BATCH_SIZE = Math.max(1, config.getInt("players.batch-size"));
+        PLAYERS_MIN_VIEW_DISTANCE = Math.max(1, config.getInt("players.min-view-distance"));
+        PLAYERS_MAX_VIEW_DISTANCE = config.getInt("players.max-view-distance");
+        PLAYERS_AFK_SECONDS = config.getInt("players.afk-seconds");
+        PLAYERS_AFK_VIEW_DISTANCE = config.getInt("players.afk-view-distance");
+        PLAYERS_MOVING_SPEED = config.getDouble("players.moving-speed");
+        PLAYERS_STATIONARY_REDUCTION = config.getInt("players.stationary-reduction");
+        List<PlayerTier> tiers = new ArrayList<PlayerTier>();
+        ConfigurationSection tiersSection = config.getConfigurationSection("players.tiers");
+        if (tiersSection != null) {
+            for (String name : tiersSection.getKeys(false)) {
+                ConfigurationSection tier = tiersSection.getConfigurationSection(name);
+                if (tier == null || tier.getString("permission") == null) {
+                    getLogger().warning("Invalid player tier: " + name);
+                } else {
+                    tiers.add(new PlayerTier(name, tier.getString("permission"), tier.getInt("view-distance")));
+                }
+            }
+        }
+        PLAYERS_TIERS = tiers;
+
+        PLAYERS_HOTSPOTS_ENABLED = config.getBoolean("players.hotspots.enabled");
+        PLAYERS_HOTSPOTS_CELL_CHUNKS = Math.max(1, config.getInt("players.hotspots.cell-chunks"));
+        PLAYERS_HOTSPOTS_THRESHOLD = Math.max(1, config.getInt("players.hotspots.threshold"));
+        PLAYERS_HOTSPOTS_VIEW_DISTANCE = config.getInt("players.hotspots.view-distance");
+        Map<String, Integer> worldThresholds = new HashMap<String, Integer>();
+        ConfigurationSection thresholdsSection = config.getConfigurationSection("players.hotspots.worlds");
+        if (thresholdsSection != null) {
+            for (String worldName : thresholdsSection.getKeys(false)) {
+                worldThresholds.put(worldName, Math.max(1, thresholdsSection.getInt(worldName)));
+            }
+        }
+        PLAYERS_HOTSPOTS_WORLD_THRESHOLDS = worldThresholds;
+
+        List<ViewDistanceRegion> regions = new ArrayList<ViewDistanceRegion>();
+        ConfigurationSection regionsSection = config.getConfigurationSection("players.regions");
+        if (regionsSection != null) {
+            for (String name : regionsSection.getKeys(false)) {
+                ConfigurationSection region = regionsSection.getConfigurationSection(name);
+                if (region == null || region.getString("world") == null || !region.isInt("view-distance")) {
+                    getLogger().warning("Invalid player region: " + name);
+                } else {
+                    regions.add(new ViewDistanceRegion(name, region.getString("world"),
+                                                       region.getInt("x1"), region.getInt("z1"),
+                                                       region.getInt("x2"), region.getInt("z2"),
+                                                       region.getInt("view-distance")));
+                }
+            }
+        }
+        PLAYERS_REGIONS = regions;
+
+        STATS_ENABLED = config.getBoolean("stats.enabled");
+        STATS_FLUSH_SECONDS = Math.max(1, config.getInt("stats.flush-seconds"));
+        STATS_FORMAT = config.getString("stats.format", "prometheus");
+
+        HISTOGRAM_ENABLED = config.getBoolean("histogram.enabled");
+        HISTOGRAM_SAMPLE_SECONDS = Math.max(1, Math.min(PlayerCountHistogram.BUCKET_MINUTES * 60,
+                                                        config.getInt("histogram.sample-seconds")));
+        HISTOGRAM_DERIVE_THRESHOLD = config.getInt("histogram.derive.threshold");
+        HISTOGRAM_DERIVE_MINUTES = config.getInt("histogram.derive.minutes");
+        HISTOGRAM_DERIVE_PEAK_VIEW_DISTANCE = config.getInt("histogram.derive.peak-view-distance");
+        HISTOGRAM_DERIVE_OFF_PEAK_VIEW_DISTANCE = config.getInt("histogram.derive.off-peak-view-distance");
+
+        PREGEN_ENABLED = config.getBoolean("pregen.enabled");
+        PREGEN_TICK_BUDGET_MILLIS = Math.max(0.0, config.getDouble("pregen.tick-budget-millis"));
+        PREGEN_LEAD_MINUTES = config.getInt("pregen.lead-minutes");
+        PREGEN_MAX_PLAYERS = config.getInt("pregen.max-players");
+        PREGEN_MIN_TPS = config.getDouble("pregen.min-tps");
+        PREGEN_HOTSPOTS = Math.max(0, config.getInt("pregen.hotspots"));
+        PREGEN_SAVE_SECONDS = Math.max(1, config.getInt("pregen.save-seconds"));
+
+        RESTART_ENABLED = config.getBoolean("restart.enabled");
+        List<LocalTime> restartTimes = new ArrayList<LocalTime>();
+        for (String time : config.getStringList("restart.times")) {
+            try {
+                restartTimes.add(LocalTime.parse(time.trim()));
+            } catch (DateTimeParseException ex) {
+                getLogger().warning("Invalid restart time: " + time);
             }
         }
-        DaySchedule.loadAll(MessageSink.from(getLogger()), getConfig().getConfigurationSection("schedule"));
+        RESTART_TIMES = restartTimes;
+        RESTART_HISTORY = Math.max(1, config.getInt("restart.history"));
+        RESTART_DEFAULT_UPTIME_HOURS = Math.max(1, config.getInt("restart.default-uptime-hours"));
+
+        TIMELINE_ENABLED = config.getBoolean("timeline.enabled");
+        TIMELINE_INTERVAL_MINUTES = Math.max(1, config.getInt("timeline.interval-minutes"));
+        TIMELINE_DAYS = Math.max(1, config.getInt("timeline.days"));
+
+        EMERGENCY_ENABLED = config.getBoolean("emergency.enabled");
+        EMERGENCY_MSPT = config.getDouble("emergency.mspt");
+        EMERGENCY_SPIKE_SECONDS = Math.max(1, config.getInt("emergency.spike-seconds"));
+        EMERGENCY_FLOOR_VIEW_DISTANCE = Math.max(1, config.getInt("emergency.floor-view-distance"));
+        EMERGENCY_STABLE_SECONDS = Math.max(1, config.getInt("emergency.stable-seconds"));
+
+        CLUSTER_ENABLED = config.getBoolean("cluster.enabled");
+        CLUSTER_NODE_ID = config.getString("cluster.node-id", "");
+        CLUSTER_DIRECTORY = config.getString("cluster.directory", "");
+        CLUSTER_CHUNK_BUDGET = Math.max(1, config.getLong("cluster.chunk-budget"));
+        CLUSTER_MIN_VIEW_DISTANCE = Math.max(1, config.getInt("cluster.min-view-distance"));
+        CLUSTER_PUBLISH_SECONDS = Math.max(1, config.getInt("cluster.publish-seconds"));
+        CLUSTER_STALE_SECONDS = Math.max(1, config.getInt("cluster.stale-seconds"));
+
+        ESTIMATE_ENABLED = config.getBoolean("estimate.enabled");
+        ESTIMATE_CHUNKS_PER_TICK = Math.max(1, config.getInt("estimate.chunks-per-tick"));
+        ESTIMATE_DEFAULT_CHUNK_KIB = Math.max(1, config.getInt("estimate.default-chunk-kib"));
+        ESTIMATE_HEAP_CEILING_MIB = Math.max(0, config.getLong("estimate.heap-ceiling-mib"));
+        ESTIMATE_MIN_VIEW_DISTANCE = Math.max(1, config.getInt("estimate.min-view-distance"));
 
         if (DEBUG_CONFIG) {
-            getLogger().info("Configuration:");
-            getLogger().info("WORLDS: " + WORLDS.stream().map(World::getName).collect(Collectors.joining(", ")));
-            getLogger().info("Schedule:");
-            DaySchedule.listAll(MessageSink.from(getLogger()));
+            log.accept("Configuration:");
+            log.accept("WORLDS: " + WORLDS.stream().map(World::getName).collect(Collectors.joining(", ")));
+            log.accept("PROFILE_WORLDS: " + PROFILE_WORLDS.entrySet().stream()
+                .map(e -> e.getKey().getName() + " (" +
+                          e.getValue().stream().map(World::getName).collect(Collectors.joining(", ")) + ")")
+                .collect(Collectors.joining(", ")));
+            log.accept("ADAPTIVE_ENABLED: " + ADAPTIVE_ENABLED);
+            log.accept("ADAPTIVE_MIN_VIEW_DISTANCE: " + ADAPTIVE_MIN_VIEW_DISTANCE);
+            log.accept("ADAPTIVE_MAX_VIEW_DISTANCE: " + ADAPTIVE_MAX_VIEW_DISTANCE);
+            log.accept("ADAPTIVE_STEP: " + ADAPTIVE_STEP);
+            log.accept("ADAPTIVE_LOWER_TPS: " + ADAPTIVE_LOWER_TPS);
+            log.accept("ADAPTIVE_RAISE_TPS: " + ADAPTIVE_RAISE_TPS);
+            log.accept("ADAPTIVE_SHORT_WINDOW_SECONDS: " + ADAPTIVE_SHORT_WINDOW_SECONDS);
+            log.accept("ADAPTIVE_LONG_WINDOW_SECONDS: " + ADAPTIVE_LONG_WINDOW_SECONDS);
+            log.accept("LIVE_ENABLED: " + LIVE_ENABLED);
+            log.accept("LIVE_INTERVAL_SECONDS: " + LIVE_INTERVAL_SECONDS);
+            log.accept("LIVE_SIMULATION_DISTANCE: " + LIVE_SIMULATION_DISTANCE);
+            log.accept("BUDGET_MIN_VIEW_DISTANCE: " + BUDGET_MIN_VIEW_DISTANCE);
+            log.accept("PLAYERS_ENABLED: " + PLAYERS_ENABLED);
+            log.accept("PLAYERS_BATCH_SIZE: " + PLAYERS_BATCH_SIZE);
+            log.accept("PLAYERS_MIN_VIEW_DISTANCE: " + PLAYERS_MIN_VIEW_DISTANCE);
+            log.accept("PLAYERS_MAX_VIEW_DISTANCE: " + PLAYERS_MAX_VIEW_DISTANCE);
+            log.accept("PLAYERS_AFK_SECONDS: " + PLAYERS_AFK_SECONDS);
+            log.accept("PLAYERS_AFK_VIEW_DISTANCE: " + PLAYERS_AFK_VIEW_DISTANCE);
+            log.accept("PLAYERS_MOVING_SPEED: " + PLAYERS_MOVING_SPEED);
+            log.accept("PLAYERS_STATIONARY_REDUCTION: " + PLAYERS_STATIONARY_REDUCTION);
+            log.accept("PLAYERS_TIERS: " + PLAYERS_TIERS.stream().map(PlayerTier::toString).collect(Collectors.joining(", ")));
+            log.accept("PLAYERS_HOTSPOTS_ENABLED: " + PLAYERS_HOTSPOTS_ENABLED);
+            log.accept("PLAYERS_HOTSPOTS_CELL_CHUNKS: " + PLAYERS_HOTSPOTS_CELL_CHUNKS);
+            log.accept("PLAYERS_HOTSPOTS_THRESHOLD: " + PLAYERS_HOTSPOTS_THRESHOLD);
+            log.accept("PLAYERS_HOTSPOTS_WORLD_THRESHOLDS: " + PLAYERS_HOTSPOTS_WORLD_THRESHOLDS);
+            log.accept("PLAYERS_HOTSPOTS_VIEW_DISTANCE: " + PLAYERS_HOTSPOTS_VIEW_DISTANCE);
+            log.accept("PLAYERS_REGIONS: " + PLAYERS_REGIONS.stream().map(ViewDistanceRegion::toString).collect(Collectors.joining(", ")));
+            log.accept("STATS_ENABLED: " + STATS_ENABLED);
+            log.accept("STATS_FLUSH_SECONDS: " + STATS_FLUSH_SECONDS);
+            log.accept("STATS_FORMAT: " + STATS_FORMAT);
+            log.accept("HISTOGRAM_ENABLED: " + HISTOGRAM_ENABLED);
+            log.accept("HISTOGRAM_SAMPLE_SECONDS: " + HISTOGRAM_SAMPLE_SECONDS);
+            log.accept("HISTOGRAM_DERIVE_THRESHOLD: " + HISTOGRAM_DERIVE_THRESHOLD);
+            log.accept("HISTOGRAM_DERIVE_MINUTES: " + HISTOGRAM_DERIVE_MINUTES);
+            log.accept("HISTOGRAM_DERIVE_PEAK_VIEW_DISTANCE: " + HISTOGRAM_DERIVE_PEAK_VIEW_DISTANCE);
+            log.accept("HISTOGRAM_DERIVE_OFF_PEAK_VIEW_DISTANCE: " + HISTOGRAM_DERIVE_OFF_PEAK_VIEW_DISTANCE);
+            log.accept("PREGEN_ENABLED: " + PREGEN_ENABLED);
+            log.accept("PREGEN_TICK_BUDGET_MILLIS: " + PREGEN_TICK_BUDGET_MILLIS);
+            log.accept("PREGEN_LEAD_MINUTES: " + PREGEN_LEAD_MINUTES);
+            log.accept("PREGEN_MAX_PLAYERS: " + PREGEN_MAX_PLAYERS);
+            log.accept("PREGEN_MIN_TPS: " + PREGEN_MIN_TPS);
+            log.accept("PREGEN_HOTSPOTS: " + PREGEN_HOTSPOTS);
+            log.accept("PREGEN_SAVE_SECONDS: " + PREGEN_SAVE_SECONDS);
+            log.accept("RESTART_ENABLED: " + RESTART_ENABLED);
+            log.accept("RESTART_TIMES: " + RESTART_TIMES.stream().map(LocalTime::toString).collect(Collectors.joining(", ")));
+            log.accept("RESTART_HISTORY: " + RESTART_HISTORY);
+            log.accept("RESTART_DEFAULT_UPTIME_HOURS: " + RESTART_DEFAULT_UPTIME_HOURS);
+            log.accept("TIMELINE_ENABLED: " + TIMELINE_ENABLED);
+            log.accept("TIMELINE_INTERVAL_MINUTES: " + TIMELINE_INTERVAL_MINUTES);
+            log.accept("TIMELINE_DAYS: " + TIMELINE_DAYS);
+            log.accept("EMERGENCY_ENABLED: " + EMERGENCY_ENABLED);
+            log.accept("EMERGENCY_MSPT: " + EMERGENCY_MSPT);
+            log.accept("EMERGENCY_SPIKE_SECONDS: " + EMERGENCY_SPIKE_SECONDS);
+            log.accept("EMERGENCY_FLOOR_VIEW_DISTANCE: " + EMERGENCY_FLOOR_VIEW_DISTANCE);
+            log.accept("EMERGENCY_STABLE_SECONDS: " + EMERGENCY_STABLE_SECONDS);
+            log.accept("CLUSTER_ENABLED: " + CLUSTER_ENABLED);
+            log.accept("CLUSTER_NODE_ID: " + CLUSTER_NODE_ID);
+            log.accept("CLUSTER_DIRECTORY: " + CLUSTER_DIRECTORY);
+            log.accept("CLUSTER_CHUNK_BUDGET: " + CLUSTER_CHUNK_BUDGET);
+            log.accept("CLUSTER_MIN_VIEW_DISTANCE: " + CLUSTER_MIN_VIEW_DISTANCE);
+            log.accept("CLUSTER_PUBLISH_SECONDS: " + CLUSTER_PUBLISH_SECONDS);
+            log.accept("CLUSTER_STALE_SECONDS: " + CLUSTER_STALE_SECONDS);
+            log.accept("ESTIMATE_ENABLED: " + ESTIMATE_ENABLED);
+            log.accept("ESTIMATE_CHUNKS_PER_TICK: " + ESTIMATE_CHUNKS_PER_TICK);
+            log.accept("ESTIMATE_DEFAULT_CHUNK_KIB: " + ESTIMATE_DEFAULT_CHUNK_KIB);
+            log.accept("ESTIMATE_HEAP_CEILING_MIB: " + ESTIMATE_HEAP_CEILING_MIB);
+            log.accept("ESTIMATE_MIN_VIEW_DISTANCE: " + ESTIMATE_MIN_VIEW_DISTANCE);
+            log.accept("Schedule:");
+            DaySchedule.listAll(log);
+            for (ScheduleProfile profile : PROFILES) {
+                profile.list(log);
+            }
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the schedule profile that applies to the specified world.
+     *
+     * @param world the world.
+     * @return the profile listing the world, or {@link ScheduleProfile#DEFAULT}
+     *         if there is none.
+     */
+    public ScheduleProfile getProfile(World world) {
+        return _worldToProfile.getOrDefault(world, ScheduleProfile.DEFAULT);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the plugin's FileConfiguration.
@@ -64,11 +729,19 @@ public class Configuration {
 
     // ------------------------------------------------------------------------
     /**
-     * Return the plugin's Logger.
+     * Return the plugin's Logger, or a standalone Logger when running without
+     * a server, as in the {@link Simulator}.
      *
-     * @return the plugin's Logger.
+     * @return the Logger.
      */
     protected Logger getLogger() {
-        return DVDA.PLUGIN.getLogger();
+        return (DVDA.PLUGIN != null) ? DVDA.PLUGIN.getLogger() : Logger.getLogger("DVDA");
     }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from adjusted world to the profile listing it; worlds that follow
+     * the default profile are absent.
+     */
+    protected Map<World, ScheduleProfile> _worldToProfile = new IdentityHashMap<World, ScheduleProfile>();
 } // class Configuration
\ No newline at end of file
@@ -1,6 +1,10 @@
 package nu.nerd.dvda;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.time.DayOfWeek;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -8,24 +12,36 @@ import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.TextStyle;
 import java.time.temporal.TemporalAdjusters;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 // ----------------------------------------------------------------------------
 /**
  * Dynamic View Distance Adjustment plugin class.
  *
- * A synchronously repeating task updates the Spigot configuration according to
- * a schedule.
+ * The Spigot configuration is updated according to a schedule when the server
+ * stops. On servers that support it, a synchronously repeating task also
+ * applies the schedule to running worlds.
+ *
+ * A task run every tick measures the tick rate so that in adaptive mode,
+ * the view distance applied at shutdown can respond to server load.
  */
 public class DVDA extends JavaPlugin {
     // ------------------------------------------------------------------------
@@ -39,6 +55,57 @@ public class DVDA extends JavaPlugin {
      */
     public static Configuration CONFIG = new Configuration();
 
+    /**
+     * Period in ticks between checks for a new pending change to prepare.
+     */
+    public static final long PREPARE_PERIOD_TICKS = 60 * 20;
+
+    /**
+     * Name of the player count histogram file in the data folder.
+     */
+    public static final String HISTOGRAM_FILE = "player-counts.dat";
+
+    /**
+     * Name of the file in the data folder where derived schedules are saved.
+     */
+    public static final String DERIVED_SCHEDULE_FILE = "derived-schedule.yml";
+
+    /**
+     * Name of the chunk pre-generation progress file in the data folder.
+     */
+    public static final String PREGEN_FILE = "pregen.yml";
+
+    /**
+     * Name of the uptime history file in the data folder.
+     */
+    public static final String UPTIMES_FILE = "uptimes.yml";
+
+    /**
+     * Name of the timeline file in the data folder.
+     */
+    public static final String TIMELINE_FILE = "timeline.dat";
+
+    /**
+     * Name of the file in the data folder where the timeline is exported.
+     */
+    public static final String TIMELINE_EXPORT_FILE = "timeline.csv";
+
+    /**
+     * The maximum time in milliseconds to wait for buffered log output to be
+     * written when the plugin is disabled.
+     */
+    public static final long SHUTDOWN_FLUSH_MILLIS = 1000;
+
+    /**
+     * The number of days summarised by /dvda history by default.
+     */
+    public static final int DEFAULT_HISTORY_DAYS = 7;
+
+    /**
+     * Format of the time of the next scheduled change in /view-distance.
+     */
+    public static final DateTimeFormatter NEXT_CHANGE_FORMAT = DateTimeFormatter.ofPattern("EEE yyyy-MM-dd HH:mm z", Locale.US);
+
     // ------------------------------------------------------------------------
     /**
      * @see org.bukkit.plugin.java.JavaPlugin#onCommand(org.bukkit.command.CommandSender,
@@ -48,15 +115,73 @@ public class DVDA extends JavaPlugin {
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
         if (command.getName().equalsIgnoreCase(getName())) {
             if (args.length == 1 && args[0].equalsIgnoreCase("help")) {
-                sender.sendMessage(ChatColor.translateAlternateColorCodes('&', "&6Usage: &e/dvda &f[&ehelp&f|&ereload&f|&elist-all&f]"));
+                sender.sendMessage(ChatColor.translateAlternateColorCodes('&', "&6Usage: &e/dvda &f[&ehelp&f|&ereload&f|&elist-all&f|&ederive-schedule&f|&estats&f|&epregen&f|&ecluster&f|&ehotspots&f|&eestimate&f|&ehistory&f|&eexport-history&f|&emore&f]"));
+                return true;
+            } else if (args.length == 1 && args[0].equalsIgnoreCase("more")) {
+                BufferedMessageSink.more(sender);
                 return true;
             } else if (args.length == 1 && args[0].equalsIgnoreCase("reload")) {
-                CONFIG.reload();
-                sender.sendMessage(ChatColor.GOLD + getName() + " configuration reloaded.");
+                reload(MessageSink.buffered(sender));
                 return true;
             } else if (args.length == 1 && args[0].equalsIgnoreCase("list-all")) {
                 getLogger().info(ChatColor.GOLD + "Schedule:");
-                DaySchedule.listAll(MessageSink.from(sender));
+                MessageSink sink = MessageSink.buffered(sender);
+                DaySchedule.listAll(sink);
+                for (ScheduleProfile profile : CONFIG.PROFILES) {
+                    profile.list(sink);
+                }
+                return true;
+            } else if (args.length == 1 && args[0].equalsIgnoreCase("derive-schedule")) {
+                deriveSchedule(MessageSink.buffered(sender));
+                return true;
+            } else if (args.length == 1 && args[0].equalsIgnoreCase("stats")) {
+                _stats.list(MessageSink.buffered(sender));
+                return true;
+            } else if (args.length == 1 && args[0].equalsIgnoreCase("pregen")) {
+                _pregen.list(MessageSink.buffered(sender));
+                return true;
+            } else if (args.length == 1 && args[0].equalsIgnoreCase("cluster")) {
+                _cluster.list(MessageSink.buffered(sender));
+                return true;
+            } else if (args.length == 1 && args[0].equalsIgnoreCase("hotspots")) {
+                _grid.list(MessageSink.buffered(sender));
+                return true;
+            } else if (args.length == 2 && args[0].equalsIgnoreCase("estimate")) {
+                int viewDistance;
+                try {
+                    viewDistance = Integer.parseInt(args[1]);
+                } catch (NumberFormatException ex) {
+                    viewDistance = -1;
+                }
+                if (viewDistance < 1 || viewDistance > MemoryEstimator.MAX_VIEW_DISTANCE) {
+                    sender.sendMessage(ChatColor.RED + "The view distance must be an integer from 1 to " +
+                                       MemoryEstimator.MAX_VIEW_DISTANCE + ".");
+                } else if (!CONFIG.ESTIMATE_ENABLED) {
+                    sender.sendMessage(ChatColor.RED + "Memory estimation is not enabled.");
+                } else {
+                    _estimator.estimate(MessageSink.buffered(sender), viewDistance);
+                }
+                return true;
+            } else if ((args.length == 1 || args.length == 2) &&
+                       (args[0].equalsIgnoreCase("history") || args[0].equalsIgnoreCase("export-history"))) {
+                boolean export = args[0].equalsIgnoreCase("export-history");
+                int days = export ? 0 : DEFAULT_HISTORY_DAYS;
+                if (args.length == 2) {
+                    try {
+                        days = Integer.parseInt(args[1]);
+                    } catch (NumberFormatException ex) {
+                        days = -1;
+                    }
+                    if (days < 1) {
+                        sender.sendMessage(ChatColor.RED + "The number of days must be a positive integer.");
+                        return true;
+                    }
+                }
+                if (export) {
+                    _timeline.export(MessageSink.buffered(sender), days, new File(getDataFolder(), TIMELINE_EXPORT_FILE));
+                } else {
+                    _timeline.history(MessageSink.buffered(sender), days);
+                }
                 return true;
             }
         } else if (command.getName().equalsIgnoreCase("view-distance")) {
@@ -67,15 +192,63 @@ public class DVDA extends JavaPlugin {
                 msg.append(sep);
                 msg.append(ChatColor.YELLOW.toString()).append(world.getName());
                 msg.append(ChatColor.WHITE.toString()).append(": ");
-                msg.append(getViewDistance(world)).append(ChatColor.GOLD.toString());
+                msg.append(getViewDistance(world));
+                if (_liveTask != null || _shedderTask != null) {
+                    msg.append(" (live: ").append(LiveViewDistance.getViewDistance(world)).append(')');
+                }
+                msg.append(ChatColor.GOLD.toString());
                 sep = ", ";
             }
             sender.sendMessage(msg.toString());
-            ViewDistanceChange change = getChange(_startTime, Instant.now());
-            if (change != null) {
-                sender.sendMessage(ChatColor.GOLD + "Pending change from " +
+            if (CONFIG.ADAPTIVE_ENABLED) {
+                sender.sendMessage(String.format("%sTPS (short/long): %s%.2f%s/%s%.2f%s, MSPT (short/long): %s%.1f%s/%s%.1f",
+                                                 ChatColor.GOLD,
+                                                 ChatColor.YELLOW, _sampler.getShortTps(), ChatColor.WHITE,
+                                                 ChatColor.YELLOW, _sampler.getLongTps(), ChatColor.GOLD,
+                                                 ChatColor.YELLOW, _sampler.getShortMspt(), ChatColor.WHITE,
+                                                 ChatColor.YELLOW, _sampler.getLongMspt()));
+            }
+            if (_shedder.isEngaged()) {
+                sender.sendMessage(String.format("%sLoad shedding is engaged: view distance limited to %s%d%s (MSPT %s%.1f%s).",
+                                                 ChatColor.RED, ChatColor.YELLOW, _shedder.getCeiling(), ChatColor.RED,
+                                                 ChatColor.YELLOW, _shedder.getMspt(), ChatColor.RED));
+            }
+            if (CONFIG.RESTART_ENABLED) {
+                long restartMillis = _planner.predictRestart(System.currentTimeMillis());
+                ZonedDateTime restart = Instant.ofEpochMilli(restartMillis).atZone(DaySchedule.getZone());
+                sender.sendMessage(ChatColor.GOLD + "If restarted now, the next restart is expected at " +
+                                   ChatColor.YELLOW + restart.format(NEXT_CHANGE_FORMAT) + ChatColor.GOLD + ".");
+            }
+            Map<ScheduleProfile, ViewDistanceChange> changes = getPendingChanges();
+            for (Map.Entry<ScheduleProfile, ViewDistanceChange> entry : changes.entrySet()) {
+                ViewDistanceChange change = entry.getValue();
+                Map<String, WorldSettings> settings = getWorldSettings(Collections.singletonMap(entry.getKey(), change));
+                sender.sendMessage(ChatColor.GOLD + "Pending change" + getProfileLabel(entry.getKey()) + " from " +
                                    ChatColor.YELLOW + change.getTime() +
                                    ChatColor.WHITE + ": " + change.getViewDistance());
+                if (change.hasChunkBudget()) {
+                    sender.sendMessage(ChatColor.GOLD + "Budget of " + ChatColor.YELLOW + change.getChunkBudget() +
+                                       ChatColor.GOLD + " chunks allocated as: " + ChatColor.WHITE +
+                                       settings.toString());
+                } else if (change.getSimulationDistance() + change.getTrackingRange() +
+                           change.getActivationRange() != 0) {
+                    sender.sendMessage(ChatColor.GOLD + "Settings: " + ChatColor.WHITE + settings.toString());
+                }
+            }
+            if (!changes.isEmpty() && _writer.isCurrent(getWorldSettings(changes))) {
+                sender.sendMessage(ChatColor.GOLD + "spigot.yml already holds the pending settings.");
+            }
+            long now = System.currentTimeMillis();
+            for (ScheduleProfile profile : CONFIG.PROFILE_WORLDS.keySet()) {
+                ScheduleSnapshot snapshot = profile.getSnapshot();
+                ScheduleIndex index = snapshot.getIndex();
+                ViewDistanceChange next = index.next(now);
+                if (next != null) {
+                    ZonedDateTime nextTime = Instant.ofEpochMilli(index.nextTime(now)).atZone(snapshot.getZone());
+                    sender.sendMessage(ChatColor.GOLD + "Next scheduled change" + getProfileLabel(profile) + " at " +
+                                       ChatColor.YELLOW + nextTime.format(NEXT_CHANGE_FORMAT) +
+                                       ChatColor.WHITE + ": " + next.getViewDistance());
+                }
             }
             return true;
         }
@@ -99,6 +272,20 @@ public class DVDA extends JavaPlugin {
 
         saveDefaultConfig();
         CONFIG.reload();
+        getServer().getPluginManager().registerEvents(_stats, this);
+        getServer().getPluginManager().registerEvents(_players, this);
+        getServer().getPluginManager().registerEvents(_grid, this);
+        getServer().getPluginManager().registerEvents(_allocator, this);
+        configureTasks();
+        if (_timeline.isOpen()) {
+            _timeline.recordRestart(PerformanceTimeline.STARTUP, getServer().getViewDistance());
+        }
+        Bukkit.getScheduler().runTaskTimer(this, _sampler, 1, 1);
+
+        File serverDir = getDataFolder().getParentFile().getParentFile();
+        _writer = new SpigotConfigWriter(new File(serverDir, "spigot.yml"), new File(serverDir, "spigot.yml.dvda-backup"));
+        reconcile();
+        Bukkit.getScheduler().runTaskTimer(this, this::preparePendingChange, PREPARE_PERIOD_TICKS, PREPARE_PERIOD_TICKS);
     }
 
     // ------------------------------------------------------------------------
@@ -107,34 +294,331 @@ public class DVDA extends JavaPlugin {
      */
     @Override
     public void onDisable() {
-        ViewDistanceChange change = getChange(_startTime, Instant.now());
-        if (change != null) {
-            applyChange(change);
+        // All profiles are written to spigot.yml in a single save. The timeline
+        // records the change of the profile of the first adjusted world.
+        Map<ScheduleProfile, ViewDistanceChange> changes = getPendingChanges();
+        if (!changes.isEmpty()) {
+            applyChanges(changes);
+        }
+        _timeline.recordRestart(PerformanceTimeline.SHUTDOWN,
+                                changes.isEmpty() ? getServer().getViewDistance()
+                                                  : changes.values().iterator().next().getViewDistance());
+        _timeline.close();
+        _histogram.close();
+        if (CONFIG.RESTART_ENABLED) {
+            _planner.recordUptime(_startTime.toEpochMilli(), System.currentTimeMillis());
+        }
+        if (_pregenTask != null) {
+            _pregen.save(false);
         }
+        _shedder.stop();
+        _cluster.stop();
+        BufferedMessageSink.shutdown(SHUTDOWN_FLUSH_MILLIS);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Apply the specified {@link ViewDistanceChange} to the Spigot
-     * configuration.
+     * Return the changes that would be applied if the server stopped now.
+     *
+     * Each schedule profile that applies to an adjusted world is resolved
+     * once, however many worlds follow it. The result is cached until the
+     * next scheduled change of any profile falls due, and for at most
+     * {@link #PREPARE_PERIOD_TICKS}, so that /view-distance and shutdown do
+     * not repeat the computation.
+     *
+     * @return a map from profile to pending change, in the order of
+     *         {@link Configuration#PROFILE_WORLDS}, omitting profiles whose
+     *         view distance will not change.
      */
-    private void applyChange(ViewDistanceChange change) {
-        getLogger().info("Setting the view distance to " + change.getViewDistance());
-        YamlConfiguration config = Bukkit.getServer().spigot().getConfig();
-        try {
-            File serverDir = getDataFolder().getParentFile().getParentFile();
-            File configFile = new File(serverDir, "spigot.yml");
-            File backupFile = new File(serverDir, "spigot.yml.dvda-backup");
-            if (!backupFile.exists()) {
-                configFile.renameTo(backupFile);
-                config.save(configFile);
+    private Map<ScheduleProfile, ViewDistanceChange> getPendingChanges() {
+        long now = System.currentTimeMillis();
+        if (now >= _pendingValidUntil) {
+            Map<ScheduleProfile, ViewDistanceChange> changes = new LinkedHashMap<ScheduleProfile, ViewDistanceChange>();
+            long expiry = now + PREPARE_PERIOD_TICKS * 50;
+            for (Map.Entry<ScheduleProfile, List<World>> entry : CONFIG.PROFILE_WORLDS.entrySet()) {
+                ScheduleIndex index = entry.getKey().getIndex();
+                ViewDistanceChange change = computePendingChange(index, entry.getValue().get(0));
+                if (change != null) {
+                    changes.put(entry.getKey(), change);
+                }
+                long next = index.nextTime(now);
+                if (next >= 0) {
+                    expiry = Math.min(next, expiry);
+                }
             }
+            _pendingChanges = changes;
+            _pendingValidUntil = expiry;
+        }
+        return _pendingChanges;
+    }
 
-            for (World world : CONFIG.WORLDS) {
-                config.set("world-settings." + world.getName() + ".view-distance", change.getViewDistance());
+    // ------------------------------------------------------------------------
+    /**
+     * Compute the change of one schedule profile that would be applied if the
+     * server stopped now.
+     *
+     * In restart-aware mode, the change is chosen to suit the whole of the
+     * predicted next uptime. In adaptive mode, the scheduled change is
+     * adjusted according to the measured tick rate.
+     *
+     * @param index the index of the profile's schedule.
+     * @param world the first adjusted world following the profile, whose
+     *        current view distance is used in adaptive mode.
+     * @return the pending change, or null if the view distance will not change.
+     */
+    private ViewDistanceChange computePendingChange(ScheduleIndex index, World world) {
+        ViewDistanceChange change;
+        if (CONFIG.RESTART_ENABLED) {
+            long now = System.currentTimeMillis();
+            change = _planner.plan(index, now, _planner.predictRestart(now));
+        } else {
+            change = getChange(index, _startTime, Instant.now());
+        }
+        if (CONFIG.ADAPTIVE_ENABLED) {
+            change = _controller.decide(getViewDistance(world), change);
+        }
+        return change;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Configure repeating tasks according to the current configuration.
+     *
+     * The tick rate sampling windows are resized and live view distance
+     * changes, per-player view distances, statistics collection, player
+     * count recording and chunk pre-generation are started or stopped.
+     */
+    private void configureTasks() {
+        _sampler.configure(CONFIG.ADAPTIVE_SHORT_WINDOW_SECONDS * 20, CONFIG.ADAPTIVE_LONG_WINDOW_SECONDS * 20);
+        _allocator.configure(CONFIG.WORLDS);
+
+        if (_liveTask != null) {
+            _liveTask.cancel();
+            _liveTask = null;
+        }
+        if (CONFIG.LIVE_ENABLED) {
+            if (LiveViewDistance.isSupported()) {
+                long period = CONFIG.LIVE_INTERVAL_SECONDS * 20L;
+                _liveTask = Bukkit.getScheduler().runTaskTimer(this, new LiveViewDistance(), period, period);
+            } else {
+                getLogger().warning("This server does not support live view distance changes. " +
+                                    "The view distance will be changed in spigot.yml when the server stops.");
+            }
+        }
+
+        if (_playersTask != null) {
+            _playersTask.cancel();
+            _playersTask = null;
+        }
+        _players.stop();
+        _grid.stop();
+        if (CONFIG.PLAYERS_ENABLED) {
+            if (PlayerViewDistance.isSupported()) {
+                if (CONFIG.PLAYERS_HOTSPOTS_ENABLED) {
+                    _grid.start();
+                }
+                _players.start();
+                _playersTask = Bukkit.getScheduler().runTaskTimer(this, _players, 1, 1);
+            } else {
+                getLogger().warning("This server does not support per-player view distances.");
+            }
+        }
+
+        if (_statsTask != null) {
+            _statsTask.cancel();
+            _statsTask = null;
+        }
+        if (CONFIG.STATS_ENABLED) {
+            _stats.configure(CONFIG.WORLDS);
+            _statsTask = Bukkit.getScheduler().runTaskTimer(this, _stats, 20, 20);
+        } else {
+            _stats.configure(Collections.<World> emptyList());
+        }
+
+        if (_histogramTask != null) {
+            _histogramTask.cancel();
+            _histogramTask = null;
+        }
+        _histogram.close();
+        _histogram.setZone(DaySchedule.getZone());
+        if (CONFIG.HISTOGRAM_ENABLED) {
+            try {
+                _histogram.open(new File(getDataFolder(), HISTOGRAM_FILE));
+                long period = CONFIG.HISTOGRAM_SAMPLE_SECONDS * 20L;
+                _histogramTask = Bukkit.getScheduler().runTaskTimer(this, _histogram, period, period);
+            } catch (IOException ex) {
+                getLogger().warning("Unable to open player count histogram: " + ex.getMessage());
+            }
+        }
+
+        if (_timelineTask != null) {
+            _timelineTask.cancel();
+            _timelineTask = null;
+        }
+        _timeline.close();
+        if (CONFIG.TIMELINE_ENABLED) {
+            try {
+                _timeline.open(new File(getDataFolder(), TIMELINE_FILE),
+                               PerformanceTimeline.getCapacity(CONFIG.TIMELINE_DAYS, CONFIG.TIMELINE_INTERVAL_MINUTES));
+                _timeline.start(CONFIG.TIMELINE_INTERVAL_MINUTES);
+                _timelineTask = Bukkit.getScheduler().runTaskTimer(this, _timeline, PerformanceTimeline.SAMPLE_TICKS,
+                                                                   PerformanceTimeline.SAMPLE_TICKS);
+            } catch (IOException ex) {
+                getLogger().warning("Unable to open the timeline: " + ex.getMessage());
+            }
+        }
+
+        if (_pregenTask != null) {
+            _pregenTask.cancel();
+            _pregenTask = null;
+            _pregen.save(false);
+        }
+        if (CONFIG.PREGEN_ENABLED) {
+            _pregen.load(new File(getDataFolder(), PREGEN_FILE));
+            _pregenTask = Bukkit.getScheduler().runTaskTimer(this, _pregen, 1, 1);
+        }
+
+        if (CONFIG.RESTART_ENABLED) {
+            _planner.load(new File(getDataFolder(), UPTIMES_FILE));
+        }
+
+        if (_clusterTask != null) {
+            _clusterTask.cancel();
+            _clusterTask = null;
+        }
+        _cluster.stop();
+        if (CONFIG.CLUSTER_ENABLED) {
+            if (CONFIG.CLUSTER_NODE_ID.isEmpty() || CONFIG.CLUSTER_DIRECTORY.isEmpty()) {
+                getLogger().warning("cluster.node-id and cluster.directory must be set to enable coordination.");
+            } else {
+                try {
+                    _cluster.start(new File(CONFIG.CLUSTER_DIRECTORY), CONFIG.CLUSTER_NODE_ID);
+                    long period = CONFIG.CLUSTER_PUBLISH_SECONDS * 20L;
+                    _clusterTask = Bukkit.getScheduler().runTaskTimer(this, _cluster, 1, period);
+                } catch (IOException ex) {
+                    getLogger().warning("Unable to start cluster coordination: " + ex.getMessage());
+                }
+            }
+        }
+
+        if (_shedderTask != null) {
+            _shedderTask.cancel();
+            _shedderTask = null;
+        }
+        _shedder.stop();
+        if (CONFIG.EMERGENCY_ENABLED) {
+            if (LiveViewDistance.isSupported()) {
+                _shedder.start();
+                _shedderTask = Bukkit.getScheduler().runTaskTimer(this, _shedder, 1, 1);
+            } else {
+                getLogger().warning("This server does not support live view distance changes, " +
+                                    "so emergency load shedding is disabled.");
+            }
+        }
+
+        if (_estimatorTask != null) {
+            _estimatorTask.cancel();
+            _estimatorTask = null;
+        }
+        _estimator.stop();
+        if (CONFIG.ESTIMATE_ENABLED) {
+            _estimator.start();
+            _estimatorTask = Bukkit.getScheduler().runTaskTimer(this, _estimator, 1, 1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reload the configuration without stalling the main thread.
+     *
+     * The configuration file is read and the schedules are parsed and compiled
+     * asynchronously. The result is then applied on the main thread, where
+     * the new schedule snapshot is published in a single step and tasks are
+     * reconfigured.
+     *
+     * @param sink the MessageSink to report to.
+     */
+    private void reload(MessageSink sink) {
+        File configFile = new File(getDataFolder(), "config.yml");
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            FileConfiguration config;
+            try (InputStream defaults = getResource("config.yml")) {
+                config = Configuration.load(configFile, (defaults != null)
+                    ? new InputStreamReader(defaults, StandardCharsets.UTF_8)
+                    : null);
+            } catch (IOException ex) {
+                getLogger().warning("Unable to read default configuration: " + ex.getMessage());
+                config = Configuration.load(configFile, null);
             }
-            config.save(configFile);
+            FileConfiguration loaded = config;
+            ScheduleSnapshot schedule = DaySchedule.parse(config.getConfigurationSection("schedule"));
+            List<ScheduleProfile> profiles = ScheduleProfile.parseAll(config.getConfigurationSection("profiles"));
+            Bukkit.getScheduler().runTask(this, () -> {
+                CONFIG.apply(loaded, schedule, profiles, Bukkit::getWorld);
+                configureTasks();
+                _pendingValidUntil = 0;
+                sink.accept(ChatColor.GOLD + getName() + " configuration reloaded (schedule version " +
+                            schedule.getVersion() + ").");
+            });
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Derive a weekly schedule from the player count histogram, list it to the
+     * sink and save it in the plugin's data folder so that it can be copied
+     * into the configuration.
+     *
+     * @param sink the MessageSink to report to.
+     */
+    private void deriveSchedule(MessageSink sink) {
+        if (!CONFIG.HISTOGRAM_ENABLED) {
+            sink.accept(ChatColor.RED + "Player count recording is not enabled.");
+            return;
+        }
+
+        List<List<ViewDistanceChange>> days = _histogram.deriveSchedule(CONFIG.HISTOGRAM_DERIVE_THRESHOLD,
+                                                                        CONFIG.HISTOGRAM_DERIVE_MINUTES,
+                                                                        CONFIG.HISTOGRAM_DERIVE_PEAK_VIEW_DISTANCE,
+                                                                        CONFIG.HISTOGRAM_DERIVE_OFF_PEAK_VIEW_DISTANCE);
+        YamlConfiguration derived = new YamlConfiguration();
+        sink.accept(ChatColor.GOLD + "Derived schedule:");
+        for (DayOfWeek day : DayOfWeek.values()) {
+            List<ViewDistanceChange> changes = days.get(day.ordinal());
+            String key = day.getDisplayName(TextStyle.SHORT, Locale.US);
+            derived.set("schedule." + key, changes.stream().map(ViewDistanceChange::toString).collect(Collectors.toList()));
+
+            DaySchedule schedule = new DaySchedule();
+            changes.forEach(schedule::add);
+            sink.accept(key + ":");
+            schedule.list(sink);
+        }
+
+        File derivedFile = new File(getDataFolder(), DERIVED_SCHEDULE_FILE);
+        try {
+            derived.save(derivedFile);
+            sink.accept(ChatColor.GOLD + "Saved to " + derivedFile.getPath() + ".");
+        } catch (IOException ex) {
+            sink.accept(ChatColor.RED + "Unable to save " + derivedFile.getPath() + ": " + ex.getMessage());
+        }
+    }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the specified {@link ViewDistanceChange}s of each schedule profile
+     * to the Spigot configuration, in a single save.
+     *
+     * @param changes a map from profile to change.
+     */
+    private void applyChanges(Map<ScheduleProfile, ViewDistanceChange> changes) {
+        try {
+            Map<String, WorldSettings> settings = getWorldSettings(changes);
+            if (_writer.isCurrent(settings)) {
+                return;
+            }
+            if (_writer.write(settings)) {
+                getLogger().info("Set the view distance: " + settings);
+            }
         } catch (Exception ex) {
             getLogger().info("Exception updating view distance: " + ex.getMessage());
         }
@@ -142,43 +626,158 @@ public class DVDA extends JavaPlugin {
 
     // ------------------------------------------------------------------------
     /**
-     * Apply the last view distance change between the specified Instants.
+     * Check spigot.yml against the schedule off the main thread, at startup.
+     *
+     * For each schedule profile, the settings of the pending change, or if
+     * there is none, of the change in force, are compared with the
+     * world-settings section of spigot.yml. If spigot.yml already holds them,
+     * a shutdown without a further change does no I/O; otherwise, the updated
+     * contents are prepared. A stale backup of spigot.yml is also refreshed.
      */
-    private static ViewDistanceChange getChange(Instant startTime, Instant endTime) {
-        ZonedDateTime zonedStartTime = startTime.atZone(ZoneId.systemDefault());
-        ZonedDateTime zonedEndTime = endTime.atZone(ZoneId.systemDefault());
-        LocalDate endDate = LocalDate.from(zonedEndTime);
-        DayOfWeek startDay = zonedStartTime.getDayOfWeek();
-        DayOfWeek endDay = zonedEndTime.getDayOfWeek();
-        DaySchedule endSchedule = DaySchedule.of(endDay);
-        ViewDistanceChange change = findLastChange(endSchedule, endDate, zonedStartTime, zonedEndTime);
-        if (change == null && startDay != endDay) {
-            DaySchedule startSchedule = DaySchedule.of(startDay);
-            LocalDate startDate = LocalDate.from(zonedStartTime);
-            change = findLastChange(startSchedule, startDate, zonedStartTime, zonedEndTime);
+    private void reconcile() {
+        Map<ScheduleProfile, ViewDistanceChange> changes = new LinkedHashMap<ScheduleProfile, ViewDistanceChange>();
+        Map<ScheduleProfile, ViewDistanceChange> pending = getPendingChanges();
+        long now = System.currentTimeMillis();
+        for (ScheduleProfile profile : CONFIG.PROFILE_WORLDS.keySet()) {
+            ViewDistanceChange change = pending.get(profile);
+            if (change == null) {
+                change = profile.getIndex().inForce(now);
+            }
+            if (change != null) {
+                changes.put(profile, change);
+            }
         }
-        return change;
+        Map<String, WorldSettings> settings = !changes.isEmpty() ? getWorldSettings(changes) : null;
+        _preparing = settings;
+        MessageSink log = MessageSink.buffered(getLogger());
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            try {
+                if (_writer.refreshBackup()) {
+                    log.accept("spigot.yml has been edited since spigot.yml.dvda-backup was made. " +
+                               "The backup has been updated to include those edits.");
+                }
+                if (settings != null) {
+                    if (_writer.reconcile(settings)) {
+                        log.accept("spigot.yml matches the schedule: " + settings);
+                    } else {
+                        log.accept("spigot.yml differs from the schedule, which sets: " + settings);
+                    }
+                }
+            } catch (IOException ex) {
+                getLogger().warning("Unable to check spigot.yml: " + ex.getMessage());
+            }
+        });
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Find the last entry in the schedule that falls between the start and end
-     * time, or null if there is no matching entry.
+     * Prepare the contents of spigot.yml for the pending change off the main
+     * thread, if the pending change differs from that last prepared.
      */
-    private static ViewDistanceChange findLastChange(DaySchedule schedule, LocalDate date,
-                                                     ZonedDateTime startTime, ZonedDateTime endTime) {
-        Iterator<ViewDistanceChange> it = schedule.reversed();
-        while (it.hasNext()) {
-            ViewDistanceChange entry = it.next();
-            ZonedDateTime entryTime = ZonedDateTime.of(date, entry.getTime(), ZoneId.systemDefault());
-            if (entryTime.isBefore(endTime)) {
-                if (entryTime.isAfter(startTime)) {
-                    return entry;
+    private void preparePendingChange() {
+        Map<ScheduleProfile, ViewDistanceChange> changes = getPendingChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+        Map<String, WorldSettings> settings = getWorldSettings(changes);
+        if (!settings.equals(_preparing)) {
+            _preparing = settings;
+            Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+                try {
+                    _writer.prepare(settings);
+                } catch (IOException ex) {
+                    getLogger().warning("Unable to prepare spigot.yml: " + ex.getMessage());
+                }
+            });
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the settings of each adjusted world after the specified changes.
+     *
+     * @param changes a map from schedule profile to change; worlds following
+     *        a profile that is absent from the map are omitted.
+     * @return a map from world name to settings.
+     */
+    private Map<String, WorldSettings> getWorldSettings(Map<ScheduleProfile, ViewDistanceChange> changes) {
+        Map<String, WorldSettings> settings = new LinkedHashMap<String, WorldSettings>();
+        for (Map.Entry<ScheduleProfile, List<World>> entry : CONFIG.PROFILE_WORLDS.entrySet()) {
+            ViewDistanceChange change = changes.get(entry.getKey());
+            if (change != null) {
+                for (World world : entry.getValue()) {
+                    settings.put(world.getName(), WorldSettings.of(change, getTargetViewDistance(world, change)));
                 }
-                break;
             }
         }
-        return null;
+        return settings;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of a schedule profile for display after a description
+     * of a change, or an empty string if no profiles are configured.
+     *
+     * @param profile the profile.
+     * @return the label.
+     */
+    private static String getProfileLabel(ScheduleProfile profile) {
+        return CONFIG.PROFILES.isEmpty() ? "" : " (" + profile.getName() + ")";
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the spatial index of players used to limit view distances in
+     * regions and hotspots.
+     *
+     * @return the PlayerGrid.
+     */
+    public PlayerGrid getPlayerGrid() {
+        return _grid;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the emergency load shedder.
+     *
+     * @return the LoadShedder.
+     */
+    public LoadShedder getLoadShedder() {
+        return _shedder;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the view distance of the specified world after a change.
+     *
+     * If the change specifies a chunk budget, the world's share of the budget
+     * determines the view distance. When coordinating with a cluster, the
+     * view distance is also limited to this server's allocation, and when a
+     * heap ceiling is configured, to the largest view distance whose projected
+     * heap use fits under it.
+     *
+     * @param world the world.
+     * @param change the change.
+     * @return the view distance.
+     */
+    public int getTargetViewDistance(World world, ViewDistanceChange change) {
+        return Math.min(Math.min(_allocator.getViewDistance(world, change), _cluster.getCeiling()),
+                        _estimator.getCeiling());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the last view distance change in a schedule between the
+     * specified Instants.
+     *
+     * @param index the index of the schedule.
+     * @param startTime the start of the period.
+     * @param endTime the end of the period.
+     * @return the last change strictly between the two times, or null if there
+     *         is none.
+     */
+    private static ViewDistanceChange getChange(ScheduleIndex index, Instant startTime, Instant endTime) {
+        return index.findLast(startTime.toEpochMilli(), endTime.toEpochMilli());
     }
 
     // ------------------------------------------------------------------------
@@ -200,11 +799,153 @@ public class DVDA extends JavaPlugin {
      */
     protected Instant _startTime;
 
+    /**
+     * Measures the tick rate.
+     */
+    protected TickSampler _sampler = new TickSampler();
+
+    /**
+     * Chooses the view distance according to the tick rate in adaptive mode.
+     */
+    protected AdaptiveController _controller = new AdaptiveController(_sampler);
+
+    /**
+     * Records peak player counts by time of the week.
+     */
+    protected PlayerCountHistogram _histogram = new PlayerCountHistogram();
+
+    /**
+     * Writes view distances to spigot.yml.
+     */
+    protected SpigotConfigWriter _writer;
+
+    /**
+     * The world settings most recently passed to the writer for preparation.
+     */
+    protected Map<String, WorldSettings> _preparing;
+
+    /**
+     * The cached result of {@link #getPendingChanges()}.
+     */
+    protected Map<ScheduleProfile, ViewDistanceChange> _pendingChanges = Collections.emptyMap();
+
+    /**
+     * The time, in milliseconds since the epoch, until which _pendingChanges
+     * is valid.
+     */
+    protected long _pendingValidUntil;
+
+    /**
+     * Repeating task that applies the schedule to running worlds, or null if
+     * not enabled.
+     */
+    protected BukkitTask _liveTask;
+
+    /**
+     * Sets per-player view distances.
+     */
+    protected PlayerViewDistance _players = new PlayerViewDistance();
+
+    /**
+     * Repeating task that evaluates per-player view distances, or null if not
+     * enabled.
+     */
+    protected BukkitTask _playersTask;
+
+    /**
+     * Indexes player locations to detect hotspots.
+     */
+    protected PlayerGrid _grid = new PlayerGrid();
+
+    /**
+     * Collects chunk load pressure statistics.
+     */
+    protected ChunkLoadStats _stats = new ChunkLoadStats();
+
+    /**
+     * Repeating task that snapshots and flushes statistics, or null if not
+     * collecting statistics.
+     */
+    protected BukkitTask _statsTask;
+
+    /**
+     * Divides chunk budgets between worlds.
+     */
+    protected ChunkBudgetAllocator _allocator = new ChunkBudgetAllocator(_stats);
+
+    /**
+     * Repeating task that records player counts, or null if not recording.
+     */
+    protected BukkitTask _histogramTask;
+
+    /**
+     * Records the timeline of view distances and performance.
+     */
+    protected PerformanceTimeline _timeline = new PerformanceTimeline();
+
+    /**
+     * Repeating task that samples the timeline, or null if not enabled.
+     */
+    protected BukkitTask _timelineTask;
+
+    /**
+     * Pre-generates chunks ahead of scheduled view distance increases.
+     */
+    protected ChunkPregenerator _pregen = new ChunkPregenerator(_sampler);
+
+    /**
+     * Repeating task that pre-generates chunks, or null if not enabled.
+     */
+    protected BukkitTask _pregenTask;
+
+    /**
+     * Chooses the view distance for the next uptime in restart-aware mode.
+     */
+    protected RestartPlanner _planner = new RestartPlanner(_histogram);
+
+    /**
+     * Drops the live view distance on sustained lag spikes.
+     */
+    protected LoadShedder _shedder = new LoadShedder();
+
+    /**
+     * Repeating task that records ticks for the load shedding watchdog, or
+     * null if not enabled.
+     */
+    protected BukkitTask _shedderTask;
+
+    /**
+     * Coordinates view distances with other servers.
+     */
+    protected ClusterCoordinator _cluster = new ClusterCoordinator(_sampler);
+
+    /**
+     * Repeating task that exchanges records with other servers, or null if
+     * not enabled.
+     */
+    protected BukkitTask _clusterTask;
+
+    /**
+     * Estimates the heap use of loaded chunks.
+     */
+    protected MemoryEstimator _estimator = new MemoryEstimator();
+
+    /**
+     * Repeating task that samples loaded chunks, or null if not enabled.
+     */
+    protected BukkitTask _estimatorTask;
+
     // ------------------------------------------------------------------------
     /**
-     * Interactive test.
+     * Interactive test, or, if any arguments are given, run the
+     * {@link Simulator} with those arguments.
      */
     public static void main(String[] args) {
+        if (args.length != 0) {
+            Simulator.main(args);
+            return;
+        }
+
         Instant now = Instant.now();
         ZonedDateTime zonedNow = ZonedDateTime.ofInstant(now, ZoneId.systemDefault());
         LocalDate todaysDate = LocalDate.from(zonedNow);
@@ -212,14 +953,19 @@ public class DVDA extends JavaPlugin {
         LocalDate startDate = todaysDate.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
         LocalDate endDate = startDate.plusDays(1);
 
-        DaySchedule.getDefault().load(MessageSink.STDOUT, Arrays.asList("02:30 10", "16:00 6", "23:30 4"));
-        DaySchedule.create(DayOfWeek.MONDAY).load(MessageSink.STDOUT, Arrays.asList("02:00 12", "16:00 6"));
+        DaySchedule defaultSchedule = new DaySchedule();
+        defaultSchedule.load(MessageSink.STDOUT, Arrays.asList("02:30 10", "16:00 6", "23:30 4"));
+        DaySchedule monday = new DaySchedule();
+        monday.load(MessageSink.STDOUT, Arrays.asList("02:00 12", "16:00 6"));
+        DaySchedule.publish(new ScheduleSnapshot(1, defaultSchedule, Collections.singletonMap(DayOfWeek.MONDAY, monday),
+                                                 Collections.<DateRule> emptyList(), ZoneId.systemDefault(),
+                                                 new ValidationReport()));
         DaySchedule.listAll(MessageSink.STDOUT);
         ZonedDateTime startTime = ZonedDateTime.of(startDate, LocalTime.of(23, 0), ZoneId.systemDefault());
         ZonedDateTime endTime = ZonedDateTime.of(endDate, LocalTime.of(03, 0), ZoneId.systemDefault());
 
         System.out.println("Start: " + startTime.format(DateTimeFormatter.RFC_1123_DATE_TIME));
         System.out.println("End: " + endTime.format(DateTimeFormatter.RFC_1123_DATE_TIME));
-        System.out.println("Change: " + getChange(startTime.toInstant(), endTime.toInstant()));
+        System.out.println("Change: " + getChange(DaySchedule.getIndex(), startTime.toInstant(), endTime.toInstant()));
     }
 } // class DVDA
\ No newline at end of file
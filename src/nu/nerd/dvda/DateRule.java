@@ -0,0 +1,144 @@
+package nu.nerd.dvda;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+// ----------------------------------------------------------------------------
+/**
+ * A schedule that overrides the day of the week schedules on a specific date
+ * or range of dates, such as a holiday or an event.
+ *
+ * Where rules overlap, the rule with the highest priority applies, and between
+ * rules of equal priority, the one spanning the fewest days.
+ */
+public class DateRule {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param name the name of the rule in the configuration.
+     * @param from the first date when the rule applies.
+     * @param to the last date when the rule applies.
+     * @param priority the priority; higher priority rules take precedence.
+     * @param schedule the schedule on each date covered by the rule.
+     */
+    public DateRule(String name, LocalDate from, LocalDate to, int priority, DaySchedule schedule) {
+        _name = name;
+        _from = from;
+        _to = to;
+        _priority = priority;
+        _schedule = schedule;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this rule applies on the specified date.
+     *
+     * @param date the date.
+     * @return true if this rule applies on the date.
+     */
+    public boolean covers(LocalDate date) {
+        return !date.isBefore(_from) && !date.isAfter(_to);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this rule takes precedence over another rule covering the
+     * same date.
+     *
+     * @param other the other rule, or null.
+     * @return true if this rule takes precedence.
+     */
+    public boolean overrides(DateRule other) {
+        if (other == null || _priority != other._priority) {
+            return other == null || _priority > other._priority;
+        }
+        return getDays() < other.getDays();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of days covered by this rule.
+     *
+     * @return the number of days covered by this rule.
+     */
+    public long getDays() {
+        return ChronoUnit.DAYS.between(_from, _to) + 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the rule.
+     *
+     * @return the name of the rule.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the first date when the rule applies.
+     *
+     * @return the first date when the rule applies.
+     */
+    public LocalDate getFrom() {
+        return _from;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the last date when the rule applies.
+     *
+     * @return the last date when the rule applies.
+     */
+    public LocalDate getTo() {
+        return _to;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the priority.
+     *
+     * @return the priority.
+     */
+    public int getPriority() {
+        return _priority;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the schedule on each date covered by the rule.
+     *
+     * @return the schedule.
+     */
+    public DaySchedule getSchedule() {
+        return _schedule;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the rule in the configuration.
+     */
+    protected String _name;
+
+    /**
+     * The first date when the rule applies.
+     */
+    protected LocalDate _from;
+
+    /**
+     * The last date when the rule applies.
+     */
+    protected LocalDate _to;
+
+    /**
+     * The priority; higher priority rules take precedence.
+     */
+    protected int _priority;
+
+    /**
+     * The schedule on each date covered by the rule.
+     */
+    protected DaySchedule _schedule;
+} // class DateRule
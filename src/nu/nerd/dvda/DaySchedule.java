@@ -1,13 +1,22 @@
 package nu.nerd.dvda;
 
+import java.time.DateTimeException;
 import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bukkit.ChatColor;
 import org.bukkit.configuration.ConfigurationSection;
@@ -17,46 +26,53 @@ import org.bukkit.configuration.ConfigurationSection;
  * Stores scheduled configuration adjustments for one day of the week or the
  * default day, which applies on any day when a specific overriding schedule has
  * not been specified.
+ *
+ * Schedules can also be attached to specific dates or date ranges by
+ * {@link DateRule}s, which take precedence over the day of the week.
  */
 public class DaySchedule {
     // ------------------------------------------------------------------------
     /**
-     * Return the default DaySchedule.
+     * Return the current schedule snapshot of the default profile.
      *
-     * @return the default DaySchedule.
+     * @return the current ScheduleSnapshot.
+     * @see ScheduleProfile#getSnapshot()
      */
-    public static DaySchedule getDefault() {
-        return _default;
+    public static ScheduleSnapshot getSnapshot() {
+        return ScheduleProfile.DEFAULT.getSnapshot();
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return the DaySchedule of the specified day of the week.
+     * Publish a new schedule snapshot for the default profile, replacing the
+     * current one.
      *
-     * @param day the day.
-     * @return the DaySchedule.
+     * @param snapshot the snapshot.
      */
-    public static DaySchedule of(DayOfWeek day) {
-        return _dayToSchedule.getOrDefault(day, _default);
+    public static void publish(ScheduleSnapshot snapshot) {
+        ScheduleProfile.DEFAULT.publish(snapshot);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return a non-default schedule for the specified day.
+     * Return the default DaySchedule of the current snapshot.
      *
-     * If a specific (not the default) schedule for the day already exists,
-     * return that. Otherwise, create a new empty schedule and associate it with
-     * the specified day.
+     * @return the default DaySchedule.
+     */
+    public static DaySchedule getDefault() {
+        return getSnapshot().getDefault();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the DaySchedule of the specified day of the week in the current
+     * snapshot.
      *
-     * @param day the day of the week.
+     * @param day the day.
+     * @return the DaySchedule.
      */
-    public static DaySchedule create(DayOfWeek day) {
-        DaySchedule schedule = _dayToSchedule.get(day);
-        if (schedule == null) {
-            schedule = new DaySchedule();
-            _dayToSchedule.put(day, schedule);
-        }
-        return schedule;
+    public static DaySchedule of(DayOfWeek day) {
+        return getSnapshot().of(day);
     }
 
     // ------------------------------------------------------------------------
@@ -64,42 +80,206 @@ public class DaySchedule {
      * Load the default schedule and the schedule overrides for all days
      * specified in the configuration section.
      *
+     * All problems found in the section are collected and listed to the sink
+     * together. Malformed entries are skipped and, where several entries in
+     * one schedule have the same time, the first takes effect.
+     *
      * @param sink the MessageSink to log to.
      * @param schedule the configuration section, which contains a string list
      *        called "default" for the default schedule, and optional overriding
      *        schedules for specific days, in the form of string lists named
-     *        "Mon", "Tue", "Wed" etc.
+     *        "Mon", "Tue", "Wed" etc. It may also contain a "zone" string, a
+     *        "dates" section of string lists keyed by date or date range
+     *        ("YYYY-MM-DD" or "YYYY-MM-DD/YYYY-MM-DD") and an "events" section
+     *        of named rules with "from", "to", "priority" and "schedule" keys.
+     * @return the report of all problems found.
+     */
+    public static ValidationReport loadAll(MessageSink sink, ConfigurationSection schedule) {
+        ScheduleSnapshot snapshot = parse(schedule);
+        publish(snapshot);
+        snapshot.getReport().list(sink);
+        return snapshot.getReport();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse and compile the schedules in the configuration section into a new
+     * snapshot with the next version number, without publishing it.
+     *
+     * This does not use any Bukkit state and can be called off the main
+     * thread.
+     *
+     * @param schedule the configuration section; see
+     *        {@link #loadAll(MessageSink, ConfigurationSection)}.
+     * @return the snapshot, including a report of all problems found.
      */
-    public static void loadAll(MessageSink sink, ConfigurationSection schedule) {
-        _default = new DaySchedule();
-        _dayToSchedule.clear();
+    public static ScheduleSnapshot parse(ConfigurationSection schedule) {
+        ValidationReport report = new ValidationReport();
+        DaySchedule defaultSchedule = new DaySchedule();
+        Map<DayOfWeek, DaySchedule> dayToSchedule = new HashMap<DayOfWeek, DaySchedule>();
+        List<DateRule> rules = new ArrayList<DateRule>();
+        ZoneId zone = ZoneId.systemDefault();
 
-        _default.load(sink, schedule.getStringList("default"));
+        defaultSchedule.load(report, "default", schedule.getStringList("default"));
         for (DayOfWeek day : DayOfWeek.values()) {
             String key = day.getDisplayName(TextStyle.SHORT, Locale.US);
             List<String> entries = schedule.getStringList(key);
             if (!entries.isEmpty()) {
-                create(day).load(sink, entries);
+                DaySchedule daySchedule = new DaySchedule();
+                daySchedule.load(report, key, entries);
+                dayToSchedule.put(day, daySchedule);
             }
         }
+
+        String zoneId = schedule.getString("zone");
+        if (zoneId != null && !zoneId.isEmpty()) {
+            try {
+                zone = ZoneId.of(zoneId);
+            } catch (DateTimeException ex) {
+                report.error("zone", "invalid time zone: " + zoneId);
+            }
+        }
+
+        ConfigurationSection dates = schedule.getConfigurationSection("dates");
+        if (dates != null) {
+            for (String key : dates.getKeys(false)) {
+                try {
+                    String[] range = key.split("/");
+                    LocalDate from = LocalDate.parse(range[0].trim());
+                    LocalDate to = (range.length > 1) ? LocalDate.parse(range[1].trim()) : from;
+                    rules.add(loadRule(report, "dates." + key, from, to, 0, dates.getStringList(key)));
+                } catch (DateTimeException ex) {
+                    report.error("dates." + key, "invalid date or date range");
+                }
+            }
+        }
+
+        ConfigurationSection events = schedule.getConfigurationSection("events");
+        if (events != null) {
+            for (String name : events.getKeys(false)) {
+                ConfigurationSection event = events.getConfigurationSection(name);
+                if (event == null) {
+                    report.error("events." + name, "expecting from, to, priority and schedule");
+                    continue;
+                }
+                try {
+                    LocalDate from = getDate(event, "from");
+                    LocalDate to = event.contains("to") ? getDate(event, "to") : from;
+                    rules.add(loadRule(report, "events." + name, from, to, event.getInt("priority", 0),
+                                       event.getStringList("schedule")));
+                } catch (DateTimeException ex) {
+                    report.error("events." + name, "invalid dates");
+                }
+            }
+        }
+
+        return new ScheduleSnapshot(_versions.incrementAndGet(), defaultSchedule, dayToSchedule, rules, zone, report);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of all scheduled changes in the current snapshot of the
+     * default profile.
+     *
+     * @return the ScheduleIndex.
+     */
+    public static ScheduleIndex getIndex() {
+        return getSnapshot().getIndex();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time zone used to interpret scheduled times in the current
+     * snapshot.
+     *
+     * @return the time zone.
+     */
+    public static ZoneId getZone() {
+        return getSnapshot().getZone();
     }
 
     // ------------------------------------------------------------------------
     /**
-     * List all schedules to the sink.
+     * List all schedules of the default profile to the sink.
      *
      * @param sink the MessageSink to log to.
      */
     public static void listAll(MessageSink sink) {
+        listAll(sink, getSnapshot());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List all schedules in a snapshot to the sink.
+     *
+     * @param sink the MessageSink to log to.
+     * @param snapshot the snapshot.
+     */
+    public static void listAll(MessageSink sink, ScheduleSnapshot snapshot) {
+        sink.accept(ChatColor.GOLD + "Schedule version " + ChatColor.YELLOW + snapshot.getVersion() +
+                    ChatColor.GOLD + ", loaded " + ChatColor.YELLOW +
+                    Instant.ofEpochMilli(snapshot.getLoadedMillis()).atZone(snapshot.getZone()).toLocalDateTime() +
+                    ChatColor.GOLD + ":");
         for (DayOfWeek day : DayOfWeek.values()) {
-            DaySchedule schedule = _dayToSchedule.get(day);
+            DaySchedule schedule = snapshot.getSpecific(day);
             if (schedule != null) {
                 sink.accept(day.getDisplayName(TextStyle.SHORT, Locale.US) + ":");
                 schedule.list(sink);
             }
         }
         sink.accept("default:");
-        getDefault().list(sink);
+        snapshot.getDefault().list(sink);
+        for (DateRule rule : snapshot.getRules()) {
+            sink.accept(rule.getName() + " (" + rule.getFrom() + " to " + rule.getTo() +
+                        ", priority " + rule.getPriority() + "):");
+            rule.getSchedule().list(sink);
+        }
+        if (!snapshot.getZone().equals(ZoneId.systemDefault())) {
+            sink.accept("zone: " + snapshot.getZone().getId());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the date at the specified path in a configuration section.
+     *
+     * Unquoted dates are parsed by the YAML parser as midnight UTC, rather than
+     * as strings.
+     *
+     * @param section the configuration section.
+     * @param path the path of the date.
+     * @return the date.
+     * @throws DateTimeException if the value is missing or not a date.
+     */
+    protected static LocalDate getDate(ConfigurationSection section, String path) {
+        Object value = section.get(path);
+        if (value instanceof Date) {
+            return ((Date) value).toInstant().atZone(ZoneOffset.UTC).toLocalDate();
+        }
+        return LocalDate.parse(String.valueOf(value).trim());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load a date rule.
+     *
+     * @param report the report of problems found.
+     * @param name the name of the rule.
+     * @param from the first date when the rule applies.
+     * @param to the last date when the rule applies.
+     * @param priority the priority of the rule.
+     * @param entries the string list describing the view distance changes.
+     * @return the rule.
+     * @throws DateTimeException if the dates are out of order.
+     */
+    protected static DateRule loadRule(ValidationReport report, String name, LocalDate from, LocalDate to,
+                                       int priority, List<String> entries) {
+        if (to.isBefore(from)) {
+            throw new DateTimeException(to + " is before " + from);
+        }
+        DaySchedule schedule = new DaySchedule();
+        schedule.load(report, name, entries);
+        return new DateRule(name, from, to, priority, schedule);
     }
 
     // ------------------------------------------------------------------------
@@ -110,15 +290,79 @@ public class DaySchedule {
      * @param entries the string list describing the view distance changes.
      */
     public void load(MessageSink sink, List<String> entries) {
-        for (String entry : entries) {
+        ValidationReport report = new ValidationReport();
+        load(report, "schedule", entries);
+        report.list(sink);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the schedule from list of strings, recording all problems found in
+     * a report.
+     *
+     * Malformed entries are skipped. If several entries have the same time,
+     * the first takes effect and the others are reported as duplicates.
+     *
+     * @param report the report of problems found.
+     * @param key the configuration key of the schedule, for the report.
+     * @param entries the string list describing the view distance changes.
+     */
+    public void load(ValidationReport report, String key, List<String> entries) {
+        for (int i = 0; i < entries.size(); ++i) {
+            String entry = entries.get(i);
             try {
-                _entries.add(new ViewDistanceChange(entry));
+                ViewDistanceChange change = ScheduleParser.parse(entry);
+                ViewDistanceChange existing = insert(change);
+                if (existing == null) {
+                    report.entry();
+                } else {
+                    report.duplicate(key, i + 1, entry, existing);
+                }
             } catch (NumberFormatException ex) {
-                sink.accept("Could not parse schedule entry: " + entry);
+                report.error(key, i + 1, entry, ex.getMessage());
             }
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Add a change to the schedule.
+     *
+     * @param change the change.
+     */
+    public void add(ViewDistanceChange change) {
+        insert(change);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert a change in time order, unless there is already a change at the
+     * same time.
+     *
+     * Entries are usually listed in time order, so the common case is an
+     * append.
+     *
+     * @param change the change.
+     * @return the existing change at the same time, or null if the change was
+     *         inserted.
+     */
+    protected ViewDistanceChange insert(ViewDistanceChange change) {
+        int size = _entries.size();
+        int order = (size == 0) ? 1 : change.compareTo(_entries.get(size - 1));
+        if (order > 0) {
+            _entries.add(change);
+            return null;
+        } else if (order == 0) {
+            return _entries.get(size - 1);
+        }
+        int index = Collections.binarySearch(_entries, change);
+        if (index >= 0) {
+            return _entries.get(index);
+        }
+        _entries.add(-index - 1, change);
+        return null;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * List the changes in the schedule to the sink.
@@ -128,10 +372,31 @@ public class DaySchedule {
     public void list(MessageSink sink) {
         for (ViewDistanceChange change : _entries) {
             sink.accept(ChatColor.GOLD + change.getTime().toString() + " " +
-                        ChatColor.YELLOW + change.getViewDistance());
+                        ChatColor.YELLOW + change.getViewDistance() +
+                        (change.hasChunkBudget() ? ChatColor.GOLD + " budget " + ChatColor.YELLOW + change.getChunkBudget() : ""));
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of entries in the schedule.
+     *
+     * @return the number of entries in the schedule.
+     */
+    public int size() {
+        return _entries.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an iterator that visits all entries in order, from first to last.
+     *
+     * @return the entries in order.
+     */
+    public Iterator<ViewDistanceChange> iterator() {
+        return _entries.iterator();
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return an iterator that visits all entries in reverse order, from last to
@@ -140,24 +405,29 @@ public class DaySchedule {
      * @return the entries in reverse order.
      */
     public Iterator<ViewDistanceChange> reversed() {
-        return _entries.descendingIterator();
+        ListIterator<ViewDistanceChange> it = _entries.listIterator(_entries.size());
+        return new Iterator<ViewDistanceChange>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasPrevious();
+            }
+
+            @Override
+            public ViewDistanceChange next() {
+                return it.previous();
+            }
+        };
     }
 
     // ------------------------------------------------------------------------
     /**
-     * The default DaySchedule.
-     */
-    protected static DaySchedule _default = new DaySchedule();
-
-    /**
-     * Schedules that override the default schedule on specific days, indexed by
-     * the day of the week.
+     * Source of snapshot version numbers.
      */
-    protected static Map<DayOfWeek, DaySchedule> _dayToSchedule = new HashMap<DayOfWeek, DaySchedule>();
+    protected static final AtomicLong _versions = new AtomicLong();
 
     /**
-     * Entries in the schedule.
+     * Entries in the schedule, in time order, with no two at the same time.
      */
-    protected TreeSet<ViewDistanceChange> _entries = new TreeSet<ViewDistanceChange>();
+    protected ArrayList<ViewDistanceChange> _entries = new ArrayList<ViewDistanceChange>();
 
 } // class DaySchedule
\ No newline at end of file
@@ -0,0 +1,198 @@
+package nu.nerd.dvda;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.World;
+
+// ----------------------------------------------------------------------------
+/**
+ * Applies scheduled view distance changes to worlds on a running server, on
+ * server implementations that support it.
+ *
+ * The Spigot API that DVDA is built against has no way to change the view
+ * distance of a running world, but newer server APIs add
+ * World.getViewDistance()/setViewDistance(int) and
+ * World.getSimulationDistance()/setSimulationDistance(int). Those methods are
+ * looked up reflectively; if they are absent, this class does nothing and the
+ * change is only applied by rewriting spigot.yml at shutdown.
+ *
+ * Each time this task runs, the view distance of every adjusted world is moved
+ * one chunk towards the scheduled value, so that a large change is spread out
+ * over several intervals rather than loading or unloading many chunk rings at
+ * once.
+ */
+public class LiveViewDistance implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the server supports changing the view distance of a
+     * running world.
+     *
+     * @return true if live view distance changes are supported.
+     */
+    public static boolean isSupported() {
+        return GET_VIEW_DISTANCE != null && SET_VIEW_DISTANCE != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the server supports changing the simulation distance of a
+     * running world.
+     *
+     * @return true if live simulation distance changes are supported.
+     */
+    public static boolean isSimulationDistanceSupported() {
+        return GET_SIMULATION_DISTANCE != null && SET_SIMULATION_DISTANCE != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the live view distance of the specified world.
+     *
+     * @param world the world.
+     * @return the view distance, or -1 if it cannot be determined.
+     */
+    public static int getViewDistance(World world) {
+        return (int) invoke(GET_VIEW_DISTANCE, world, -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the live view distance of the specified world, if supported.
+     *
+     * @param world the world.
+     * @param viewDistance the new view distance.
+     */
+    public static void setViewDistance(World world, int viewDistance) {
+        invoke(SET_VIEW_DISTANCE, world, viewDistance);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move the view distance (and, if configured, the simulation distance) of
+     * every adjusted world one step towards the view distance scheduled by its
+     * profile.
+     *
+     * Each profile's schedule is looked up once for all of its worlds.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        if (!isSupported()) {
+            return;
+        }
+
+        // While load shedding is engaged, it sets the view distance.
+        if (DVDA.PLUGIN.getLoadShedder().isEngaged()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<ScheduleProfile, List<World>> entry : DVDA.CONFIG.PROFILE_WORLDS.entrySet()) {
+            ViewDistanceChange change = entry.getKey().getIndex().inForce(now);
+            if (change != null) {
+                apply(change, entry.getValue());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move the view distance (and, if configured, the simulation distance) of
+     * each of the specified worlds one step towards a scheduled change.
+     *
+     * @param change the change in force.
+     * @param worlds the worlds.
+     */
+    protected void apply(ViewDistanceChange change, List<World> worlds) {
+        for (World world : worlds) {
+            int target = DVDA.PLUGIN.getTargetViewDistance(world, change);
+            int viewDistance = getViewDistance(world);
+            if (viewDistance < 0) {
+                continue;
+            }
+            if (viewDistance != target) {
+                viewDistance += Integer.signum(target - viewDistance);
+                invoke(SET_VIEW_DISTANCE, world, viewDistance);
+            }
+
+            if (DVDA.CONFIG.LIVE_SIMULATION_DISTANCE && isSimulationDistanceSupported()) {
+                int simulationDistance = (int) invoke(GET_SIMULATION_DISTANCE, world, -1);
+                int simulationTarget = Math.min((change.getSimulationDistance() > 0)
+                    ? change.getSimulationDistance()
+                    : target, viewDistance);
+                if (simulationDistance >= 0 && simulationDistance != simulationTarget) {
+                    simulationDistance += Integer.signum(simulationTarget - simulationDistance);
+                    invoke(SET_SIMULATION_DISTANCE, world, simulationDistance);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Invoke a World method reflectively.
+     *
+     * @param method the method, or null if not supported.
+     * @param world the world.
+     * @param arg the int argument of a setter, or the value to return on
+     *        failure for a getter.
+     * @return the result of a getter, or arg if the method is a setter or
+     *         could not be invoked.
+     */
+    protected static Object invoke(Method method, World world, int arg) {
+        if (method == null) {
+            return arg;
+        }
+        try {
+            if (method.getParameterCount() == 0) {
+                return method.invoke(world);
+            } else {
+                method.invoke(world, arg);
+                return arg;
+            }
+        } catch (Exception ex) {
+            DVDA.PLUGIN.getLogger().warning("Unable to call " + method.getName() + " in " + world.getName() +
+                                            ": " + ex.getMessage());
+            return arg;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up a World method, returning null if it doesn't exist.
+     *
+     * @param name the method name.
+     * @param parameterTypes the parameter types.
+     * @return the Method, or null.
+     */
+    protected static Method findMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return World.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * World.getViewDistance(), or null if not supported.
+     */
+    protected static final Method GET_VIEW_DISTANCE = findMethod("getViewDistance");
+
+    /**
+     * World.setViewDistance(int), or null if not supported.
+     */
+    protected static final Method SET_VIEW_DISTANCE = findMethod("setViewDistance", int.class);
+
+    /**
+     * World.getSimulationDistance(), or null if not supported.
+     */
+    protected static final Method GET_SIMULATION_DISTANCE = findMethod("getSimulationDistance");
+
+    /**
+     * World.setSimulationDistance(int), or null if not supported.
+     */
+    protected static final Method SET_SIMULATION_DISTANCE = findMethod("setSimulationDistance", int.class);
+} // class LiveViewDistance
@@ -0,0 +1,258 @@
+package nu.nerd.dvda;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+
+// ----------------------------------------------------------------------------
+/**
+ * Drops the live view distance of the adjusted worlds to an emergency floor as
+ * soon as a sustained lag spike is detected, then restores it one chunk at a
+ * time once the server is stable again.
+ *
+ * This task runs every tick on the main thread, where it only increments a
+ * tick counter and records the time, so it does not allocate. A separate
+ * watchdog thread polls those values once a second to measure the mean time
+ * per tick, including any tick still in progress, so that a stalled main
+ * thread is detected even though no Bukkit task can run. The watchdog
+ * communicates with the main thread through a single atomic ceiling on the
+ * view distance: it lowers the ceiling to the floor when the MSPT has exceeded
+ * the threshold for the configured number of seconds, and raises it by one
+ * after each configured period of stability. The main thread applies the
+ * ceiling on the next tick and releases it once it no longer limits any world.
+ *
+ * While engaged, load shedding takes precedence over the schedule: the live
+ * view distance of each world is the lesser of the ceiling and its scheduled
+ * view distance, and {@link LiveViewDistance} does not move it. Every change
+ * is reported to the console and to online players with the dvda.admin
+ * permission. The view distance written to spigot.yml at shutdown is not
+ * affected.
+ */
+public class LoadShedder implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * The ceiling when load shedding is not engaged.
+     */
+    public static final int NONE = Integer.MAX_VALUE;
+
+    /**
+     * The period between polls of the watchdog thread, in milliseconds.
+     */
+    public static final long POLL_MILLIS = 1000;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start the watchdog thread.
+     */
+    public void start() {
+        stop();
+        _lastTickNanos = System.nanoTime();
+        _polledNanos = _lastTickNanos;
+        _polledTicks = _ticks;
+        _spikeSeconds = 0;
+        _stableSeconds = 0;
+        _watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DVDA load shedding watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _watchdog.scheduleAtFixedRate(this::poll, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the watchdog thread and disengage.
+     *
+     * The live view distances are left as they are, to be restored by
+     * {@link LiveViewDistance}, if enabled.
+     */
+    public void stop() {
+        if (_watchdog != null) {
+            _watchdog.shutdownNow();
+            _watchdog = null;
+        }
+        _ceiling.set(NONE);
+        _appliedCeiling = NONE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if load shedding is engaged.
+     *
+     * @return true if load shedding is engaged.
+     */
+    public boolean isEngaged() {
+        return _appliedCeiling != NONE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ceiling on the view distance currently applied.
+     *
+     * @return the ceiling, or {@link #NONE} if not engaged.
+     */
+    public int getCeiling() {
+        return _appliedCeiling;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the mean time per tick measured by the most recent poll.
+     *
+     * @return the MSPT in milliseconds.
+     */
+    public double getMspt() {
+        return _mspt;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a tick and apply any change to the ceiling made by the watchdog.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        // Only the main thread writes _ticks, so the increment is safe.
+        _ticks = _ticks + 1;
+        _lastTickNanos = System.nanoTime();
+        int ceiling = _ceiling.get();
+        if (ceiling != _appliedCeiling) {
+            apply(ceiling);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Measure the MSPT since the previous poll and move the ceiling.
+     *
+     * This runs on the watchdog thread.
+     */
+    protected void poll() {
+        long now = System.nanoTime();
+        int ticks = _ticks;
+        int elapsedTicks = ticks - _polledTicks;
+        double mspt = (now - _lastTickNanos) / 1e6;
+        if (elapsedTicks > 0) {
+            mspt = Math.max(mspt, (now - _polledNanos) / 1e6 / elapsedTicks);
+        }
+        _polledTicks = ticks;
+        _polledNanos = now;
+        _mspt = mspt;
+
+        Configuration config = DVDA.CONFIG;
+        int ceiling = _ceiling.get();
+        if (mspt > config.EMERGENCY_MSPT) {
+            _stableSeconds = 0;
+            if (++_spikeSeconds >= config.EMERGENCY_SPIKE_SECONDS && ceiling > config.EMERGENCY_FLOOR_VIEW_DISTANCE) {
+                _ceiling.compareAndSet(ceiling, config.EMERGENCY_FLOOR_VIEW_DISTANCE);
+            }
+        } else {
+            _spikeSeconds = 0;
+            if (ceiling != NONE && ++_stableSeconds >= config.EMERGENCY_STABLE_SECONDS) {
+                _stableSeconds = 0;
+                _ceiling.compareAndSet(ceiling, ceiling + 1);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply a new ceiling to the live view distance of all adjusted worlds.
+     *
+     * If the ceiling no longer limits any world, load shedding is released.
+     *
+     * @param ceiling the new ceiling.
+     */
+    protected void apply(int ceiling) {
+        MessageSink sink = MessageSink.broadcast(DVDA.PLUGIN.getLogger(), "dvda.admin");
+        long now = System.currentTimeMillis();
+        int highest = 0;
+        for (Map.Entry<ScheduleProfile, List<World>> entry : DVDA.CONFIG.PROFILE_WORLDS.entrySet()) {
+            ViewDistanceChange change = entry.getKey().getIndex().inForce(now);
+            for (World world : entry.getValue()) {
+                int target = (change != null) ? DVDA.PLUGIN.getTargetViewDistance(world, change)
+                                              : Bukkit.getServer().getViewDistance();
+                int viewDistance = Math.min(target, ceiling);
+                if (LiveViewDistance.getViewDistance(world) != viewDistance) {
+                    LiveViewDistance.setViewDistance(world, viewDistance);
+                }
+                highest = Math.max(highest, target);
+            }
+        }
+
+        if (ceiling < _appliedCeiling) {
+            sink.accept(ChatColor.RED + "Load shedding engaged: " + String.format("%.1f", _mspt) +
+                        " ms per tick for " + DVDA.CONFIG.EMERGENCY_SPIKE_SECONDS +
+                        " seconds. View distance reduced to " + ceiling + ".");
+        } else {
+            sink.accept(ChatColor.GOLD + "Load shedding: restoring view distance to " + ceiling + ".");
+        }
+        _appliedCeiling = ceiling;
+
+        if (ceiling >= highest && _ceiling.compareAndSet(ceiling, NONE)) {
+            _appliedCeiling = NONE;
+            sink.accept(ChatColor.GOLD + "Load shedding released; the schedule is in control.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The ceiling on the view distance set by the watchdog, or {@link #NONE}.
+     */
+    protected final AtomicInteger _ceiling = new AtomicInteger(NONE);
+
+    /**
+     * The ceiling most recently applied on the main thread, or {@link #NONE}.
+     */
+    protected int _appliedCeiling = NONE;
+
+    /**
+     * The number of ticks run, written only by the main thread.
+     */
+    protected volatile int _ticks;
+
+    /**
+     * The System.nanoTime() at the start of the most recent tick.
+     */
+    protected volatile long _lastTickNanos;
+
+    /**
+     * The MSPT measured by the most recent poll.
+     */
+    protected volatile double _mspt;
+
+    /**
+     * Runs the watchdog polls, or null if stopped.
+     */
+    protected ScheduledExecutorService _watchdog;
+
+    /**
+     * The tick count at the previous poll; used only by the watchdog.
+     */
+    protected int _polledTicks;
+
+    /**
+     * The System.nanoTime() of the previous poll; used only by the watchdog.
+     */
+    protected long _polledNanos;
+
+    /**
+     * Consecutive polls with MSPT over the threshold; used only by the
+     * watchdog.
+     */
+    protected int _spikeSeconds;
+
+    /**
+     * Consecutive polls with MSPT under the threshold while engaged; used only
+     * by the watchdog.
+     */
+    protected int _stableSeconds;
+} // class LoadShedder
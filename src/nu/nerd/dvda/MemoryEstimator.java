@@ -0,0 +1,704 @@
+package nu.nerd.dvda;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+// ----------------------------------------------------------------------------
+/**
+ * Estimates the heap used by loaded chunks and projects the chunk count, entity
+ * count and heap use of the adjusted worlds at other view distances.
+ *
+ * Chunks are sampled incrementally, a few per tick, so that sampling never
+ * causes a lag spike itself. Each round visits every loaded chunk of every
+ * adjusted world once, counting its entities and tile entities. At the end of
+ * a round, the live heap (the heap in use after the last garbage collection)
+ * is recorded together with the number of loaded chunks, and the heap per
+ * chunk is estimated by a least squares fit over recent rounds. Until the
+ * chunk count has varied enough to measure, a configured default is used.
+ *
+ * The chunks loaded at a given view distance are projected from the current
+ * positions of players, as the union of the squares of chunks around them.
+ * Chunks loaded for other reasons, such as the spawn, are assumed to stay
+ * loaded. When a heap ceiling is configured, the largest view distance whose
+ * projected heap use fits under it is a ceiling on the view distance of all
+ * adjusted worlds.
+ */
+public class MemoryEstimator implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * The ceiling when no heap ceiling is configured or it does not limit the
+     * view distance.
+     */
+    public static final int NONE = Integer.MAX_VALUE;
+
+    /**
+     * The largest view distance that is projected.
+     */
+    public static final int MAX_VIEW_DISTANCE = 32;
+
+    /**
+     * The number of rounds of observations used to fit the heap per chunk.
+     */
+    public static final int OBSERVATIONS = 64;
+
+    /**
+     * The minimum number of observations before the heap per chunk is fitted.
+     */
+    public static final int MIN_OBSERVATIONS = 4;
+
+    /**
+     * The minimum variance in the loaded chunk count, in chunks squared,
+     * before the heap per chunk is fitted.
+     */
+    public static final double MIN_CHUNK_VARIANCE = 100;
+
+    /**
+     * Bytes per mebibyte.
+     */
+    protected static final long MIB = 1024 * 1024;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start a new round of sampling, forgetting previous observations.
+     */
+    public void start() {
+        stop();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop sampling and remove the ceiling.
+     */
+    public void stop() {
+        _ceiling = NONE;
+        _samples = Collections.<WorldSample> emptyList();
+        _round.clear();
+        _worldIndex = 0;
+        _chunks = null;
+        _observationCount = 0;
+        _observationNext = 0;
+        _lastHeap = -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ceiling on the view distance imposed by the heap ceiling.
+     *
+     * @return the ceiling, or {@link #NONE}.
+     */
+    public int getCeiling() {
+        return _ceiling;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sample the next few chunks.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        List<World> worlds = DVDA.CONFIG.WORLDS;
+        int remaining = DVDA.CONFIG.ESTIMATE_CHUNKS_PER_TICK;
+        while (remaining > 0) {
+            if (_chunks == null) {
+                if (_worldIndex >= worlds.size()) {
+                    if (!worlds.isEmpty()) {
+                        finishRound();
+                    }
+                    _worldIndex = 0;
+                    return;
+                }
+                World world = worlds.get(_worldIndex);
+                _chunks = world.getLoadedChunks();
+                _chunkIndex = 0;
+                _sampled = 0;
+                _entities = 0;
+                _tileEntities = 0;
+            }
+
+            int end = Math.min(_chunks.length, _chunkIndex + remaining);
+            remaining -= end - _chunkIndex;
+            for (; _chunkIndex < end; ++_chunkIndex) {
+                Chunk chunk = _chunks[_chunkIndex];
+                if (chunk.isLoaded()) {
+                    _entities += chunk.getEntities().length;
+                    _tileEntities += chunk.getTileEntities().length;
+                    ++_sampled;
+                }
+                _chunks[_chunkIndex] = null;
+            }
+            if (_chunkIndex >= _chunks.length) {
+                _round.add(new WorldSample(worlds.get(_worldIndex), _chunks.length, _sampled, _entities,
+                                           _tileEntities));
+                _chunks = null;
+                ++_worldIndex;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Report the projected chunks, entities and heap use at the specified
+     * view distance.
+     *
+     * The positions of players are taken on the main thread and the
+     * projection is computed asynchronously.
+     *
+     * @param sink the MessageSink to report to.
+     * @param viewDistance the view distance.
+     */
+    public void estimate(MessageSink sink, int viewDistance) {
+        List<WorldEstimate> estimates = getEstimates();
+        if (estimates.isEmpty()) {
+            sink.accept(ChatColor.GOLD + "No chunks have been sampled yet. Try again shortly.");
+            return;
+        }
+        long liveHeap = _liveHeap;
+        double chunkBytes = _chunkBytes;
+        boolean measured = _measured;
+        Bukkit.getScheduler().runTaskAsynchronously(DVDA.PLUGIN, () -> {
+            sink.accept(String.format("%sProjection for view distance %s%d%s (%s%.1f%s KiB per chunk, %s):",
+                                      ChatColor.GOLD, ChatColor.YELLOW, viewDistance, ChatColor.GOLD,
+                                      ChatColor.WHITE, chunkBytes / 1024, ChatColor.GOLD,
+                                      measured ? "measured" : "default"));
+            long loaded = 0;
+            long projected = 0;
+            for (WorldEstimate estimate : estimates) {
+                long chunks = estimate.getChunks(viewDistance);
+                loaded += estimate.sample.loaded;
+                projected += chunks;
+                sink.accept(String.format("%s%s%s: %s%d%s chunks at view distance %d, %s%d%s projected, " +
+                                          "%s%d%s entities, %s%d%s tile entities",
+                                          ChatColor.YELLOW, estimate.sample.world.getName(), ChatColor.GOLD,
+                                          ChatColor.WHITE, estimate.sample.loaded, ChatColor.GOLD,
+                                          estimate.viewDistance,
+                                          ChatColor.WHITE, chunks, ChatColor.GOLD,
+                                          ChatColor.WHITE, Math.round(chunks * estimate.sample.getEntitiesPerChunk()),
+                                          ChatColor.GOLD,
+                                          ChatColor.WHITE, Math.round(chunks * estimate.sample.getTileEntitiesPerChunk()),
+                                          ChatColor.GOLD));
+            }
+            long heap = getHeap(liveHeap, chunkBytes, loaded, projected);
+            sink.accept(String.format("%sHeap: %s%d%s MiB live, %s%d%s MiB projected, %s%d%s MiB maximum.",
+                                      ChatColor.GOLD,
+                                      ChatColor.WHITE, liveHeap / MIB, ChatColor.GOLD,
+                                      (heap > getHeapCeiling()) ? ChatColor.RED : ChatColor.WHITE, heap / MIB,
+                                      ChatColor.GOLD,
+                                      ChatColor.WHITE, Runtime.getRuntime().maxMemory() / MIB, ChatColor.GOLD));
+            if (getHeapCeiling() != Long.MAX_VALUE) {
+                int ceiling = findCeiling(estimates, liveHeap, chunkBytes, getHeapCeiling());
+                sink.accept(ChatColor.GOLD + "The heap ceiling of " + ChatColor.WHITE +
+                            DVDA.CONFIG.ESTIMATE_HEAP_CEILING_MIB + ChatColor.GOLD + " MiB allows a view distance of " +
+                            ChatColor.YELLOW + ((ceiling == NONE) ? "up to " + MAX_VIEW_DISTANCE : ceiling) +
+                            ChatColor.GOLD + ".");
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Complete a round of sampling: record the live heap against the loaded
+     * chunk count, refit the heap per chunk and, if a heap ceiling is
+     * configured, recompute the ceiling on the view distance.
+     */
+    protected void finishRound() {
+        _samples = Collections.unmodifiableList(new ArrayList<WorldSample>(_round));
+        _round.clear();
+
+        long chunks = 0;
+        for (WorldSample sample : _samples) {
+            chunks += sample.loaded;
+        }
+        long heap = getLiveHeap();
+        if (heap != _lastHeap) {
+            // Only record a new observation after a garbage collection.
+            _observationChunks[_observationNext] = chunks;
+            _observationHeap[_observationNext] = heap;
+            _observationNext = (_observationNext + 1) % OBSERVATIONS;
+            _observationCount = Math.min(_observationCount + 1, OBSERVATIONS);
+            _lastHeap = heap;
+        }
+        _liveHeap = heap;
+        fit();
+
+        long heapCeiling = getHeapCeiling();
+        if (heapCeiling == Long.MAX_VALUE) {
+            _ceiling = NONE;
+        } else if (_computing.compareAndSet(false, true)) {
+            List<WorldEstimate> estimates = getEstimates();
+            long liveHeap = _liveHeap;
+            double chunkBytes = _chunkBytes;
+            Bukkit.getScheduler().runTaskAsynchronously(DVDA.PLUGIN, () -> {
+                try {
+                    int ceiling = findCeiling(estimates, liveHeap, chunkBytes, heapCeiling);
+                    if (ceiling != _ceiling) {
+                        DVDA.PLUGIN.getLogger().info((ceiling == NONE)
+                            ? "The heap ceiling no longer limits the view distance."
+                            : "The heap ceiling limits the view distance to " + ceiling + ".");
+                    }
+                    _ceiling = ceiling;
+                } finally {
+                    _computing.set(false);
+                }
+            });
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Estimate the heap per chunk by a least squares fit of the live heap
+     * against the loaded chunk count, or use the configured default if the
+     * chunk count has not varied enough or the fit is not positive.
+     */
+    protected void fit() {
+        _chunkBytes = DVDA.CONFIG.ESTIMATE_DEFAULT_CHUNK_KIB * 1024.0;
+        _measured = false;
+        int n = _observationCount;
+        if (n < MIN_OBSERVATIONS) {
+            return;
+        }
+
+        double meanChunks = 0;
+        double meanHeap = 0;
+        for (int i = 0; i < n; ++i) {
+            meanChunks += _observationChunks[i];
+            meanHeap += _observationHeap[i];
+        }
+        meanChunks /= n;
+        meanHeap /= n;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < n; ++i) {
+            double dx = _observationChunks[i] - meanChunks;
+            sxx += dx * dx;
+            sxy += dx * (_observationHeap[i] - meanHeap);
+        }
+        if (sxx / n >= MIN_CHUNK_VARIANCE && sxy > 0) {
+            _chunkBytes = sxy / sxx;
+            _measured = true;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Combine the latest samples with the current positions of players.
+     *
+     * This must be called on the main thread.
+     *
+     * @return an estimate for each sampled world that is still adjusted.
+     */
+    protected List<WorldEstimate> getEstimates() {
+        List<WorldEstimate> estimates = new ArrayList<WorldEstimate>();
+        for (WorldSample sample : _samples) {
+            if (!DVDA.CONFIG.WORLDS.contains(sample.world)) {
+                continue;
+            }
+            List<Player> players = sample.world.getPlayers();
+            long[] positions = new long[players.size()];
+            for (int i = 0; i < positions.length; ++i) {
+                Player player = players.get(i);
+                int x = player.getLocation().getBlockX() >> 4;
+                int z = player.getLocation().getBlockZ() >> 4;
+                positions[i] = ((long) z << 32) | (x & 0xFFFFFFFFL);
+            }
+            int viewDistance = LiveViewDistance.getViewDistance(sample.world);
+            if (viewDistance < 0) {
+                viewDistance = Bukkit.getServer().getViewDistance();
+            }
+            estimates.add(new WorldEstimate(sample, positions, viewDistance));
+        }
+        return estimates;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the configured heap ceiling in bytes.
+     *
+     * @return the heap ceiling, or Long.MAX_VALUE if there is none.
+     */
+    protected static long getHeapCeiling() {
+        return (DVDA.CONFIG.ESTIMATE_HEAP_CEILING_MIB > 0) ? DVDA.CONFIG.ESTIMATE_HEAP_CEILING_MIB * MIB
+                                                          : Long.MAX_VALUE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the largest view distance whose projected heap use fits under
+     * the heap ceiling.
+     *
+     * @param estimates the per-world estimates.
+     * @param liveHeap the live heap in bytes.
+     * @param chunkBytes the heap per chunk in bytes.
+     * @param heapCeiling the heap ceiling in bytes.
+     * @return the view distance, at least the configured minimum, or
+     *         {@link #NONE} if {@link #MAX_VIEW_DISTANCE} fits.
+     */
+    protected static int findCeiling(List<WorldEstimate> estimates, long liveHeap, double chunkBytes,
+                                     long heapCeiling) {
+        long loaded = 0;
+        for (WorldEstimate estimate : estimates) {
+            loaded += estimate.sample.loaded;
+        }
+
+        // Projected heap use increases with the view distance.
+        int low = Math.max(1, DVDA.CONFIG.ESTIMATE_MIN_VIEW_DISTANCE);
+        int high = MAX_VIEW_DISTANCE;
+        if (getHeap(liveHeap, chunkBytes, loaded, getChunks(estimates, high)) <= heapCeiling) {
+            return NONE;
+        }
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            if (getHeap(liveHeap, chunkBytes, loaded, getChunks(estimates, mid)) <= heapCeiling) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total projected chunks of all worlds at a view distance.
+     *
+     * @param estimates the per-world estimates.
+     * @param viewDistance the view distance.
+     * @return the projected number of loaded chunks.
+     */
+    protected static long getChunks(List<WorldEstimate> estimates, int viewDistance) {
+        long chunks = 0;
+        for (WorldEstimate estimate : estimates) {
+            chunks += estimate.getChunks(viewDistance);
+        }
+        return chunks;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the projected heap use.
+     *
+     * @param liveHeap the live heap in bytes.
+     * @param chunkBytes the heap per chunk in bytes.
+     * @param loaded the number of chunks loaded now.
+     * @param projected the projected number of loaded chunks.
+     * @return the projected heap use in bytes.
+     */
+    protected static long getHeap(long liveHeap, double chunkBytes, long loaded, long projected) {
+        return liveHeap + Math.round((projected - loaded) * chunkBytes);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the heap in use after the last garbage collection.
+     *
+     * If the JVM does not report usage after collection, the heap currently
+     * in use, including garbage, is returned.
+     *
+     * @return the live heap in bytes.
+     */
+    protected static long getLiveHeap() {
+        long used = 0;
+        boolean found = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null) {
+                    used += usage.getUsed();
+                    found = true;
+                }
+            }
+        }
+        if (!found) {
+            Runtime runtime = Runtime.getRuntime();
+            used = runtime.totalMemory() - runtime.freeMemory();
+        }
+        return used;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of distinct chunks within the view distance of any of
+     * the specified chunk positions: the area of the union of the squares of
+     * side 2 * viewDistance + 1 centred on them.
+     *
+     * The union is measured one row of chunks at a time, merging the spans of
+     * the squares that cross the row, so the cost grows with the number of
+     * positions and rows rather than the area.
+     *
+     * @param positions the chunk positions, each packed as the Z coordinate in
+     *        the upper 32 bits and the X coordinate in the lower 32 bits, sorted
+     *        in ascending order.
+     * @param viewDistance the view distance.
+     * @return the number of chunks.
+     */
+    protected static long countChunks(long[] positions, int viewDistance) {
+        int n = positions.length;
+        long[] row = new long[n];
+        long total = 0;
+        int first = 0;
+        int last = 0;
+        long z = (n > 0) ? (positions[0] >> 32) - viewDistance : 0;
+        while (first < n) {
+            // Squares [first, last) cross row z.
+            while (last < n && (positions[last] >> 32) <= z + viewDistance) {
+                ++last;
+            }
+            while (first < last && (positions[first] >> 32) < z - viewDistance) {
+                ++first;
+            }
+            if (first == last) {
+                if (last >= n) {
+                    break;
+                }
+                z = (positions[last] >> 32) - viewDistance;
+                continue;
+            }
+
+            int count = last - first;
+            for (int i = 0; i < count; ++i) {
+                row[i] = (int) positions[first + i];
+            }
+            Arrays.sort(row, 0, count);
+            long start = row[0] - viewDistance;
+            long end = row[0] + viewDistance;
+            for (int i = 1; i < count; ++i) {
+                if (row[i] - viewDistance > end + 1) {
+                    total += end - start + 1;
+                    start = row[i] - viewDistance;
+                }
+                end = Math.max(end, row[i] + viewDistance);
+            }
+            total += end - start + 1;
+            ++z;
+        }
+        return total;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The result of sampling one world in one round.
+     */
+    protected static final class WorldSample {
+        /**
+         * Constructor.
+         *
+         * @param world the world.
+         * @param loaded the number of chunks loaded at the start of the round.
+         * @param sampled the number of those chunks still loaded when sampled.
+         * @param entities the number of entities in the sampled chunks.
+         * @param tileEntities the number of tile entities in the sampled
+         *        chunks.
+         */
+        WorldSample(World world, int loaded, int sampled, long entities, long tileEntities) {
+            this.world = world;
+            this.loaded = loaded;
+            this.sampled = sampled;
+            this.entities = entities;
+            this.tileEntities = tileEntities;
+        }
+
+        /**
+         * Return the average number of entities per sampled chunk.
+         *
+         * @return the average number of entities per chunk.
+         */
+        double getEntitiesPerChunk() {
+            return (sampled > 0) ? (double) entities / sampled : 0;
+        }
+
+        /**
+         * Return the average number of tile entities per sampled chunk.
+         *
+         * @return the average number of tile entities per chunk.
+         */
+        double getTileEntitiesPerChunk() {
+            return (sampled > 0) ? (double) tileEntities / sampled : 0;
+        }
+
+        /**
+         * The world.
+         */
+        final World world;
+
+        /**
+         * The number of chunks loaded at the start of the round.
+         */
+        final int loaded;
+
+        /**
+         * The number of chunks still loaded when sampled.
+         */
+        final int sampled;
+
+        /**
+         * The number of entities in the sampled chunks.
+         */
+        final long entities;
+
+        /**
+         * The number of tile entities in the sampled chunks.
+         */
+        final long tileEntities;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The inputs of a projection for one world, which can be used off the main
+     * thread.
+     */
+    protected static final class WorldEstimate {
+        /**
+         * Constructor.
+         *
+         * @param sample the latest sample of the world.
+         * @param positions the packed chunk positions of players in the world;
+         *        sorted by this constructor.
+         * @param viewDistance the current view distance of the world.
+         */
+        WorldEstimate(WorldSample sample, long[] positions, int viewDistance) {
+            Arrays.sort(positions);
+            this.sample = sample;
+            this.positions = positions;
+            this.viewDistance = viewDistance;
+            this.other = Math.max(0, sample.loaded - countChunks(positions, viewDistance));
+        }
+
+        /**
+         * Return the projected number of loaded chunks at a view distance.
+         *
+         * @param viewDistance the view distance.
+         * @return the number of chunks near players, plus the chunks loaded
+         *         for other reasons.
+         */
+        long getChunks(int viewDistance) {
+            return countChunks(positions, viewDistance) + other;
+        }
+
+        /**
+         * The latest sample of the world.
+         */
+        final WorldSample sample;
+
+        /**
+         * The sorted, packed chunk positions of players in the world.
+         */
+        final long[] positions;
+
+        /**
+         * The current view distance of the world.
+         */
+        final int viewDistance;
+
+        /**
+         * The number of loaded chunks not within the view distance of a
+         * player.
+         */
+        final long other;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The latest complete round of samples.
+     */
+    protected volatile List<WorldSample> _samples = Collections.<WorldSample> emptyList();
+
+    /**
+     * The samples of the round in progress.
+     */
+    protected final List<WorldSample> _round = new ArrayList<WorldSample>();
+
+    /**
+     * Index in the adjusted worlds of the world being sampled.
+     */
+    protected int _worldIndex;
+
+    /**
+     * The loaded chunks of the world being sampled, or null between worlds.
+     * Sampled entries are cleared so that unloaded chunks can be collected.
+     */
+    protected Chunk[] _chunks;
+
+    /**
+     * Index in _chunks of the next chunk to sample.
+     */
+    protected int _chunkIndex;
+
+    /**
+     * The number of chunks sampled in the world being sampled.
+     */
+    protected int _sampled;
+
+    /**
+     * The number of entities counted in the world being sampled.
+     */
+    protected long _entities;
+
+    /**
+     * The number of tile entities counted in the world being sampled.
+     */
+    protected long _tileEntities;
+
+    /**
+     * Loaded chunk counts at the end of recent rounds, in a ring.
+     */
+    protected final long[] _observationChunks = new long[OBSERVATIONS];
+
+    /**
+     * Live heap in bytes at the end of recent rounds, in a ring.
+     */
+    protected final long[] _observationHeap = new long[OBSERVATIONS];
+
+    /**
+     * The number of valid observations.
+     */
+    protected int _observationCount;
+
+    /**
+     * Index of the next observation to overwrite.
+     */
+    protected int _observationNext;
+
+    /**
+     * The live heap of the last observation, or -1 if there is none.
+     */
+    protected long _lastHeap = -1;
+
+    /**
+     * The live heap in bytes at the end of the latest round.
+     */
+    protected volatile long _liveHeap;
+
+    /**
+     * The estimated heap per chunk in bytes.
+     */
+    protected volatile double _chunkBytes;
+
+    /**
+     * True if _chunkBytes was measured rather than the configured default.
+     */
+    protected volatile boolean _measured;
+
+    /**
+     * True while the ceiling is being recomputed asynchronously.
+     */
+    protected final AtomicBoolean _computing = new AtomicBoolean();
+
+    /**
+     * The ceiling on the view distance, or {@link #NONE}.
+     */
+    protected volatile int _ceiling = NONE;
+} // class MemoryEstimator
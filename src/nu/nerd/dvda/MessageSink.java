@@ -3,8 +3,10 @@ package nu.nerd.dvda;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 
 // ----------------------------------------------------------------------------
 /**
@@ -45,6 +47,34 @@ public abstract class MessageSink implements Consumer<String> {
         };
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return a MessageSink that writes to the specified Logger and to every
+     * online player with the specified permission.
+     *
+     * This must only be used on the main thread.
+     *
+     * @param logger the Logger.
+     * @param permission the permission required to receive messages.
+     * @return the MessageSink.
+     */
+    public static MessageSink broadcast(Logger logger, String permission) {
+        return new MessageSink() {
+            /**
+             * @see java.util.function.Consumer#accept(java.lang.Object)
+             */
+            @Override
+            public void accept(String msg) {
+                logger.info(ChatColor.stripColor(msg));
+                for (Player player : Bukkit.getOnlinePlayers()) {
+                    if (player.hasPermission(permission)) {
+                        player.sendMessage(msg);
+                    }
+                }
+            }
+        };
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return a MessageSink that writes to the specified CommandSender.
@@ -63,4 +93,33 @@ public abstract class MessageSink implements Consumer<String> {
             }
         };
     }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a MessageSink that writes to the specified Logger in batches, from
+     * a background thread.
+     *
+     * @param logger the Logger.
+     * @return the MessageSink.
+     * @see BufferedMessageSink
+     */
+    public static MessageSink buffered(Logger logger) {
+        return BufferedMessageSink.to(logger);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a MessageSink that writes to the specified CommandSender in
+     * batches, paginating output to players.
+     *
+     * This must be called on the main thread, but the returned sink can be
+     * used on any thread.
+     *
+     * @param sender the command sender.
+     * @return the MessageSink.
+     * @see BufferedMessageSink
+     */
+    public static MessageSink buffered(CommandSender sender) {
+        return BufferedMessageSink.to(sender);
+    }
 } // class MessageSink
\ No newline at end of file
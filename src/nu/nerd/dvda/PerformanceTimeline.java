@@ -0,0 +1,697 @@
+package nu.nerd.dvda;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+
+// ----------------------------------------------------------------------------
+/**
+ * Records a rolling timeline of view distance changes, server restarts and
+ * per-interval player peaks and tick rates in a fixed size, memory-mapped
+ * ring buffer file.
+ *
+ * The file consists of a header followed by fixed size records. The header
+ * holds the capacity of the ring, the slot of the next record to write and
+ * the number of valid records; once the ring is full, each new record
+ * overwrites the oldest. Records are appended in time order, so a time range
+ * is located by binary search and then read in sequence straight from the
+ * mapping, without loading the whole timeline.
+ *
+ * The task runs once a second. Each run only does arithmetic and writes to the
+ * mapped buffer, except at the end of an interval, when the loaded chunks are
+ * counted. Changes to the live view distance, whatever their cause, are
+ * detected by comparing it with the view distance of the previous run.
+ */
+public class PerformanceTimeline implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Record type: the server started; the view distance is that of
+     * spigot.yml.
+     */
+    public static final int STARTUP = 1;
+
+    /**
+     * Record type: the server stopped; the view distance is that written to
+     * spigot.yml.
+     */
+    public static final int SHUTDOWN = 2;
+
+    /**
+     * Record type: the live view distance changed.
+     */
+    public static final int CHANGE = 3;
+
+    /**
+     * Record type: the summary of one interval.
+     */
+    public static final int INTERVAL = 4;
+
+    /**
+     * Names of the record types, indexed by type, used in exported files.
+     */
+    public static final String[] TYPE_NAMES = { "", "startup", "shutdown", "change", "interval" };
+
+    /**
+     * The number of ticks between runs of this task.
+     */
+    public static final int SAMPLE_TICKS = 20;
+
+    /**
+     * The number of non-interval records per day allowed for when sizing the
+     * ring.
+     */
+    public static final int EVENTS_PER_DAY = 24;
+
+    /**
+     * Magic number identifying the file format ("DVDT").
+     */
+    protected static final int MAGIC = 0x44564454;
+
+    /**
+     * File format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes: magic, version, record size, capacity, next
+     * slot, record count and padding.
+     */
+    protected static final int HEADER_SIZE = 8 * 4;
+
+    /**
+     * Offset of the number of records the ring can hold (int).
+     */
+    protected static final int CAPACITY_OFFSET = 12;
+
+    /**
+     * Offset of the slot of the next record to write (int).
+     */
+    protected static final int HEAD_OFFSET = 16;
+
+    /**
+     * Offset of the number of valid records (int).
+     */
+    protected static final int COUNT_OFFSET = 20;
+
+    /**
+     * Size of a record in bytes: time (long), type (byte), view distance
+     * (byte), players (short), mean MSPT (float), maximum MSPT (float) and
+     * loaded chunks (int).
+     */
+    protected static final int RECORD_SIZE = 24;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ring capacity needed to retain the specified history.
+     *
+     * @param days the number of days of history to retain.
+     * @param intervalMinutes the length of an interval in minutes.
+     * @return the number of records.
+     */
+    public static int getCapacity(int days, int intervalMinutes) {
+        long records = (long) days * (24 * 60 / Math.max(1, intervalMinutes) + EVENTS_PER_DAY);
+        return (int) Math.max(1, Math.min(records, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the timeline file, creating it if it doesn't exist or doesn't have
+     * the expected format.
+     *
+     * If the file has a different capacity, its most recent records are kept.
+     *
+     * @param file the file.
+     * @param capacity the number of records the ring can hold.
+     * @throws IOException if the file could not be opened or mapped.
+     */
+    public void open(File file, int capacity) throws IOException {
+        close();
+        file.getParentFile().mkdirs();
+        _file = new RandomAccessFile(file, "rw");
+        _path = file;
+
+        byte[] kept = new byte[0];
+        long length = _file.length();
+        if (length >= HEADER_SIZE) {
+            MappedByteBuffer old = _file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (isValid(old, length)) {
+                if (old.getInt(CAPACITY_OFFSET) == capacity) {
+                    _buffer = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                    return;
+                }
+                int keptCount = Math.min(old.getInt(COUNT_OFFSET), capacity);
+                kept = new byte[keptCount * RECORD_SIZE];
+                for (int i = 0; i < keptCount; ++i) {
+                    old.position(getOffset(old, old.getInt(COUNT_OFFSET) - keptCount + i));
+                    old.get(kept, i * RECORD_SIZE, RECORD_SIZE);
+                }
+            }
+        }
+
+        int fileSize = HEADER_SIZE + capacity * RECORD_SIZE;
+        _file.setLength(fileSize);
+        _buffer = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        int count = kept.length / RECORD_SIZE;
+        _buffer.putInt(0, MAGIC);
+        _buffer.putInt(4, VERSION);
+        _buffer.putInt(8, RECORD_SIZE);
+        _buffer.putInt(CAPACITY_OFFSET, capacity);
+        _buffer.putInt(HEAD_OFFSET, count % capacity);
+        _buffer.putInt(COUNT_OFFSET, count);
+        _buffer.position(HEADER_SIZE);
+        _buffer.put(kept);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Flush recorded samples to disk and close the file.
+     */
+    public void close() {
+        if (_buffer != null) {
+            _buffer.force();
+            _buffer = null;
+        }
+        if (_file != null) {
+            try {
+                _file.close();
+            } catch (IOException ex) {
+            }
+            _file = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the timeline file is open.
+     *
+     * @return true if the timeline file is open.
+     */
+    public boolean isOpen() {
+        return _buffer != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin a new interval.
+     *
+     * @param intervalMinutes the length of an interval in minutes.
+     */
+    public void start(int intervalMinutes) {
+        _intervalMillis = Math.max(1, intervalMinutes) * 60_000L;
+        _intervalStartMillis = System.currentTimeMillis();
+        _intervalStartNanos = System.nanoTime();
+        _lastNanos = _intervalStartNanos;
+        _runs = 0;
+        _peakPlayers = 0;
+        _maxMspt = 0;
+        _viewDistance = getViewDistance();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a server startup or shutdown.
+     *
+     * @param type {@link #STARTUP} or {@link #SHUTDOWN}.
+     * @param viewDistance the view distance in spigot.yml.
+     */
+    public void recordRestart(int type, int viewDistance) {
+        append(System.currentTimeMillis(), type, viewDistance, Bukkit.getOnlinePlayers().size(), 0, 0, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sample the player count and tick rate, record any change to the live
+     * view distance and, at the end of an interval, record its summary.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        long nanos = System.nanoTime();
+        float mspt = (float) ((nanos - _lastNanos) / 1e6 / SAMPLE_TICKS);
+        _lastNanos = nanos;
+        ++_runs;
+        _maxMspt = Math.max(_maxMspt, mspt);
+        int players = Bukkit.getOnlinePlayers().size();
+        _peakPlayers = Math.max(_peakPlayers, players);
+
+        int viewDistance = getViewDistance();
+        if (viewDistance != _viewDistance) {
+            _viewDistance = viewDistance;
+            append(now, CHANGE, viewDistance, players, mspt, mspt, 0);
+        }
+
+        if (now - _intervalStartMillis >= _intervalMillis) {
+            float mean = (float) ((nanos - _intervalStartNanos) / 1e6 / (_runs * SAMPLE_TICKS));
+            int chunks = 0;
+            for (World world : DVDA.CONFIG.WORLDS) {
+                chunks += world.getLoadedChunks().length;
+            }
+            append(now, INTERVAL, viewDistance, _peakPlayers, mean, _maxMspt, chunks);
+            _intervalStartMillis = now;
+            _intervalStartNanos = nanos;
+            _runs = 0;
+            _peakPlayers = players;
+            _maxMspt = 0;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List a summary of each of the most recent days of the timeline.
+     *
+     * @param sink the destination of messages.
+     * @param days the number of days, including today.
+     */
+    public void history(MessageSink sink, int days) {
+        if (_buffer == null) {
+            sink.accept(ChatColor.GOLD + "The timeline is not enabled.");
+            return;
+        }
+
+        ZoneId zone = DaySchedule.getZone();
+        LocalDate firstDate = LocalDate.now(zone).minusDays(Math.max(1, days) - 1);
+        long since = firstDate.atStartOfDay(zone).toInstant().toEpochMilli();
+        Map<LocalDate, DaySummary> summaries = new LinkedHashMap<LocalDate, DaySummary>();
+        Record record = new Record();
+        ByteBuffer buffer = _buffer;
+        int count = buffer.getInt(COUNT_OFFSET);
+        DaySummary summary = null;
+        long dayEnd = Long.MIN_VALUE;
+        for (int i = search(buffer, since); i < count; ++i) {
+            record.read(buffer, getOffset(buffer, i));
+            // Records are in time order, so the date only changes at the end
+            // of the day.
+            if (summary == null || record.time >= dayEnd) {
+                LocalDate date = Instant.ofEpochMilli(record.time).atZone(zone).toLocalDate();
+                dayEnd = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+                summary = summaries.computeIfAbsent(date, d -> new DaySummary());
+            }
+            summary.add(record);
+        }
+
+        if (summaries.isEmpty()) {
+            sink.accept(ChatColor.GOLD + "No history has been recorded since " + firstDate + ".");
+            return;
+        }
+        for (Map.Entry<LocalDate, DaySummary> entry : summaries.entrySet()) {
+            summary = entry.getValue();
+            String viewDistances = (summary.minViewDistance == summary.maxViewDistance)
+                ? Integer.toString(summary.maxViewDistance)
+                : summary.minViewDistance + "-" + summary.maxViewDistance;
+            sink.accept(String.format("%s%s%s: view distance %s%s%s (%d changes, %d restarts), " +
+                                      "peak %s%d%s players, MSPT mean %s%.1f%s max %s%.1f",
+                                      ChatColor.YELLOW, entry.getKey(), ChatColor.GOLD,
+                                      ChatColor.WHITE, (summary.maxViewDistance < 0) ? "?" : viewDistances,
+                                      ChatColor.GOLD, summary.changes, summary.restarts,
+                                      ChatColor.WHITE, summary.peakPlayers, ChatColor.GOLD,
+                                      ChatColor.WHITE, summary.getMeanMspt(), ChatColor.GOLD,
+                                      ChatColor.WHITE, summary.maxMspt));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Export the most recent days of the timeline as CSV, off the main thread.
+     *
+     * The timeline file is mapped a second time, read-only, and streamed to
+     * the CSV file, which is then moved into place.
+     *
+     * @param sink the destination of messages, which are delivered on the main
+     *        thread.
+     * @param days the number of days, including today, or 0 for all.
+     * @param target the CSV file.
+     */
+    public void export(MessageSink sink, int days, File target) {
+        if (_buffer == null) {
+            sink.accept(ChatColor.GOLD + "The timeline is not enabled.");
+            return;
+        }
+
+        File source = _path;
+        ZoneId zone = DaySchedule.getZone();
+        long since = (days <= 0) ? Long.MIN_VALUE
+                                 : LocalDate.now(zone).minusDays(days - 1).atStartOfDay(zone).toInstant().toEpochMilli();
+        Bukkit.getScheduler().runTaskAsynchronously(DVDA.PLUGIN, () -> {
+            String message;
+            Path temp = new File(target.getPath() + ".tmp").toPath();
+            try {
+                int written = 0;
+                try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                     BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (!isValid(buffer, channel.size())) {
+                        throw new IOException("invalid timeline file");
+                    }
+                    writer.write("time,type,view_distance,players,mean_mspt,max_mspt,loaded_chunks\n");
+                    Record record = new Record();
+                    int count = buffer.getInt(COUNT_OFFSET);
+                    for (int i = search(buffer, since); i < count; ++i) {
+                        record.read(buffer, getOffset(buffer, i));
+                        writer.write(Instant.ofEpochMilli(record.time).atZone(zone).toOffsetDateTime() + "," +
+                                     TYPE_NAMES[Math.max(0, Math.min(record.type, TYPE_NAMES.length - 1))] + "," +
+                                     record.viewDistance + "," + record.players + "," +
+                                     String.format("%.2f,%.2f", record.mspt, record.maxMspt) + "," +
+                                     record.chunks + "\n");
+                        ++written;
+                    }
+                }
+                try {
+                    Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                message = ChatColor.GOLD + "Exported " + written + " timeline records to " + target.getName() + ".";
+            } catch (IOException ex) {
+                message = ChatColor.RED + "Unable to export the timeline: " + ex.getMessage();
+            }
+            String finalMessage = message;
+            Bukkit.getScheduler().runTask(DVDA.PLUGIN, () -> sink.accept(finalMessage));
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a record, overwriting the oldest if the ring is full.
+     *
+     * The record is written before the header is updated, so that a crash
+     * never exposes a partially written record.
+     *
+     * @param time the time in milliseconds since the epoch.
+     * @param type the record type.
+     * @param viewDistance the view distance.
+     * @param players the player count.
+     * @param mspt the mean milliseconds per tick.
+     * @param maxMspt the maximum milliseconds per tick.
+     * @param chunks the number of loaded chunks in the adjusted worlds.
+     */
+    protected void append(long time, int type, int viewDistance, int players, float mspt, float maxMspt, int chunks) {
+        MappedByteBuffer buffer = _buffer;
+        if (buffer == null) {
+            return;
+        }
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        int head = buffer.getInt(HEAD_OFFSET);
+        int offset = HEADER_SIZE + head * RECORD_SIZE;
+        buffer.putLong(offset, time);
+        buffer.put(offset + 8, (byte) type);
+        buffer.put(offset + 9, (byte) Math.max(-1, Math.min(viewDistance, Byte.MAX_VALUE)));
+        buffer.putShort(offset + 10, (short) Math.min(players, Short.MAX_VALUE));
+        buffer.putFloat(offset + 12, mspt);
+        buffer.putFloat(offset + 16, maxMspt);
+        buffer.putInt(offset + 20, chunks);
+        buffer.putInt(HEAD_OFFSET, (head + 1) % capacity);
+        buffer.putInt(COUNT_OFFSET, Math.min(buffer.getInt(COUNT_OFFSET) + 1, capacity));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the view distance of the adjusted worlds.
+     *
+     * @return the highest live view distance of the adjusted worlds, if
+     *         supported, or the server's view distance.
+     */
+    protected static int getViewDistance() {
+        if (!LiveViewDistance.isSupported() || DVDA.CONFIG.WORLDS.isEmpty()) {
+            return Bukkit.getServer().getViewDistance();
+        }
+        int viewDistance = -1;
+        for (World world : DVDA.CONFIG.WORLDS) {
+            viewDistance = Math.max(viewDistance, LiveViewDistance.getViewDistance(world));
+        }
+        return viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a mapped timeline file has a valid header.
+     *
+     * @param buffer the mapped file.
+     * @param length the length of the file.
+     * @return true if the file is valid.
+     */
+    protected static boolean isValid(ByteBuffer buffer, long length) {
+        if (length < HEADER_SIZE ||
+            buffer.getInt(0) != MAGIC ||
+            buffer.getInt(4) != VERSION ||
+            buffer.getInt(8) != RECORD_SIZE) {
+            return false;
+        }
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        int head = buffer.getInt(HEAD_OFFSET);
+        int count = buffer.getInt(COUNT_OFFSET);
+        return capacity > 0 && length == HEADER_SIZE + (long) capacity * RECORD_SIZE &&
+               head >= 0 && head < capacity && count >= 0 && count <= capacity;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the offset in the file of a record, by its position in time
+     * order.
+     *
+     * @param buffer the mapped file.
+     * @param index the index of the record, where 0 is the oldest.
+     * @return the offset of the record.
+     */
+    protected static int getOffset(ByteBuffer buffer, int index) {
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        int count = buffer.getInt(COUNT_OFFSET);
+        int slot = (buffer.getInt(HEAD_OFFSET) - count + index + capacity) % capacity;
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the oldest record at or after the specified time,
+     * by binary search.
+     *
+     * @param buffer the mapped file.
+     * @param since the time in milliseconds since the epoch.
+     * @return the index, where 0 is the oldest record, or the number of
+     *         records if all are older.
+     */
+    protected static int search(ByteBuffer buffer, long since) {
+        int low = 0;
+        int high = buffer.getInt(COUNT_OFFSET);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getLong(getOffset(buffer, mid)) < since) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A record read from the timeline; reused to avoid allocation.
+     */
+    protected static final class Record {
+        /**
+         * Read the record at the specified offset.
+         *
+         * @param buffer the mapped file.
+         * @param offset the offset of the record.
+         */
+        void read(ByteBuffer buffer, int offset) {
+            time = buffer.getLong(offset);
+            type = buffer.get(offset + 8);
+            viewDistance = buffer.get(offset + 9);
+            players = buffer.getShort(offset + 10);
+            mspt = buffer.getFloat(offset + 12);
+            maxMspt = buffer.getFloat(offset + 16);
+            chunks = buffer.getInt(offset + 20);
+        }
+
+        /**
+         * The time in milliseconds since the epoch.
+         */
+        long time;
+
+        /**
+         * The record type.
+         */
+        int type;
+
+        /**
+         * The view distance.
+         */
+        int viewDistance;
+
+        /**
+         * The player count.
+         */
+        int players;
+
+        /**
+         * The mean milliseconds per tick.
+         */
+        float mspt;
+
+        /**
+         * The maximum milliseconds per tick.
+         */
+        float maxMspt;
+
+        /**
+         * The number of loaded chunks in the adjusted worlds.
+         */
+        int chunks;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The summary of one day of the timeline.
+     */
+    protected static final class DaySummary {
+        /**
+         * Add a record to the summary.
+         *
+         * @param record the record.
+         */
+        void add(Record record) {
+            if (record.viewDistance >= 0) {
+                minViewDistance = Math.min(minViewDistance, record.viewDistance);
+                maxViewDistance = Math.max(maxViewDistance, record.viewDistance);
+            }
+            peakPlayers = Math.max(peakPlayers, record.players);
+            if (record.type == CHANGE) {
+                ++changes;
+            } else if (record.type == STARTUP) {
+                ++restarts;
+            } else if (record.type == INTERVAL) {
+                ++intervals;
+                msptSum += record.mspt;
+                maxMspt = Math.max(maxMspt, record.maxMspt);
+            }
+        }
+
+        /**
+         * Return the mean of the interval mean MSPTs.
+         *
+         * @return the mean MSPT, or 0 if there were no intervals.
+         */
+        double getMeanMspt() {
+            return (intervals == 0) ? 0 : msptSum / intervals;
+        }
+
+        /**
+         * The lowest view distance.
+         */
+        int minViewDistance = Integer.MAX_VALUE;
+
+        /**
+         * The highest view distance, or -1 if none was recorded.
+         */
+        int maxViewDistance = -1;
+
+        /**
+         * The number of view distance changes.
+         */
+        int changes;
+
+        /**
+         * The number of server startups.
+         */
+        int restarts;
+
+        /**
+         * The peak player count.
+         */
+        int peakPlayers;
+
+        /**
+         * The number of intervals.
+         */
+        int intervals;
+
+        /**
+         * The sum of the interval mean MSPTs.
+         */
+        double msptSum;
+
+        /**
+         * The maximum MSPT.
+         */
+        float maxMspt;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The open timeline file, or null.
+     */
+    protected RandomAccessFile _file;
+
+    /**
+     * The path of the open timeline file.
+     */
+    protected File _path;
+
+    /**
+     * The memory-mapped contents of the file, or null if not open.
+     */
+    protected MappedByteBuffer _buffer;
+
+    /**
+     * The length of an interval in milliseconds.
+     */
+    protected long _intervalMillis = 60_000L;
+
+    /**
+     * The time when the current interval began, in milliseconds since the
+     * epoch.
+     */
+    protected long _intervalStartMillis;
+
+    /**
+     * The System.nanoTime() when the current interval began.
+     */
+    protected long _intervalStartNanos;
+
+    /**
+     * The System.nanoTime() of the previous run.
+     */
+    protected long _lastNanos;
+
+    /**
+     * The number of runs in the current interval.
+     */
+    protected int _runs;
+
+    /**
+     * The peak player count in the current interval.
+     */
+    protected int _peakPlayers;
+
+    /**
+     * The maximum MSPT, averaged over one run period, in the current interval.
+     */
+    protected float _maxMspt;
+
+    /**
+     * The view distance at the previous run.
+     */
+    protected int _viewDistance;
+} // class PerformanceTimeline
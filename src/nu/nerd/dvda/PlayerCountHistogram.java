@@ -0,0 +1,280 @@
+package nu.nerd.dvda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.bukkit.Bukkit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Records the peak player count in each minute of the week in a fixed size,
+ * memory-mapped file.
+ *
+ * The file consists of a header followed by one short (the peak player count)
+ * per bucket and then one int (the week number when the bucket was last
+ * written) per bucket. A bucket's peak is reset the first time it is written
+ * in a new week, so the store always reflects the most recent observation of
+ * each minute of the week.
+ *
+ * Recording a sample only does arithmetic and writes to the mapped buffer, so
+ * it does not allocate.
+ */
+public class PlayerCountHistogram implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Number of minutes per bucket.
+     */
+    public static final int BUCKET_MINUTES = 1;
+
+    /**
+     * Number of buckets in one week.
+     */
+    public static final int BUCKETS = 7 * 24 * 60 / BUCKET_MINUTES;
+
+    /**
+     * Magic number identifying the file format ("DVDH").
+     */
+    protected static final int MAGIC = 0x44564448;
+
+    /**
+     * File format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes: magic, version, bucket minutes, buckets.
+     */
+    protected static final int HEADER_SIZE = 4 * 4;
+
+    /**
+     * Offset of the array of peak player counts.
+     */
+    protected static final int PEAKS_OFFSET = HEADER_SIZE;
+
+    /**
+     * Offset of the array of week numbers.
+     */
+    protected static final int WEEKS_OFFSET = PEAKS_OFFSET + 2 * BUCKETS;
+
+    /**
+     * Total file size in bytes.
+     */
+    protected static final int FILE_SIZE = WEEKS_OFFSET + 4 * BUCKETS;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the histogram file, creating it if it doesn't exist or doesn't have
+     * the expected format.
+     *
+     * @param file the file.
+     * @throws IOException if the file could not be opened or mapped.
+     */
+    public void open(File file) throws IOException {
+        close();
+        file.getParentFile().mkdirs();
+        _file = new RandomAccessFile(file, "rw");
+        boolean valid = (_file.length() == FILE_SIZE);
+        _file.setLength(FILE_SIZE);
+        _buffer = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        if (!valid ||
+            _buffer.getInt(0) != MAGIC ||
+            _buffer.getInt(4) != VERSION ||
+            _buffer.getInt(8) != BUCKET_MINUTES ||
+            _buffer.getInt(12) != BUCKETS) {
+            for (int i = 0; i < FILE_SIZE; ++i) {
+                _buffer.put(i, (byte) 0);
+            }
+            _buffer.putInt(0, MAGIC);
+            _buffer.putInt(4, VERSION);
+            _buffer.putInt(8, BUCKET_MINUTES);
+            _buffer.putInt(12, BUCKETS);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the time zone used to compute the minute of the week.
+     *
+     * This should be the zone in which the default schedule is interpreted,
+     * so that the derived schedule and the weights of restart times line up
+     * with it.
+     *
+     * @param zone the time zone.
+     */
+    public void setZone(ZoneId zone) {
+        _zone = TimeZone.getTimeZone(zone);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Flush recorded samples to disk and close the file.
+     */
+    public void close() {
+        if (_buffer != null) {
+            _buffer.force();
+            _buffer = null;
+        }
+        if (_file != null) {
+            try {
+                _file.close();
+            } catch (IOException ex) {
+            }
+            _file = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the current online player count.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        record(System.currentTimeMillis(), Bukkit.getOnlinePlayers().size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a player count sample.
+     *
+     * @param epochMillis the time of the sample in milliseconds since the
+     *        epoch.
+     * @param players the number of online players.
+     */
+    public void record(long epochMillis, int players) {
+        if (_buffer == null) {
+            return;
+        }
+        long localMinutes = Math.floorDiv(epochMillis + _zone.getOffset(epochMillis), 60_000L);
+        // 1970-01-01 was a Thursday; weeks start on Monday.
+        int week = (int) Math.floorDiv(Math.floorDiv(localMinutes, 24 * 60) + 3, 7);
+        int bucket = getBucket(epochMillis);
+
+        short count = (short) Math.min(players, Short.MAX_VALUE);
+        int peakIndex = PEAKS_OFFSET + 2 * bucket;
+        int weekIndex = WEEKS_OFFSET + 4 * bucket;
+        if (_buffer.getInt(weekIndex) != week) {
+            _buffer.putInt(weekIndex, week);
+            _buffer.putShort(peakIndex, count);
+        } else if (count > _buffer.getShort(peakIndex)) {
+            _buffer.putShort(peakIndex, count);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the bucket containing the specified time.
+     *
+     * @param epochMillis the time in milliseconds since the epoch.
+     * @return the bucket index, where 0 is the first minute of Monday.
+     */
+    public int getBucket(long epochMillis) {
+        long localMinutes = Math.floorDiv(epochMillis + _zone.getOffset(epochMillis), 60_000L);
+        long days = Math.floorDiv(localMinutes, 24 * 60);
+        int minuteOfWeek = (int) (Math.floorMod(days + 3, 7) * 24 * 60 + Math.floorMod(localMinutes, 24 * 60));
+        return minuteOfWeek / BUCKET_MINUTES;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the recorded peak player count in the specified bucket.
+     *
+     * @param bucket the bucket index, where 0 is the first minute of Monday.
+     * @return the peak player count, or 0 if never recorded.
+     */
+    public int getPeak(int bucket) {
+        return (_buffer == null) ? 0 : _buffer.getShort(PEAKS_OFFSET + 2 * bucket);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Derive a weekly schedule from the recorded peaks.
+     *
+     * Each run of consecutive buckets where the peak player count is at least
+     * the threshold, lasting at least the specified number of minutes, is
+     * treated as a peak period. A change to the peak view distance is
+     * scheduled at the start of each peak period and a change to the off-peak
+     * view distance is scheduled at its end. Every day's schedule begins with
+     * an entry at midnight, so that each day stands alone.
+     *
+     * @param threshold the minimum player count of a peak period.
+     * @param minutes the minimum duration of a peak period in minutes.
+     * @param peakViewDistance the view distance during peak periods.
+     * @param offPeakViewDistance the view distance at other times.
+     * @return a list of 7 lists of changes, indexed by
+     *         {@link DayOfWeek#ordinal()}.
+     */
+    public List<List<ViewDistanceChange>> deriveSchedule(int threshold, int minutes,
+                                                         int peakViewDistance, int offPeakViewDistance) {
+        boolean[] peak = new boolean[BUCKETS];
+        int minBuckets = Math.max(1, (minutes + BUCKET_MINUTES - 1) / BUCKET_MINUTES);
+
+        // Find the start of a run that doesn't wrap around the end of the week.
+        int origin = 0;
+        while (origin < BUCKETS && getPeak(origin) >= threshold) {
+            ++origin;
+        }
+        if (origin == BUCKETS) {
+            Arrays.fill(peak, true);
+        } else {
+            int runStart = -1;
+            for (int i = 1; i <= BUCKETS; ++i) {
+                int bucket = (origin + i) % BUCKETS;
+                boolean above = (i < BUCKETS) && getPeak(bucket) >= threshold;
+                if (above && runStart < 0) {
+                    runStart = i;
+                } else if (!above && runStart >= 0) {
+                    if (i - runStart >= minBuckets) {
+                        for (int j = runStart; j < i; ++j) {
+                            peak[(origin + j) % BUCKETS] = true;
+                        }
+                    }
+                    runStart = -1;
+                }
+            }
+        }
+
+        List<List<ViewDistanceChange>> days = new ArrayList<List<ViewDistanceChange>>();
+        int bucketsPerDay = BUCKETS / 7;
+        for (int day = 0; day < 7; ++day) {
+            List<ViewDistanceChange> changes = new ArrayList<ViewDistanceChange>();
+            for (int i = 0; i < bucketsPerDay; ++i) {
+                int bucket = day * bucketsPerDay + i;
+                boolean previous = peak[(bucket + BUCKETS - 1) % BUCKETS];
+                if (i == 0 || peak[bucket] != previous) {
+                    LocalTime time = LocalTime.ofSecondOfDay(i * BUCKET_MINUTES * 60L);
+                    changes.add(new ViewDistanceChange(time, peak[bucket] ? peakViewDistance : offPeakViewDistance));
+                }
+            }
+            days.add(changes);
+        }
+        return days;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The time zone used to compute the minute of the week.
+     */
+    protected volatile TimeZone _zone = TimeZone.getDefault();
+
+    /**
+     * The open histogram file.
+     */
+    protected RandomAccessFile _file;
+
+    /**
+     * The memory-mapped contents of the file.
+     */
+    protected MappedByteBuffer _buffer;
+} // class PlayerCountHistogram
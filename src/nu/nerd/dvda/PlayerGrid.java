@@ -0,0 +1,401 @@
+package nu.nerd.dvda;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * A spatial index of online players that detects dense clusters of players
+ * (hotspots) and limits the per-player view distance inside them and inside
+ * configured regions.
+ *
+ * Each world is divided into square cells of a configured number of chunks
+ * along each side, and the number of players in each occupied cell is kept in
+ * a hash table keyed by the packed cell coordinates. The index is updated
+ * incrementally from player events: a move only touches the table when the
+ * player crosses into a different cell, so the cost of maintaining the index
+ * is proportional to the number of players that move between cells, not to
+ * the square of the number of players.
+ *
+ * The density at a location is the number of players in the 3x3 block of
+ * cells centred on the location's cell, found with nine lookups. A location
+ * is in a hotspot when the density reaches the threshold of its world.
+ */
+public class PlayerGrid implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * The view distance limit where there is none.
+     */
+    public static final int NONE = Integer.MAX_VALUE;
+
+    /**
+     * The maximum number of hotspots listed per world.
+     */
+    public static final int LIST_LIMIT = 10;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start indexing all online players.
+     */
+    public void start() {
+        stop();
+        _cellChunks = Math.max(1, DVDA.CONFIG.PLAYERS_HOTSPOTS_CELL_CHUNKS);
+        _running = true;
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            move(player, player.getLocation());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop indexing players and discard the index.
+     */
+    public void stop() {
+        _running = false;
+        _worldToCells.clear();
+        _playerToCell.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum view distance of a player at the specified location,
+     * according to the configured regions and, if enabled, hotspots.
+     *
+     * @param location the location.
+     * @return the lowest view distance of all regions containing the location
+     *         and of the hotspot at the location, or {@link #NONE} if there is
+     *         no limit.
+     */
+    public int getViewDistanceLimit(Location location) {
+        Configuration config = DVDA.CONFIG;
+        int limit = NONE;
+        for (ViewDistanceRegion region : config.PLAYERS_REGIONS) {
+            if (region.contains(location)) {
+                limit = Math.min(limit, region.getViewDistance());
+            }
+        }
+        if (_running && getDensity(location) >= getThreshold(location.getWorld())) {
+            limit = Math.min(limit, config.PLAYERS_HOTSPOTS_VIEW_DISTANCE);
+        }
+        return limit;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players in the 3x3 block of cells centred on the
+     * cell containing the specified location.
+     *
+     * @param location the location.
+     * @return the player density.
+     */
+    public int getDensity(Location location) {
+        Map<Long, Count> cells = _worldToCells.get(location.getWorld());
+        if (cells == null) {
+            return 0;
+        }
+        return getDensity(cells, cellOf(location.getBlockX()), cellOf(location.getBlockZ()));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List the configured regions and the densest hotspots in each adjusted
+     * world.
+     *
+     * @param sink the destination of messages.
+     */
+    public void list(MessageSink sink) {
+        Configuration config = DVDA.CONFIG;
+        for (ViewDistanceRegion region : config.PLAYERS_REGIONS) {
+            sink.accept(ChatColor.GOLD + "Region " + ChatColor.YELLOW + region);
+        }
+        if (!_running) {
+            sink.accept(ChatColor.GOLD + "Hotspot detection is not enabled.");
+            return;
+        }
+
+        int cellBlocks = _cellChunks * WorldSettings.CHUNK_BLOCKS;
+        for (World world : config.WORLDS) {
+            Map<Long, Count> cells = _worldToCells.get(world);
+            int threshold = getThreshold(world);
+            List<long[]> hotspots = new ArrayList<long[]>();
+            if (cells != null) {
+                for (Long key : cells.keySet()) {
+                    int cellX = (int) (key >> 32);
+                    int cellZ = (int) (long) key;
+                    int density = getDensity(cells, cellX, cellZ);
+                    if (density >= threshold) {
+                        hotspots.add(new long[] { density, cellX, cellZ });
+                    }
+                }
+            }
+            hotspots.sort((a, b) -> Long.compare(b[0], a[0]));
+
+            sink.accept(ChatColor.GOLD + "Hotspots in " + ChatColor.YELLOW + world.getName() +
+                        ChatColor.GOLD + " (threshold " + threshold + "): " + ChatColor.WHITE + hotspots.size());
+            for (long[] hotspot : hotspots.subList(0, Math.min(LIST_LIMIT, hotspots.size()))) {
+                sink.accept(String.format("%s%d%s players around %s%d, %d",
+                                          ChatColor.WHITE, hotspot[0], ChatColor.GOLD, ChatColor.YELLOW,
+                                          hotspot[1] * cellBlocks + cellBlocks / 2,
+                                          hotspot[2] * cellBlocks + cellBlocks / 2));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the index when a player moves into a different cell.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        if (!_running) {
+            return;
+        }
+
+        // Most moves stay within a cell; detect those without a lookup.
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        if (from.getWorld() == to.getWorld() &&
+            cellOf(from.getBlockX()) == cellOf(to.getBlockX()) &&
+            cellOf(from.getBlockZ()) == cellOf(to.getBlockZ())) {
+            return;
+        }
+        move(event.getPlayer(), to);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the index when a player teleports.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        if (_running) {
+            move(event.getPlayer(), event.getTo());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the index when a player respawns.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        if (_running) {
+            move(event.getPlayer(), event.getRespawnLocation());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the index when a player changes world.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        if (_running) {
+            move(event.getPlayer(), event.getPlayer().getLocation());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a player to the index when they join.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        if (_running) {
+            move(event.getPlayer(), event.getPlayer().getLocation());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a player from the index when they leave.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        PlayerCell cell = _playerToCell.remove(event.getPlayer().getUniqueId());
+        if (cell != null) {
+            leave(cell);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a player's location, moving them to a different cell if
+     * necessary.
+     *
+     * @param player the player.
+     * @param location the player's new location.
+     */
+    protected void move(Player player, Location location) {
+        World world = location.getWorld();
+        long key = key(cellOf(location.getBlockX()), cellOf(location.getBlockZ()));
+        PlayerCell cell = _playerToCell.get(player.getUniqueId());
+        if (cell == null) {
+            cell = new PlayerCell();
+            _playerToCell.put(player.getUniqueId(), cell);
+        } else if (cell.world == world && cell.key == key) {
+            return;
+        } else {
+            leave(cell);
+        }
+
+        cell.world = world;
+        cell.key = key;
+        Map<Long, Count> cells = _worldToCells.get(world);
+        if (cells == null) {
+            cells = new HashMap<Long, Count>();
+            _worldToCells.put(world, cells);
+        }
+        Count count = cells.get(key);
+        if (count == null) {
+            count = new Count();
+            cells.put(key, count);
+        }
+        ++count.players;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a player from the count of the cell they were in.
+     *
+     * Empty cells are removed from the table, so that its size is bounded by
+     * the number of players.
+     *
+     * @param cell the player's cell.
+     */
+    protected void leave(PlayerCell cell) {
+        Map<Long, Count> cells = _worldToCells.get(cell.world);
+        if (cells != null) {
+            Count count = cells.get(cell.key);
+            if (count != null && --count.players <= 0) {
+                cells.remove(cell.key);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players in the 3x3 block of cells centred on a
+     * cell.
+     *
+     * @param cells the cells of the world.
+     * @param cellX the X coordinate of the central cell.
+     * @param cellZ the Z coordinate of the central cell.
+     * @return the player density.
+     */
+    protected static int getDensity(Map<Long, Count> cells, int cellX, int cellZ) {
+        int density = 0;
+        for (int dx = -1; dx <= 1; ++dx) {
+            for (int dz = -1; dz <= 1; ++dz) {
+                Count count = cells.get(key(cellX + dx, cellZ + dz));
+                if (count != null) {
+                    density += count.players;
+                }
+            }
+        }
+        return density;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the hotspot density threshold of a world.
+     *
+     * @param world the world.
+     * @return the world's own threshold, if configured, or the default.
+     */
+    protected static int getThreshold(World world) {
+        Configuration config = DVDA.CONFIG;
+        Integer threshold = (world != null) ? config.PLAYERS_HOTSPOTS_WORLD_THRESHOLDS.get(world.getName()) : null;
+        return (threshold != null) ? threshold : config.PLAYERS_HOTSPOTS_THRESHOLD;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the coordinate of the cell containing a block coordinate.
+     *
+     * @param block the X or Z block coordinate.
+     * @return the corresponding cell coordinate.
+     */
+    protected int cellOf(int block) {
+        return Math.floorDiv(block >> 4, _cellChunks);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Pack cell coordinates into a hash table key.
+     *
+     * @param cellX the X coordinate of the cell.
+     * @param cellZ the Z coordinate of the cell.
+     * @return the key.
+     */
+    protected static long key(int cellX, int cellZ) {
+        return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of players in a cell; mutable to avoid reboxing on update.
+     */
+    protected static final class Count {
+        /**
+         * The number of players.
+         */
+        int players;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The cell a player was last recorded in.
+     */
+    protected static final class PlayerCell {
+        /**
+         * The world.
+         */
+        World world;
+
+        /**
+         * The packed cell coordinates.
+         */
+        long key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * True if players are being indexed.
+     */
+    protected boolean _running;
+
+    /**
+     * The number of chunks along the side of a cell.
+     */
+    protected int _cellChunks = 1;
+
+    /**
+     * Map from world to map from packed cell coordinates to the number of
+     * players in the cell. Only occupied cells are present.
+     */
+    protected Map<World, Map<Long, Count>> _worldToCells = new HashMap<World, Map<Long, Count>>();
+
+    /**
+     * Map from player UUID to the cell they were last recorded in.
+     */
+    protected Map<UUID, PlayerCell> _playerToCell = new HashMap<UUID, PlayerCell>();
+} // class PlayerGrid
@@ -0,0 +1,78 @@
+package nu.nerd.dvda;
+
+// ----------------------------------------------------------------------------
+/**
+ * A per-player view distance tier, granted by a permission.
+ */
+public class PlayerTier {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param name the name of the tier in the configuration.
+     * @param permission the permission that grants the tier.
+     * @param viewDistance the view distance of players in the tier.
+     */
+    public PlayerTier(String name, String permission, int viewDistance) {
+        _name = name;
+        _permission = permission;
+        _viewDistance = viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the tier.
+     *
+     * @return the name of the tier.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the permission that grants the tier.
+     *
+     * @return the permission that grants the tier.
+     */
+    public String getPermission() {
+        return _permission;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the view distance of players in the tier.
+     *
+     * @return the view distance of players in the tier.
+     */
+    public int getViewDistance() {
+        return _viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a description of the tier.
+     *
+     * @return a description of the tier.
+     */
+    @Override
+    public String toString() {
+        return _name + " (" + _permission + "): " + _viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the tier.
+     */
+    protected String _name;
+
+    /**
+     * The permission that grants the tier.
+     */
+    protected String _permission;
+
+    /**
+     * The view distance of players in the tier.
+     */
+    protected int _viewDistance;
+} // class PlayerTier
@@ -0,0 +1,391 @@
+package nu.nerd.dvda;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * Sets the view distance of individual players according to their permission
+ * tier, whether they are AFK, how fast they have been moving and whether they
+ * are in a configured region or a hotspot (see {@link PlayerGrid}).
+ *
+ * Like world view distances, per-player view distances are not part of the
+ * Spigot API that DVDA is built against, so Player.setViewDistance(int) (or
+ * the newer Player.setSendViewDistance(int)) is looked up reflectively.
+ *
+ * Players are evaluated in batches of a fixed size each tick, so that the cost
+ * per tick doesn't grow with the number of players online. The scheduled view
+ * distance acts as a global ceiling on the average: the sum of all players'
+ * view distances is kept within the scheduled view distance multiplied by the
+ * number of tracked players. Players outside the adjusted worlds use none of
+ * the budget. Within that budget, players in higher tiers can see further
+ * than the schedule alone would allow, and players without a tier get the
+ * scheduled view distance. The configured minimum view distance takes
+ * precedence over the budget: a player is never limited below it, even if
+ * that leaves the sum over budget. Where worlds follow different schedule
+ * profiles, players without a tier get the view distance scheduled by their
+ * world's profile, and the budget is set by the highest of them.
+ */
+public class PlayerViewDistance implements Listener, Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the server supports per-player view distances.
+     *
+     * @return true if per-player view distances are supported.
+     */
+    public static boolean isSupported() {
+        return SET_VIEW_DISTANCE != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start tracking all online players.
+     */
+    public void start() {
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            add(player);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop tracking all players.
+     */
+    public void stop() {
+        _states.clear();
+        _playerToState.clear();
+        _totalViewDistance = 0;
+        _unevaluated = 0;
+        _next = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Evaluate the next batch of players.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        if (_states.isEmpty()) {
+            return;
+        }
+
+        // Look up each profile's schedule once per batch.
+        long now = System.currentTimeMillis();
+        int limit = DVDA.PLUGIN.getLoadShedder().getCeiling();
+        int ceiling = 0;
+        _ceilings.clear();
+        for (ScheduleProfile profile : DVDA.CONFIG.PROFILE_WORLDS.keySet()) {
+            ViewDistanceChange change = profile.getIndex().inForce(now);
+            int profileCeiling = Math.min(limit, (change != null) ? change.getViewDistance()
+                                                                  : Bukkit.getServer().getViewDistance());
+            _ceilings.put(profile, profileCeiling);
+            ceiling = Math.max(ceiling, profileCeiling);
+        }
+
+        int batch = Math.min(DVDA.CONFIG.PLAYERS_BATCH_SIZE, _states.size());
+        for (int i = 0; i < batch; ++i) {
+            if (_next >= _states.size()) {
+                _next = 0;
+            }
+            evaluate(_states.get(_next++), now, ceiling, limit);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players being tracked.
+     *
+     * @return the number of players being tracked.
+     */
+    public int getPlayerCount() {
+        return _states.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sum of the view distances of all tracked players.
+     *
+     * @return the sum of the view distances of all tracked players.
+     */
+    public long getTotalViewDistance() {
+        return _totalViewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start tracking a player when they join.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        if (DVDA.CONFIG.PLAYERS_ENABLED && isSupported()) {
+            add(event.getPlayer());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop tracking a player when they leave.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        PlayerState state = _playerToState.remove(event.getPlayer().getUniqueId());
+        if (state != null) {
+            // Swap with the last state to remove in constant time.
+            PlayerState last = _states.remove(_states.size() - 1);
+            if (last != state) {
+                _states.set(state.index, last);
+                last.index = state.index;
+            }
+            _totalViewDistance -= state.viewDistance;
+            if (!state.evaluated) {
+                --_unevaluated;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start tracking a player.
+     *
+     * @param player the player.
+     */
+    protected void add(Player player) {
+        if (_playerToState.containsKey(player.getUniqueId())) {
+            return;
+        }
+        PlayerState state = new PlayerState(player);
+        player.getLocation(state.location);
+        state.lastMoveMillis = System.currentTimeMillis();
+        state.lastEvaluatedMillis = state.lastMoveMillis;
+        state.viewDistance = 0;
+        state.evaluated = false;
+        state.index = _states.size();
+        ++_unevaluated;
+        _states.add(state);
+        _playerToState.put(player.getUniqueId(), state);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Evaluate and apply the view distance of one player.
+     *
+     * @param state the player's state.
+     * @param now the current time in milliseconds since the epoch.
+     * @param ceiling the highest view distance scheduled by any profile; the
+     *        maximum average view distance of all players.
+     * @param limit the maximum view distance of any player while load
+     *        shedding is engaged, or {@link LoadShedder#NONE}.
+     */
+    protected void evaluate(PlayerState state, long now, int ceiling, int limit) {
+        Configuration config = DVDA.CONFIG;
+        long budget = (long) ceiling * _states.size();
+        Player player = state.player;
+
+        double oldX = state.location.getX();
+        double oldZ = state.location.getZ();
+        World oldWorld = state.location.getWorld();
+        player.getLocation(state.location);
+        double dx = state.location.getX() - oldX;
+        double dz = state.location.getZ() - oldZ;
+        double distance = Math.sqrt(dx * dx + dz * dz);
+        if (distance > 0 || state.location.getWorld() != oldWorld) {
+            state.lastMoveMillis = now;
+        }
+        long elapsed = Math.max(1, now - state.lastEvaluatedMillis);
+        double speed = (state.location.getWorld() == oldWorld) ? distance * 1000.0 / elapsed : 0;
+        state.lastEvaluatedMillis = now;
+
+        if (!config.WORLDS.contains(state.location.getWorld())) {
+            // Release the player's share of the budget.
+            markEvaluated(state);
+            _totalViewDistance -= state.viewDistance;
+            state.viewDistance = 0;
+            return;
+        }
+        int worldCeiling = _ceilings.get(config.getProfile(state.location.getWorld()));
+
+        int viewDistance;
+        if (now - state.lastMoveMillis >= config.PLAYERS_AFK_SECONDS * 1000L) {
+            viewDistance = config.PLAYERS_AFK_VIEW_DISTANCE;
+        } else {
+            viewDistance = worldCeiling;
+            for (PlayerTier tier : config.PLAYERS_TIERS) {
+                if (player.hasPermission(tier.getPermission())) {
+                    viewDistance = tier.getViewDistance();
+                    break;
+                }
+            }
+            if (speed < config.PLAYERS_MOVING_SPEED) {
+                viewDistance -= config.PLAYERS_STATIONARY_REDUCTION;
+            }
+        }
+        viewDistance = Math.min(viewDistance, DVDA.PLUGIN.getPlayerGrid().getViewDistanceLimit(state.location));
+        viewDistance = Math.max(config.PLAYERS_MIN_VIEW_DISTANCE,
+                                Math.min(config.PLAYERS_MAX_VIEW_DISTANCE, viewDistance));
+        viewDistance = Math.min(viewDistance, limit);
+
+        // If the player's view distance doesn't fit in the budget, limit it to
+        // what remains after reserving the ceiling for every other player who
+        // has not yet been given a view distance. The minimum takes precedence
+        // over the budget.
+        long reserved = (long) ceiling * (_unevaluated - (state.evaluated ? 0 : 1));
+        long remaining = budget - reserved - (_totalViewDistance - state.viewDistance);
+        if (viewDistance > remaining) {
+            viewDistance = (int) Math.max(config.PLAYERS_MIN_VIEW_DISTANCE, Math.min(viewDistance, remaining));
+        }
+
+        if (viewDistance != state.viewDistance) {
+            try {
+                SET_VIEW_DISTANCE.invoke(player, viewDistance);
+                markEvaluated(state);
+                _totalViewDistance += viewDistance - state.viewDistance;
+                state.viewDistance = viewDistance;
+            } catch (Exception ex) {
+                DVDA.PLUGIN.getLogger().warning("Unable to set the view distance of " + player.getName() +
+                                                ": " + ex.getMessage());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record that a player has been given a view distance, or has been found
+     * outside the adjusted worlds, so that the ceiling is no longer reserved
+     * for them.
+     *
+     * @param state the player's state.
+     */
+    protected void markEvaluated(PlayerState state) {
+        if (!state.evaluated) {
+            state.evaluated = true;
+            --_unevaluated;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up the first of the named single int argument Player methods that
+     * exists.
+     *
+     * @param names the method names, in order of preference.
+     * @return the Method, or null if none exist.
+     */
+    protected static Method findMethod(String... names) {
+        for (String name : names) {
+            try {
+                return Player.class.getMethod(name, int.class);
+            } catch (NoSuchMethodException ex) {
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Per-player state.
+     */
+    protected static final class PlayerState {
+        /**
+         * Constructor.
+         *
+         * @param player the player.
+         */
+        PlayerState(Player player) {
+            this.player = player;
+        }
+
+        /**
+         * The player.
+         */
+        final Player player;
+
+        /**
+         * The location of the player when last evaluated, reused to avoid
+         * allocation.
+         */
+        final Location location = new Location(null, 0, 0, 0);
+
+        /**
+         * The time when the player was last seen to move.
+         */
+        long lastMoveMillis;
+
+        /**
+         * The time when the player was last evaluated.
+         */
+        long lastEvaluatedMillis;
+
+        /**
+         * The view distance most recently set for the player, or 0 if not set
+         * or the player is outside the adjusted worlds.
+         */
+        int viewDistance;
+
+        /**
+         * True once the player has been given a view distance or found
+         * outside the adjusted worlds.
+         */
+        boolean evaluated;
+
+        /**
+         * The index of this state in _states.
+         */
+        int index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Player.setSendViewDistance(int) or Player.setViewDistance(int), or null
+     * if not supported.
+     */
+    protected static final Method SET_VIEW_DISTANCE = findMethod("setSendViewDistance", "setViewDistance");
+
+    /**
+     * States of all tracked players, in evaluation order.
+     */
+    protected List<PlayerState> _states = new ArrayList<PlayerState>();
+
+    /**
+     * Map from player UUID to state.
+     */
+    protected Map<UUID, PlayerState> _playerToState = new HashMap<UUID, PlayerState>();
+
+    /**
+     * Index in _states of the next player to evaluate.
+     */
+    protected int _next;
+
+    /**
+     * Sum of the view distances of all tracked players.
+     */
+    protected long _totalViewDistance;
+
+    /**
+     * The number of tracked players who have not yet been evaluated; the
+     * ceiling is reserved for each of them in the budget.
+     */
+    protected int _unevaluated;
+
+    /**
+     * The view distance scheduled by each profile in the current batch,
+     * limited by load shedding; reused between batches.
+     */
+    protected final Map<ScheduleProfile, Integer> _ceilings = new IdentityHashMap<ScheduleProfile, Integer>();
+} // class PlayerViewDistance
@@ -0,0 +1,210 @@
+package nu.nerd.dvda;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+// ----------------------------------------------------------------------------
+/**
+ * Predicts when the server will next restart and chooses the view distance
+ * that best suits the whole of the coming uptime.
+ *
+ * The next restart is either the first of the configured daily restart times,
+ * or, if none are configured, the median of recently recorded uptimes after
+ * the current time.
+ *
+ * Every minute of the predicted uptime is attributed to the scheduled change
+ * in force at that minute, weighted by one plus the peak player count recorded
+ * for that minute of the week in the {@link PlayerCountHistogram} (or
+ * uniformly, if no player counts are recorded). The chosen change is the one
+ * whose view distance is nearest the weighted mean view distance, preferring
+ * the lower view distance on a tie. Choosing a scheduled change, rather than
+ * synthesising one, preserves its chunk budget, if any.
+ */
+public class RestartPlanner {
+    // ------------------------------------------------------------------------
+    /**
+     * Uptimes shorter than this, in milliseconds, are assumed to be crashes
+     * or manual restarts, and are not recorded. It is also the minimum time
+     * until the next configured restart time.
+     */
+    public static final long MIN_UPTIME_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * Duration of the steps in which the uptime is sampled, in milliseconds.
+     */
+    public static final long STEP_MILLIS = 60 * 1000L;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param histogram the source of expected player counts.
+     */
+    public RestartPlanner(PlayerCountHistogram histogram) {
+        _histogram = histogram;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the recorded uptimes from a file.
+     *
+     * @param file the uptime history file, which need not exist.
+     */
+    public void load(File file) {
+        _file = file;
+        _uptimes.clear();
+        _uptimes.addAll(YamlConfiguration.loadConfiguration(file).getLongList("uptimes"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the length of an uptime and save the history.
+     *
+     * Only the most recent uptimes, up to the configured history length, are
+     * kept.
+     *
+     * @param startMillis the time when the server started.
+     * @param stopMillis the time when the server stopped.
+     */
+    public void recordUptime(long startMillis, long stopMillis) {
+        long uptime = stopMillis - startMillis;
+        if (_file == null || uptime < MIN_UPTIME_MILLIS) {
+            return;
+        }
+        _uptimes.add(uptime);
+        while (_uptimes.size() > DVDA.CONFIG.RESTART_HISTORY) {
+            _uptimes.remove(0);
+        }
+
+        YamlConfiguration history = new YamlConfiguration();
+        history.set("uptimes", _uptimes);
+        try {
+            history.save(_file);
+        } catch (IOException ex) {
+            DVDA.PLUGIN.getLogger().warning("Unable to save uptime history: " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the expected length of an uptime: the median of the recorded
+     * uptimes, or the configured default if none are recorded.
+     *
+     * @return the expected uptime in milliseconds.
+     */
+    public long getExpectedUptime() {
+        if (_uptimes.isEmpty()) {
+            return DVDA.CONFIG.RESTART_DEFAULT_UPTIME_HOURS * 60 * 60 * 1000L;
+        }
+        List<Long> sorted = new ArrayList<Long>(_uptimes);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Predict the time of the next restart after a server starting at the
+     * specified time.
+     *
+     * @param startMillis the time when the server starts, in milliseconds
+     *        since the epoch.
+     * @return the predicted time of the next restart.
+     */
+    public long predictRestart(long startMillis) {
+        List<LocalTime> times = DVDA.CONFIG.RESTART_TIMES;
+        if (times.isEmpty()) {
+            return startMillis + getExpectedUptime();
+        }
+
+        ZoneId zone = DaySchedule.getZone();
+        long earliest = startMillis + MIN_UPTIME_MILLIS;
+        LocalDate date = Instant.ofEpochMilli(earliest).atZone(zone).toLocalDate();
+        long best = Long.MAX_VALUE;
+        for (int day = 0; day < 2; ++day) {
+            for (LocalTime time : times) {
+                long millis = date.plusDays(day).atTime(time).atZone(zone).toInstant().toEpochMilli();
+                if (millis >= earliest && millis < best) {
+                    best = millis;
+                }
+            }
+        }
+        return best;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Choose the change in a schedule that best suits the period between the
+     * specified times.
+     *
+     * @param index the index of the schedule.
+     * @param startMillis the start of the uptime.
+     * @param endMillis the predicted end of the uptime.
+     * @return the chosen change, or null if nothing is scheduled.
+     */
+    public ViewDistanceChange plan(ScheduleIndex index, long startMillis, long endMillis) {
+        ViewDistanceChange change = index.inForce(startMillis);
+        if (change == null) {
+            return null;
+        }
+
+        List<ViewDistanceChange> candidates = new ArrayList<ViewDistanceChange>();
+        candidates.add(change);
+        double totalWeight = 0;
+        double weightedSum = 0;
+        long time = startMillis;
+        long nextTime = index.nextTime(time);
+        while (time < endMillis) {
+            if (nextTime >= 0 && time >= nextTime) {
+                change = index.inForce(time);
+                nextTime = index.nextTime(time);
+                candidates.add(change);
+            }
+            double weight = (1 + _histogram.getPeak(_histogram.getBucket(time))) *
+                            (Math.min(STEP_MILLIS, endMillis - time) / (double) STEP_MILLIS);
+            totalWeight += weight;
+            weightedSum += weight * change.getViewDistance();
+            time += STEP_MILLIS;
+        }
+        if (totalWeight == 0) {
+            return change;
+        }
+
+        double mean = weightedSum / totalWeight;
+        ViewDistanceChange best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for (ViewDistanceChange candidate : candidates) {
+            double distance = Math.abs(candidate.getViewDistance() - mean);
+            if (distance < bestDistance ||
+                (distance == bestDistance && candidate.getViewDistance() < best.getViewDistance())) {
+                best = candidate;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The source of expected player counts.
+     */
+    protected final PlayerCountHistogram _histogram;
+
+    /**
+     * The uptime history file, or null if not loaded.
+     */
+    protected File _file;
+
+    /**
+     * Recorded uptimes in milliseconds, oldest first.
+     */
+    protected List<Long> _uptimes = new ArrayList<Long>();
+} // class RestartPlanner
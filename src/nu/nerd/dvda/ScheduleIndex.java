@@ -0,0 +1,60 @@
+package nu.nerd.dvda;
+
+// ----------------------------------------------------------------------------
+/**
+ * A compiled, immutable index of scheduled view distance changes that answers
+ * time queries without allocating.
+ */
+public interface ScheduleIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the last change that falls strictly between the specified times,
+     * or null if there is no such change.
+     *
+     * @param startMillis the start time in milliseconds since the epoch.
+     * @param endMillis the end time in milliseconds since the epoch.
+     * @return the last change between the times, or null.
+     */
+    public ViewDistanceChange findLast(long startMillis, long endMillis);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the change that is in force at the specified time, i.e. the last
+     * change at or before that time.
+     *
+     * @param millis the time in milliseconds since the epoch.
+     * @return the change in force, or null if there is none.
+     */
+    public ViewDistanceChange inForce(long millis);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time of the first change strictly after the specified time.
+     *
+     * @param millis the time in milliseconds since the epoch.
+     * @return the time of the next change in milliseconds since the epoch, or
+     *         -1 if there is none.
+     */
+    public long nextTime(long millis);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the first change strictly after the specified time.
+     *
+     * @param millis the time in milliseconds since the epoch.
+     * @return the next change, or null if there is none.
+     */
+    public ViewDistanceChange next(long millis);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this index can answer queries about the specified time.
+     *
+     * An index that covers a limited span of dates needs to be recompiled as
+     * time passes.
+     *
+     * @param millis the time in milliseconds since the epoch.
+     * @return true if the index is valid for the time.
+     */
+    public boolean covers(long millis);
+} // class ScheduleIndex
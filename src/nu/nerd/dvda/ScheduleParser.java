@@ -0,0 +1,302 @@
+package nu.nerd.dvda;
+
+import java.time.LocalTime;
+
+// ----------------------------------------------------------------------------
+/**
+ * Parses serialised {@link ViewDistanceChange}s.
+ *
+ * The serialised form is "&lt;time&gt; &lt;view-distance&gt;", where the time
+ * is "H:mm", "HH:mm", "HH:mm:ss" or "HH:mm:ss.fraction", optionally followed,
+ * in any order, by "budget &lt;chunks&gt;", "simulation &lt;chunks&gt;",
+ * "tracking &lt;blocks&gt;" and "activation &lt;blocks&gt;". Fields are
+ * separated by any amount of whitespace.
+ *
+ * Settings that would be inconsistent with the view distance are rejected: the
+ * simulation distance may not exceed the view distance, the tracking range may
+ * not exceed the view distance in blocks and the activation range may not
+ * exceed the simulation distance (or, if not specified, the view distance) in
+ * blocks.
+ *
+ * The parser scans the characters of the entry directly, without splitting it
+ * into substrings or calling general purpose parsers, so that loading a large
+ * generated schedule creates little garbage. Every kind of malformed entry is
+ * reported as a NumberFormatException whose message says what was expected
+ * and at which column.
+ */
+public class ScheduleParser {
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a serialised change.
+     *
+     * @param text the serialised change.
+     * @return the change.
+     * @throws NumberFormatException if the text is malformed.
+     */
+    public static ViewDistanceChange parse(CharSequence text) throws NumberFormatException {
+        ScheduleParser parser = new ScheduleParser(text);
+        return parser.parseChange();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param text the text to parse.
+     */
+    protected ScheduleParser(CharSequence text) {
+        _text = text;
+        _length = text.length();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the whole text as a change.
+     *
+     * @return the change.
+     * @throws NumberFormatException if the text is malformed.
+     */
+    protected ViewDistanceChange parseChange() throws NumberFormatException {
+        skipSpace();
+        int hour = parseDigits(1, 2, "hour");
+        expect(':');
+        int minute = parseDigits(2, 2, "minute");
+        int second = 0;
+        int nanos = 0;
+        if (peek() == ':') {
+            ++_pos;
+            second = parseDigits(2, 2, "second");
+            if (peek() == '.') {
+                ++_pos;
+                int start = _pos;
+                nanos = parseDigits(1, 9, "fraction of a second");
+                for (int digits = _pos - start; digits < 9; ++digits) {
+                    nanos *= 10;
+                }
+            }
+        }
+        if (hour > 23 || minute > 59 || second > 59) {
+            throw error("invalid time of day");
+        }
+
+        requireSpace();
+        int viewDistance = parseDigits(1, 9, "view distance");
+        if (viewDistance < 1) {
+            throw error("view distance must be at least 1");
+        }
+
+        int chunkBudget = 0;
+        int simulationDistance = 0;
+        int trackingRange = 0;
+        int activationRange = 0;
+        endField();
+        while (_pos < _length) {
+            int start = _pos;
+            if (acceptWord("budget")) {
+                chunkBudget = parseSetting(chunkBudget, "chunk budget");
+            } else if (acceptWord("simulation")) {
+                simulationDistance = parseSetting(simulationDistance, "simulation distance");
+                if (simulationDistance > viewDistance) {
+                    throw error(start, "simulation distance must not exceed view distance");
+                }
+            } else if (acceptWord("tracking")) {
+                trackingRange = parseSetting(trackingRange, "tracking range");
+                if (trackingRange > viewDistance * WorldSettings.CHUNK_BLOCKS) {
+                    throw error(start, "tracking range must not exceed view distance (" +
+                                       viewDistance * WorldSettings.CHUNK_BLOCKS + " blocks)");
+                }
+            } else if (acceptWord("activation")) {
+                activationRange = parseSetting(activationRange, "activation range");
+            } else {
+                throw error("expecting 'budget', 'simulation', 'tracking' or 'activation'");
+            }
+            endField();
+        }
+
+        // The activation range is checked last, since it may precede the
+        // simulation distance that limits it.
+        int activationLimit = ((simulationDistance > 0) ? simulationDistance : viewDistance) *
+                              WorldSettings.CHUNK_BLOCKS;
+        if (activationRange > activationLimit) {
+            throw error(_length, "activation range must not exceed " +
+                                 ((simulationDistance > 0) ? "simulation" : "view") + " distance (" +
+                                 activationLimit + " blocks)");
+        }
+        return new ViewDistanceChange(LocalTime.of(hour, minute, second, nanos), viewDistance, chunkBudget,
+                                      simulationDistance, trackingRange, activationRange);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the value of a keyword setting, after the keyword.
+     *
+     * @param previous the value of the setting so far, or 0 if not yet set.
+     * @param what a description of the setting, for error messages.
+     * @return the value, which is at least 1.
+     * @throws NumberFormatException if the setting is repeated or the value is
+     *         malformed.
+     */
+    protected int parseSetting(int previous, String what) throws NumberFormatException {
+        if (previous != 0) {
+            throw error(what + " is specified more than once");
+        }
+        requireSpace();
+        int value = parseDigits(1, 9, what);
+        if (value < 1) {
+            throw error(what + " must be at least 1");
+        }
+        return value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a run of decimal digits as an unsigned integer.
+     *
+     * @param minDigits the minimum number of digits.
+     * @param maxDigits the maximum number of digits.
+     * @param what a description of the field, for error messages.
+     * @return the value.
+     * @throws NumberFormatException if there are too few or too many digits.
+     */
+    protected int parseDigits(int minDigits, int maxDigits, String what) throws NumberFormatException {
+        int start = _pos;
+        int value = 0;
+        while (_pos < _length) {
+            char c = _text.charAt(_pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            if (_pos - start == maxDigits) {
+                throw error("too many digits in " + what);
+            }
+            value = value * 10 + (c - '0');
+            ++_pos;
+        }
+        if (_pos - start < minDigits) {
+            throw error("expecting " + what);
+        }
+        return value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Consume the specified character.
+     *
+     * @param c the expected character.
+     * @throws NumberFormatException if the next character is different.
+     */
+    protected void expect(char c) throws NumberFormatException {
+        if (peek() != c) {
+            throw error("expecting '" + c + "'");
+        }
+        ++_pos;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Consume the specified word, ignoring case, if it is next.
+     *
+     * @param word the word, in lower case.
+     * @return true if the word was consumed; false if the next characters are
+     *         different, in which case nothing is consumed.
+     */
+    protected boolean acceptWord(String word) {
+        int end = _pos + word.length();
+        if (end > _length) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); ++i) {
+            if (Character.toLowerCase(_text.charAt(_pos + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        _pos = end;
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Consume at least one whitespace character.
+     *
+     * @throws NumberFormatException if the next character is not whitespace.
+     */
+    protected void requireSpace() throws NumberFormatException {
+        if (_pos >= _length || !Character.isWhitespace(_text.charAt(_pos))) {
+            throw error(_pos >= _length ? "entry is incomplete" : "expecting whitespace");
+        }
+        skipSpace();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Consume the whitespace that must follow a field, unless the field ends
+     * the text.
+     *
+     * @throws NumberFormatException if the field is followed by something
+     *         other than whitespace.
+     */
+    protected void endField() throws NumberFormatException {
+        if (_pos < _length) {
+            requireSpace();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Consume any whitespace characters.
+     */
+    protected void skipSpace() {
+        while (_pos < _length && Character.isWhitespace(_text.charAt(_pos))) {
+            ++_pos;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the next character without consuming it.
+     *
+     * @return the next character, or 0 at the end of the text.
+     */
+    protected char peek() {
+        return (_pos < _length) ? _text.charAt(_pos) : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an exception describing an error at the current position.
+     *
+     * @param message the error message.
+     * @return the exception.
+     */
+    protected NumberFormatException error(String message) {
+        return error(_pos, message);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an exception describing an error at the specified position.
+     *
+     * @param pos the index of the character where the error was found.
+     * @param message the error message.
+     * @return the exception.
+     */
+    protected NumberFormatException error(int pos, String message) {
+        return new NumberFormatException("column " + (pos + 1) + ": " + message);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The text being parsed.
+     */
+    protected final CharSequence _text;
+
+    /**
+     * The length of the text.
+     */
+    protected final int _length;
+
+    /**
+     * The index of the next character to parse.
+     */
+    protected int _pos;
+} // class ScheduleParser
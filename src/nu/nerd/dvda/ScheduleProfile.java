@@ -0,0 +1,199 @@
+package nu.nerd.dvda;
+
+import java.time.DayOfWeek;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bukkit.ChatColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.MemoryConfiguration;
+
+// ----------------------------------------------------------------------------
+/**
+ * A named set of schedules that applies to a group of worlds.
+ *
+ * The {@link #DEFAULT} profile holds the schedules in the "schedule" section
+ * of the configuration and applies to every adjusted world that is not listed
+ * in another profile. Other profiles are loaded from the "profiles" section,
+ * so that, for example, the nether and resource worlds can follow a cheaper
+ * schedule than the overworld.
+ *
+ * Each profile holds its own {@link ScheduleSnapshot}, which is replaced with
+ * a recompiled copy when its index no longer covers the current time.
+ */
+public class ScheduleProfile {
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the default profile.
+     */
+    public static final String DEFAULT_NAME = "default";
+
+    /**
+     * The profile of all adjusted worlds not listed in another profile.
+     */
+    public static final ScheduleProfile DEFAULT = new ScheduleProfile(DEFAULT_NAME, Collections.<String> emptyList(),
+        new ScheduleSnapshot(0, new DaySchedule(), Collections.<DayOfWeek, DaySchedule> emptyMap(),
+                             Collections.<DateRule> emptyList(), ZoneId.systemDefault(), new ValidationReport()));
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse all profiles in the configuration section, in declaration order.
+     *
+     * This does not use any Bukkit state and can be called off the main
+     * thread.
+     *
+     * @param profiles the configuration section, or null if there is none.
+     * @return the profiles.
+     */
+    public static List<ScheduleProfile> parseAll(ConfigurationSection profiles) {
+        List<ScheduleProfile> result = new ArrayList<ScheduleProfile>();
+        if (profiles != null) {
+            for (String name : profiles.getKeys(false)) {
+                result.add(parse(name, profiles.getConfigurationSection(name)));
+            }
+        }
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse one profile.
+     *
+     * Problems are recorded in the report of the profile's snapshot.
+     *
+     * @param name the name of the profile.
+     * @param profile the configuration section, which contains a string list
+     *        called "worlds" and a "schedule" section in the same form as the
+     *        default schedule (see
+     *        {@link DaySchedule#loadAll(MessageSink, ConfigurationSection)}),
+     *        or null if the profile is not a section.
+     * @return the profile.
+     */
+    public static ScheduleProfile parse(String name, ConfigurationSection profile) {
+        ConfigurationSection schedule = (profile != null) ? profile.getConfigurationSection("schedule") : null;
+        ScheduleSnapshot snapshot = DaySchedule.parse((schedule != null) ? schedule : new MemoryConfiguration());
+        if (profile == null) {
+            snapshot.getReport().error(name, "expecting worlds and schedule");
+            return new ScheduleProfile(name, Collections.<String> emptyList(), snapshot);
+        }
+        if (schedule == null) {
+            snapshot.getReport().error("schedule", "missing");
+        }
+        return new ScheduleProfile(name, profile.getStringList("worlds"), snapshot);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param name the name of the profile.
+     * @param worlds the names of the worlds to which the profile applies.
+     * @param snapshot the schedules.
+     */
+    public ScheduleProfile(String name, List<String> worlds, ScheduleSnapshot snapshot) {
+        _name = name;
+        _worlds = Collections.unmodifiableList(new ArrayList<String>(worlds));
+        _snapshot.set(snapshot);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the profile.
+     *
+     * @return the name of the profile.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the names of the worlds listed in the profile.
+     *
+     * @return the world names; empty for the default profile.
+     */
+    public List<String> getWorlds() {
+        return _worlds;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the current schedule snapshot of this profile.
+     *
+     * If the snapshot's index no longer covers the current time, a copy with a
+     * recompiled index is published first, unless another snapshot has been
+     * published in the meantime.
+     *
+     * @return the current ScheduleSnapshot.
+     */
+    public ScheduleSnapshot getSnapshot() {
+        ScheduleSnapshot snapshot = _snapshot.get();
+        if (!snapshot.getIndex().covers(System.currentTimeMillis())) {
+            _snapshot.compareAndSet(snapshot, snapshot.recompile());
+            snapshot = _snapshot.get();
+        }
+        return snapshot;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of all scheduled changes in the current snapshot.
+     *
+     * @return the ScheduleIndex.
+     */
+    public ScheduleIndex getIndex() {
+        return getSnapshot().getIndex();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Publish a new schedule snapshot, replacing the current one.
+     *
+     * @param snapshot the snapshot.
+     */
+    public void publish(ScheduleSnapshot snapshot) {
+        _snapshot.set(snapshot);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List the worlds and schedules of this profile to the sink.
+     *
+     * @param sink the MessageSink to log to.
+     */
+    public void list(MessageSink sink) {
+        sink.accept(ChatColor.GOLD + "Profile " + ChatColor.YELLOW + _name + ChatColor.GOLD + " (" +
+                    ChatColor.WHITE + String.join(", ", _worlds) + ChatColor.GOLD + "):");
+        DaySchedule.listAll(sink, getSnapshot());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the profile.
+     *
+     * @return the name of the profile.
+     */
+    @Override
+    public String toString() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the profile.
+     */
+    protected final String _name;
+
+    /**
+     * The names of the worlds listed in the profile.
+     */
+    protected final List<String> _worlds;
+
+    /**
+     * The current schedule snapshot.
+     */
+    protected final AtomicReference<ScheduleSnapshot> _snapshot = new AtomicReference<ScheduleSnapshot>();
+} // class ScheduleProfile
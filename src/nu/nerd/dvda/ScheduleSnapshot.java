@@ -0,0 +1,254 @@
+package nu.nerd.dvda;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable, versioned set of schedules together with the index compiled
+ * from them.
+ *
+ * Snapshots are built in full, possibly off the main thread, and then
+ * published by {@link ScheduleProfile#publish(ScheduleSnapshot)} with a single
+ * reference swap. Readers take the current snapshot once and use only that, so
+ * they never see a partially loaded schedule and never need a lock.
+ *
+ * The {@link DaySchedule}s and {@link DateRule}s in a snapshot must not be
+ * modified after the snapshot is constructed.
+ */
+public class ScheduleSnapshot {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * Compiles the index of all changes.
+     *
+     * @param version the version number, which increases with each load.
+     * @param defaultSchedule the schedule on days with no specific schedule.
+     * @param dayToSchedule schedules of specific days of the week.
+     * @param rules date rules, in declaration order.
+     * @param zone the time zone used to interpret scheduled times.
+     * @param report the problems found when loading the schedules.
+     */
+    public ScheduleSnapshot(long version, DaySchedule defaultSchedule, Map<DayOfWeek, DaySchedule> dayToSchedule,
+                            List<DateRule> rules, ZoneId zone, ValidationReport report) {
+        _version = version;
+        _default = defaultSchedule;
+        Map<DayOfWeek, DaySchedule> days = new EnumMap<DayOfWeek, DaySchedule>(DayOfWeek.class);
+        days.putAll(dayToSchedule);
+        _dayToSchedule = Collections.unmodifiableMap(days);
+        _rules = Collections.unmodifiableList(new ArrayList<DateRule>(rules));
+        _zone = zone;
+        _report = report;
+        _loadedMillis = System.currentTimeMillis();
+        _index = compile();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this snapshot, with the same version, whose index is
+     * compiled for the current date.
+     *
+     * @return the recompiled snapshot.
+     */
+    public ScheduleSnapshot recompile() {
+        return new ScheduleSnapshot(this);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the version number.
+     *
+     * @return the version number.
+     */
+    public long getVersion() {
+        return _version;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time when the schedules were loaded.
+     *
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getLoadedMillis() {
+        return _loadedMillis;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the default schedule.
+     *
+     * @return the default schedule.
+     */
+    public DaySchedule getDefault() {
+        return _default;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the specific schedule of a day of the week.
+     *
+     * @param day the day.
+     * @return the schedule, or null if the default applies.
+     */
+    public DaySchedule getSpecific(DayOfWeek day) {
+        return _dayToSchedule.get(day);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the schedule in effect on a day of the week.
+     *
+     * @param day the day.
+     * @return the specific schedule of the day, or the default schedule.
+     */
+    public DaySchedule of(DayOfWeek day) {
+        return _dayToSchedule.getOrDefault(day, _default);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all date rules, in declaration order.
+     *
+     * @return the date rules.
+     */
+    public List<DateRule> getRules() {
+        return _rules;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time zone used to interpret scheduled times.
+     *
+     * @return the time zone.
+     */
+    public ZoneId getZone() {
+        return _zone;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the problems found when loading the schedules.
+     *
+     * @return the report.
+     */
+    public ValidationReport getReport() {
+        return _report;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of all scheduled changes.
+     *
+     * @return the index.
+     */
+    public ScheduleIndex getIndex() {
+        return _index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile the schedules into an index spanning the weeks around the
+     * specified date, without replacing this snapshot's own index.
+     *
+     * This allows changes to be looked up at times far from the present, for
+     * example when simulating a schedule against a recorded trace.
+     *
+     * If there are no date rules, the schedule repeats weekly and is compiled
+     * into a {@link WeeklyTable}, which covers all dates. Otherwise, it is
+     * compiled into a {@link CalendarIndex}.
+     *
+     * @param today the date around which the index is compiled, in this
+     *        snapshot's zone.
+     * @return the index.
+     */
+    public ScheduleIndex compile(LocalDate today) {
+        DaySchedule[] days = new DaySchedule[DayOfWeek.values().length];
+        for (DayOfWeek day : DayOfWeek.values()) {
+            days[day.ordinal()] = of(day);
+        }
+        if (_rules.isEmpty()) {
+            return WeeklyTable.compile(days, TimeZone.getTimeZone(_zone));
+        } else {
+            return CalendarIndex.compile(today, days, _rules, _zone);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy constructor that recompiles the index.
+     *
+     * @param other the snapshot to copy.
+     */
+    protected ScheduleSnapshot(ScheduleSnapshot other) {
+        _version = other._version;
+        _default = other._default;
+        _dayToSchedule = other._dayToSchedule;
+        _rules = other._rules;
+        _zone = other._zone;
+        _report = other._report;
+        _loadedMillis = other._loadedMillis;
+        _index = compile();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile the schedules into an index spanning the weeks around the
+     * current date.
+     *
+     * @return the index.
+     */
+    protected ScheduleIndex compile() {
+        return compile(LocalDate.now(_zone));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The version number, which increases with each load.
+     */
+    protected final long _version;
+
+    /**
+     * The default schedule.
+     */
+    protected final DaySchedule _default;
+
+    /**
+     * Schedules of specific days of the week.
+     */
+    protected final Map<DayOfWeek, DaySchedule> _dayToSchedule;
+
+    /**
+     * Date rules, in declaration order.
+     */
+    protected final List<DateRule> _rules;
+
+    /**
+     * The time zone used to interpret scheduled times.
+     */
+    protected final ZoneId _zone;
+
+    /**
+     * The problems found when loading the schedules.
+     */
+    protected final ValidationReport _report;
+
+    /**
+     * The time when the schedules were loaded, in milliseconds since the
+     * epoch.
+     */
+    protected final long _loadedMillis;
+
+    /**
+     * The index of all scheduled changes.
+     */
+    protected final ScheduleIndex _index;
+} // class ScheduleSnapshot
@@ -0,0 +1,569 @@
+package nu.nerd.dvda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.Collections;
+
+import org.bukkit.ChatColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+
+// ----------------------------------------------------------------------------
+/**
+ * Replays a recorded trace of restarts and load samples against a schedule,
+ * without a server, to show what the schedule would have done.
+ *
+ * The trace is a text file with one event per line, in time order. Blank lines
+ * and lines starting with '#' are ignored. Each event starts with a time,
+ * either in milliseconds since the epoch or as an ISO-8601 date and time (in
+ * the schedule's zone, if no offset is given):
+ * <ul>
+ * <li>{@code <time>,restart} - the server restarted.</li>
+ * <li>{@code <time>,<players>,<mspt>} - the player count and milliseconds per
+ * tick measured at that time.</li>
+ * </ul>
+ *
+ * At each restart, the {@link Policy} chooses the view distance for the next
+ * uptime, exactly as the plugin would when the server stops. For each uptime,
+ * the simulator reports the view distance in effect, the peak player count,
+ * the estimated peak loaded chunk count and the number of violations: samples
+ * where the MSPT exceeded the limit, or where the estimated chunk count
+ * exceeded the chunk budget of the change in effect.
+ *
+ * The estimated chunk count assumes that every player loads a full square of
+ * chunks of side (2 * view distance + 1) that does not overlap any other
+ * player's, so it is an upper bound.
+ */
+public class Simulator {
+    // ------------------------------------------------------------------------
+    /**
+     * Chooses the view distance change to apply at a restart.
+     */
+    public interface Policy {
+        // --------------------------------------------------------------------
+        /**
+         * Choose the change to apply when the server restarts.
+         *
+         * @param index the index of scheduled changes, valid at the restart
+         *        time.
+         * @param sampler the tick rate measured during the uptime.
+         * @param startMillis the start of the uptime.
+         * @param endMillis the time of the restart.
+         * @param viewDistance the view distance during the uptime.
+         * @return the change to apply, or null to keep the view distance.
+         */
+        public ViewDistanceChange choose(ScheduleIndex index, TickSampler sampler,
+                                         long startMillis, long endMillis, int viewDistance);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A Policy that applies the last scheduled change during the uptime, as
+     * the plugin does by default.
+     */
+    public static final Policy SCHEDULE = (index, sampler, startMillis, endMillis, viewDistance) ->
+        index.findLast(startMillis, endMillis);
+
+    /**
+     * A Policy that treats the schedule as a hint to an
+     * {@link AdaptiveController}, as the plugin does in adaptive mode.
+     */
+    public static final Policy ADAPTIVE = (index, sampler, startMillis, endMillis, viewDistance) ->
+        new AdaptiveController(sampler).decide(viewDistance, index.findLast(startMillis, endMillis));
+
+    /**
+     * Default MSPT above which a sample is counted as a violation.
+     */
+    public static final double DEFAULT_MSPT_LIMIT = 50.0;
+
+    /**
+     * Default view distance during the first uptime of the trace.
+     */
+    public static final int DEFAULT_VIEW_DISTANCE = 10;
+
+    /**
+     * Default interval between load samples in the trace, in seconds, used to
+     * size the tick rate windows of the adaptive policy.
+     */
+    public static final int DEFAULT_SAMPLE_SECONDS = 60;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run the simulator from the command line.
+     *
+     * Usage: {@code --config <config.yml> --trace <trace.csv>
+     * [--policy schedule|adaptive] [--view-distance <n>] [--mspt-limit <ms>]
+     * [--sample-seconds <s>] [--profile <name>]}
+     *
+     * @param args the command line arguments.
+     */
+    public static void main(String[] args) {
+        File configFile = null;
+        File traceFile = null;
+        Policy policy = SCHEDULE;
+        int viewDistance = DEFAULT_VIEW_DISTANCE;
+        double msptLimit = DEFAULT_MSPT_LIMIT;
+        int sampleSeconds = DEFAULT_SAMPLE_SECONDS;
+        String profileName = ScheduleProfile.DEFAULT_NAME;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                case "--config":
+                    configFile = new File(value);
+                    break;
+                case "--trace":
+                    traceFile = new File(value);
+                    break;
+                case "--policy":
+                    if (value.equalsIgnoreCase("schedule")) {
+                        policy = SCHEDULE;
+                    } else if (value.equalsIgnoreCase("adaptive")) {
+                        policy = ADAPTIVE;
+                    } else {
+                        throw new IllegalArgumentException("unknown policy " + value);
+                    }
+                    break;
+                case "--view-distance":
+                    viewDistance = Integer.parseInt(value);
+                    break;
+                case "--mspt-limit":
+                    msptLimit = Double.parseDouble(value);
+                    break;
+                case "--sample-seconds":
+                    sampleSeconds = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--profile":
+                    profileName = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (configFile == null || traceFile == null) {
+                throw new IllegalArgumentException("--config and --trace are required");
+            }
+        } catch (IllegalArgumentException ex) {
+            MessageSink.STDOUT.accept("Error: " + ex.getMessage());
+            MessageSink.STDOUT.accept("Usage: --config <config.yml> --trace <trace.csv> " +
+                                      "[--policy schedule|adaptive] [--view-distance <n>] " +
+                                      "[--mspt-limit <ms>] [--sample-seconds <s>] [--profile <name>]");
+            return;
+        }
+
+        configure(configFile);
+        ScheduleProfile profile = getProfile(profileName);
+        if (profile == null) {
+            MessageSink.STDOUT.accept("Error: unknown schedule profile " + profileName);
+            BufferedMessageSink.shutdown(DVDA.SHUTDOWN_FLUSH_MILLIS);
+            return;
+        }
+        Simulator simulator = new Simulator(profile.getSnapshot(), policy, viewDistance, msptLimit,
+                                            sampleSeconds, MessageSink.STDOUT);
+        try (BufferedReader reader = Files.newBufferedReader(traceFile.toPath(), StandardCharsets.UTF_8)) {
+            simulator.replay(traceFile.getName(), reader);
+        } catch (IOException ex) {
+            MessageSink.STDOUT.accept("Unable to read " + traceFile.getPath() + ": " + ex.getMessage());
+        }
+        BufferedMessageSink.shutdown(DVDA.SHUTDOWN_FLUSH_MILLIS);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the configuration and schedules from a file, without a server.
+     *
+     * Settings missing from the file take their values from the default
+     * configuration bundled with the plugin. Worlds are not loaded, since
+     * they can only be resolved on a running server: the world lists of the
+     * configuration and of every profile are cleared, and no world names are
+     * resolved.
+     *
+     * @param file the configuration file.
+     */
+    public static void configure(File file) {
+        FileConfiguration config;
+        try (InputStream defaults = Simulator.class.getResourceAsStream("/config.yml")) {
+            config = Configuration.load(file, (defaults != null)
+                ? new InputStreamReader(defaults, StandardCharsets.UTF_8)
+                : null);
+        } catch (IOException ex) {
+            config = Configuration.load(file, null);
+        }
+        config.set("worlds", Collections.<String> emptyList());
+        ConfigurationSection profiles = config.getConfigurationSection("profiles");
+        if (profiles != null) {
+            for (String name : profiles.getKeys(false)) {
+                if (profiles.isConfigurationSection(name)) {
+                    profiles.set(name + ".worlds", Collections.<String> emptyList());
+                }
+            }
+        }
+        DVDA.CONFIG.apply(config, DaySchedule.parse(config.getConfigurationSection("schedule")),
+                          ScheduleProfile.parseAll(profiles), worldName -> null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the configured schedule profile with the specified name.
+     *
+     * @param name the name of the profile; "default" for the top-level
+     *        schedule.
+     * @return the profile, or null if there is none with that name.
+     */
+    public static ScheduleProfile getProfile(String name) {
+        if (name.equals(ScheduleProfile.DEFAULT_NAME)) {
+            return ScheduleProfile.DEFAULT;
+        }
+        for (ScheduleProfile profile : DVDA.CONFIG.PROFILES) {
+            if (profile.getName().equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param schedule the schedules to simulate.
+     * @param policy chooses the change to apply at each restart.
+     * @param viewDistance the view distance during the first uptime.
+     * @param msptLimit the MSPT above which a sample is a violation.
+     * @param sampleSeconds the interval between load samples in seconds.
+     * @param sink the MessageSink to report to.
+     */
+    public Simulator(ScheduleSnapshot schedule, Policy policy, int viewDistance, double msptLimit,
+                     int sampleSeconds, MessageSink sink) {
+        _schedule = schedule;
+        _policy = policy;
+        _viewDistance = viewDistance;
+        _msptLimit = msptLimit;
+        _sampleSeconds = sampleSeconds;
+        _sink = sink;
+        _formatter = DVDA.NEXT_CHANGE_FORMAT.withZone(schedule.getZone());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replay a trace, reporting each uptime and a summary.
+     *
+     * Lines that cannot be parsed are reported and skipped.
+     *
+     * @param name the name of the trace, used in error messages.
+     * @param reader the source of the trace.
+     * @throws IOException if the trace cannot be read.
+     */
+    public void replay(String name, BufferedReader reader) throws IOException {
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s*,\\s*");
+            try {
+                long millis = parseTime(fields[0]);
+                if (_startMillis >= 0 && millis < _lastMillis) {
+                    throw new IllegalArgumentException("out of time order");
+                }
+                if (fields.length == 2 && fields[1].equalsIgnoreCase("restart")) {
+                    restart(millis);
+                } else if (fields.length == 3) {
+                    sample(millis, Integer.parseInt(fields[1]), Double.parseDouble(fields[2]));
+                } else {
+                    throw new IllegalArgumentException("expecting <time>,restart or <time>,<players>,<mspt>");
+                }
+            } catch (DateTimeParseException ex) {
+                _sink.accept(ChatColor.RED + name + " line " + lineNumber + ": invalid time: " + fields[0]);
+            } catch (IllegalArgumentException ex) {
+                _sink.accept(ChatColor.RED + name + " line " + lineNumber + ": " + ex.getMessage());
+            }
+        }
+        if (_startMillis >= 0) {
+            report(_lastMillis, null);
+        }
+
+        _sink.accept(ChatColor.GOLD + "Simulated " + _uptimes + " uptimes and " + _totalSamples + " samples: " +
+                     _totalLagViolations + " MSPT violations, " + _totalBudgetViolations + " budget violations.");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin an uptime at the specified time, if not already begun.
+     *
+     * @param millis the time in milliseconds since the epoch.
+     */
+    protected void begin(long millis) {
+        if (_startMillis < 0) {
+            _startMillis = millis;
+            _lastMillis = millis;
+            _sampler = new TickSampler();
+            Configuration config = DVDA.CONFIG;
+            _sampler.configure(config.ADAPTIVE_SHORT_WINDOW_SECONDS / _sampleSeconds,
+                               config.ADAPTIVE_LONG_WINDOW_SECONDS / _sampleSeconds);
+            _peakPlayers = 0;
+            _peakChunks = 0;
+            _maxMspt = 0;
+            _samples = 0;
+            _lagViolations = 0;
+            _budgetViolations = 0;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Simulate a load sample.
+     *
+     * @param millis the time of the sample.
+     * @param players the player count.
+     * @param mspt the milliseconds per tick.
+     */
+    protected void sample(long millis, int players, double mspt) {
+        begin(millis);
+        _lastMillis = millis;
+
+        // The tick interval is never shorter than the nominal 50 ms.
+        _sampler.record((long) (Math.max(mspt, TickSampler.NANOS_PER_TICK / 1e6) * 1e6));
+        long chunks = estimateChunks(players);
+        _peakPlayers = Math.max(_peakPlayers, players);
+        _peakChunks = Math.max(_peakChunks, chunks);
+        _maxMspt = Math.max(_maxMspt, mspt);
+        ++_samples;
+        ++_totalSamples;
+        if (mspt > _msptLimit) {
+            ++_lagViolations;
+            ++_totalLagViolations;
+        }
+        if (_change != null && _change.hasChunkBudget() && chunks > _change.getChunkBudget()) {
+            ++_budgetViolations;
+            ++_totalBudgetViolations;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Simulate a restart: choose the change for the next uptime, report the
+     * uptime that ended and begin the next.
+     *
+     * @param millis the time of the restart.
+     */
+    protected void restart(long millis) {
+        begin(millis);
+        if (_index == null || !_index.covers(millis)) {
+            _index = _schedule.compile(Instant.ofEpochMilli(millis).atZone(_schedule.getZone()).toLocalDate());
+        }
+        ViewDistanceChange change = _policy.choose(_index, _sampler, _startMillis, millis, _viewDistance);
+        report(millis, change);
+
+        if (change != null) {
+            _change = change;
+            _viewDistance = change.getViewDistance();
+        }
+        _startMillis = -1;
+        begin(millis);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Report the uptime ending at the specified time.
+     *
+     * @param millis the end of the uptime.
+     * @param change the change chosen for the next uptime, or null if none.
+     */
+    protected void report(long millis, ViewDistanceChange change) {
+        ++_uptimes;
+        StringBuilder message = new StringBuilder();
+        message.append(ChatColor.YELLOW).append(_formatter.format(Instant.ofEpochMilli(_startMillis)))
+        .append(" - ").append(_formatter.format(Instant.ofEpochMilli(millis)))
+        .append(ChatColor.WHITE).append(": view distance ").append(_viewDistance);
+        if (_change != null && _change.hasChunkBudget()) {
+            message.append(" (budget ").append(_change.getChunkBudget()).append(')');
+        }
+        message.append(", ").append(_samples).append(" samples, peak ").append(_peakPlayers)
+        .append(" players, ~").append(_peakChunks).append(" chunks, max MSPT ")
+        .append(String.format("%.1f", _maxMspt));
+        if (_lagViolations + _budgetViolations != 0) {
+            message.append(ChatColor.RED).append(", ").append(_lagViolations).append(" MSPT violations, ")
+            .append(_budgetViolations).append(" budget violations");
+        }
+        if (change != null) {
+            message.append(ChatColor.WHITE).append("; next: ").append(change);
+        }
+        _sink.accept(message.toString());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Estimate the number of chunks loaded by the specified number of players
+     * at the current view distance.
+     *
+     * If the change in effect has a chunk budget, the view distance is reduced
+     * to fit the budget as the {@link ChunkBudgetAllocator} would for a single
+     * world, but not below the configured minimum.
+     *
+     * @param players the number of players.
+     * @return the estimated number of loaded chunks.
+     */
+    protected long estimateChunks(int players) {
+        int viewDistance = _viewDistance;
+        if (_change != null && _change.hasChunkBudget() && players > 0) {
+            double allowance = (double) _change.getChunkBudget() / players;
+            int radius = (int) Math.floor((Math.sqrt(allowance) - 1) / 2);
+            viewDistance = Math.max(DVDA.CONFIG.BUDGET_MIN_VIEW_DISTANCE, Math.min(viewDistance, radius));
+        }
+        long side = 2L * viewDistance + 1;
+        return players * side * side;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the time of a trace event.
+     *
+     * @param text milliseconds since the epoch, or an ISO-8601 date and time
+     *        with an optional offset or zone.
+     * @return the time in milliseconds since the epoch.
+     * @throws DateTimeParseException if the time is invalid.
+     */
+    protected long parseTime(String text) {
+        if (!text.isEmpty() && text.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(text);
+        }
+        TemporalAccessor time = DateTimeFormatter.ISO_DATE_TIME.parseBest(text, ZonedDateTime::from,
+                                                                          LocalDateTime::from);
+        ZonedDateTime zoned = (time instanceof ZonedDateTime)
+            ? (ZonedDateTime) time
+            : ((LocalDateTime) time).atZone(_schedule.getZone());
+        return zoned.toInstant().toEpochMilli();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The schedules to simulate.
+     */
+    protected final ScheduleSnapshot _schedule;
+
+    /**
+     * Chooses the change to apply at each restart.
+     */
+    protected final Policy _policy;
+
+    /**
+     * The MSPT above which a sample is a violation.
+     */
+    protected final double _msptLimit;
+
+    /**
+     * The interval between load samples in seconds.
+     */
+    protected final int _sampleSeconds;
+
+    /**
+     * The MessageSink to report to.
+     */
+    protected final MessageSink _sink;
+
+    /**
+     * Formats times in the schedule's zone.
+     */
+    protected final DateTimeFormatter _formatter;
+
+    /**
+     * The index of scheduled changes, compiled around the simulated time, or
+     * null if not yet compiled.
+     */
+    protected ScheduleIndex _index;
+
+    /**
+     * The view distance during the current uptime.
+     */
+    protected int _viewDistance;
+
+    /**
+     * The change in effect during the current uptime, or null if none has
+     * been applied.
+     */
+    protected ViewDistanceChange _change;
+
+    /**
+     * The start of the current uptime, or -1 if no uptime has begun.
+     */
+    protected long _startMillis = -1;
+
+    /**
+     * The time of the most recent event.
+     */
+    protected long _lastMillis;
+
+    /**
+     * The tick rate measured during the current uptime.
+     */
+    protected TickSampler _sampler;
+
+    /**
+     * The peak player count during the current uptime.
+     */
+    protected int _peakPlayers;
+
+    /**
+     * The peak estimated chunk count during the current uptime.
+     */
+    protected long _peakChunks;
+
+    /**
+     * The maximum MSPT during the current uptime.
+     */
+    protected double _maxMspt;
+
+    /**
+     * The number of samples during the current uptime.
+     */
+    protected int _samples;
+
+    /**
+     * The number of MSPT violations during the current uptime.
+     */
+    protected int _lagViolations;
+
+    /**
+     * The number of budget violations during the current uptime.
+     */
+    protected int _budgetViolations;
+
+    /**
+     * The number of uptimes simulated.
+     */
+    protected int _uptimes;
+
+    /**
+     * The total number of samples.
+     */
+    protected int _totalSamples;
+
+    /**
+     * The total number of MSPT violations.
+     */
+    protected int _totalLagViolations;
+
+    /**
+     * The total number of budget violations.
+     */
+    protected int _totalBudgetViolations;
+} // class Simulator
@@ -0,0 +1,639 @@
+package nu.nerd.dvda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// ----------------------------------------------------------------------------
+/**
+ * Updates the per-world view distances and related {@link WorldSettings} in
+ * spigot.yml.
+ *
+ * Rather than re-serialising the whole Spigot configuration, only the lines of
+ * the affected keys under world-settings.&lt;world&gt; are edited, so comments
+ * and formatting are preserved. The new file contents are prepared ahead of
+ * time (typically off the main thread) whenever the pending settings change,
+ * so that at shutdown the only work is to write a temporary file, sync it to
+ * disk and atomically move it into place. If the view distances are already
+ * correct, nothing is written.
+ *
+ * At startup, {@link #reconcile(Map)} streams only the world-settings section
+ * of spigot.yml to check whether it already holds the pending settings. While
+ * it does, and the pending settings are unchanged, {@link #isCurrent(Map)}
+ * answers without any I/O, so a shutdown with nothing to change does not
+ * touch the file.
+ */
+public class SpigotConfigWriter {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param configFile the spigot.yml file.
+     * @param backupFile the file where the original spigot.yml is backed up
+     *        before it is first modified.
+     */
+    public SpigotConfigWriter(File configFile, File backupFile) {
+        _configFile = configFile.toPath();
+        _backupFile = backupFile.toPath();
+        _tempFile = new File(configFile.getPath() + ".dvda-tmp").toPath();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the settings that the most recently prepared contents set.
+     *
+     * @return a map from world name to settings, or null if nothing has been
+     *         prepared.
+     */
+    public synchronized Map<String, WorldSettings> getPrepared() {
+        return _preparedFor;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if spigot.yml is known to hold the specified settings, from
+     * the most recent reconciliation, preparation or write.
+     *
+     * This does no I/O, so changes made to spigot.yml by other programs since
+     * then are not seen.
+     *
+     * @param settings a map from world name to settings.
+     * @return true if spigot.yml needs no change.
+     */
+    public synchronized boolean isCurrent(Map<String, WorldSettings> settings) {
+        return _content == null && settings.equals(_preparedFor);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check whether spigot.yml already holds the specified settings, reading
+     * only the world-settings section, and prepare updated contents if it does
+     * not.
+     *
+     * This method does file I/O and may be called from any thread.
+     *
+     * @param settings a map from world name to settings.
+     * @return true if spigot.yml already holds the settings.
+     * @throws IOException if spigot.yml could not be read.
+     */
+    public synchronized boolean reconcile(Map<String, WorldSettings> settings) throws IOException {
+        long modified = Files.getLastModifiedTime(_configFile).toMillis();
+        long length = Files.size(_configFile);
+        Map<String, Map<String, String>> current;
+        try (BufferedReader reader = Files.newBufferedReader(_configFile, StandardCharsets.UTF_8)) {
+            current = readWorldSettings(reader);
+        }
+
+        Map<String, Map<String, String>> wanted = toKeys(settings);
+        for (Map.Entry<String, Map<String, String>> world : wanted.entrySet()) {
+            Map<String, String> values = current.get(world.getKey());
+            if (values == null || !values.entrySet().containsAll(world.getValue().entrySet())) {
+                prepare(settings);
+                return false;
+            }
+        }
+        _preparedFor = new LinkedHashMap<String, WorldSettings>(settings);
+        _preparedModified = modified;
+        _preparedLength = length;
+        _content = null;
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace the backup of spigot.yml if it is stale.
+     *
+     * The backup is stale when spigot.yml has been edited by something other
+     * than DVDA since the backup was made, i.e. when applying the view
+     * distance settings of spigot.yml to the backup does not reproduce
+     * spigot.yml. Restoring a stale backup would lose those edits, so it is
+     * replaced with the current spigot.yml with the backed up view distance
+     * settings restored, and with the settings that DVDA inserted, which are
+     * absent from the backup, removed.
+     *
+     * This method does file I/O and may be called from any thread.
+     *
+     * @return true if the backup was stale and has been replaced.
+     * @throws IOException if either file could not be read or written.
+     */
+    public synchronized boolean refreshBackup() throws IOException {
+        if (!Files.exists(_backupFile) ||
+            Files.getLastModifiedTime(_backupFile).compareTo(Files.getLastModifiedTime(_configFile)) >= 0) {
+            return false;
+        }
+
+        String config = new String(Files.readAllBytes(_configFile), StandardCharsets.UTF_8);
+        String backup = new String(Files.readAllBytes(_backupFile), StandardCharsets.UTF_8);
+        Map<String, Map<String, String>> configKeys = getManagedKeys(config);
+        Map<String, Map<String, String>> backupKeys = getManagedKeys(backup);
+        if (patchKeys(backup, difference(configKeys, backupKeys)).equals(config)) {
+            return false;
+        }
+
+        Path temp = new File(_backupFile.toString() + ".tmp").toPath();
+        Map<String, Map<String, String>> restored = difference(backupKeys, configKeys);
+        for (Map.Entry<String, Map<String, String>> world : configKeys.entrySet()) {
+            Map<String, String> backupValues = backupKeys.getOrDefault(world.getKey(),
+                                                                       Collections.<String, String> emptyMap());
+            for (String key : world.getValue().keySet()) {
+                if (!backupValues.containsKey(key)) {
+                    restored.computeIfAbsent(world.getKey(), k -> new LinkedHashMap<String, String>()).put(key, null);
+                }
+            }
+        }
+        Files.write(temp, patchKeys(config, restored).getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(temp, _backupFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, _backupFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read spigot.yml and prepare updated contents that set the specified
+     * world settings.
+     *
+     * This method does file I/O and may be called from any thread.
+     *
+     * @param settings a map from world name to settings.
+     * @throws IOException if spigot.yml could not be read.
+     */
+    public synchronized void prepare(Map<String, WorldSettings> settings) throws IOException {
+        long modified = Files.getLastModifiedTime(_configFile).toMillis();
+        byte[] original = Files.readAllBytes(_configFile);
+        String patched = patch(new String(original, StandardCharsets.UTF_8), settings);
+        byte[] content = patched.getBytes(StandardCharsets.UTF_8);
+
+        _preparedFor = new LinkedHashMap<String, WorldSettings>(settings);
+        _preparedModified = modified;
+        _preparedLength = original.length;
+        _content = Arrays.equals(original, content) ? null : content;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write spigot.yml with the specified world settings.
+     *
+     * If the contents were prepared for the same settings and spigot.yml has
+     * not changed since, the prepared contents are used. Otherwise, they are
+     * prepared now.
+     *
+     * @param settings a map from world name to settings.
+     * @return true if spigot.yml was written; false if it already specified the
+     *         settings.
+     * @throws IOException if spigot.yml could not be read or written.
+     */
+    public synchronized boolean write(Map<String, WorldSettings> settings) throws IOException {
+        if (!settings.equals(_preparedFor) ||
+            Files.getLastModifiedTime(_configFile).toMillis() != _preparedModified ||
+            Files.size(_configFile) != _preparedLength) {
+            prepare(settings);
+        }
+        if (_content == null) {
+            return false;
+        }
+
+        if (!Files.exists(_backupFile)) {
+            Files.copy(_configFile, _backupFile, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+
+        try (FileChannel channel = FileChannel.open(_tempFile, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(_content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(_tempFile, _configFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(_tempFile, _configFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // The prepared contents are now the contents of the file.
+        _preparedModified = Files.getLastModifiedTime(_configFile).toMillis();
+        _preparedLength = _content.length;
+        _content = null;
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of spigot.yml text with the settings of the specified
+     * worlds replaced.
+     *
+     * Only the lines of the keys set by each world's {@link WorldSettings}
+     * under world-settings.&lt;world&gt; are changed. Missing sections and keys
+     * are inserted.
+     *
+     * @param yaml the contents of spigot.yml.
+     * @param settings a map from world name to settings.
+     * @return the updated contents.
+     */
+    public static String patch(String yaml, Map<String, WorldSettings> settings) {
+        return patchKeys(yaml, toKeys(settings));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the scalar values under the world-settings section of spigot.yml,
+     * line by line, stopping at the end of the section.
+     *
+     * Only simple "key: value" lines are recognised, which is all that
+     * spigot.yml contains under world-settings.
+     *
+     * @param reader reads spigot.yml.
+     * @return a map from world name to a map from key, relative to the world's
+     *         section with nested keys separated by '.', to value.
+     * @throws IOException if the file could not be read.
+     */
+    public static Map<String, Map<String, String>> readWorldSettings(BufferedReader reader) throws IOException {
+        Map<String, Map<String, String>> worlds = new LinkedHashMap<String, Map<String, String>>();
+        List<Integer> indents = new ArrayList<Integer>();
+        List<String> keys = new ArrayList<String>();
+        boolean inside = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!isSignificant(line)) {
+                continue;
+            }
+            int indent = indentOf(line);
+            if (!inside) {
+                inside = (indent == 0 && line.matches("world-settings:\\s*(#.*)?"));
+                continue;
+            }
+            if (indent == 0) {
+                break;
+            }
+
+            String content = line.substring(indent);
+            int colon = content.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            while (!indents.isEmpty() && indents.get(indents.size() - 1) >= indent) {
+                indents.remove(indents.size() - 1);
+                keys.remove(keys.size() - 1);
+            }
+            indents.add(indent);
+            keys.add(unquote(content.substring(0, colon).trim()));
+
+            String value = content.substring(colon + 1);
+            int comment = value.indexOf(" #");
+            if (comment >= 0) {
+                value = value.substring(0, comment);
+            }
+            value = unquote(value.trim());
+            if (!value.isEmpty() && keys.size() >= 2) {
+                worlds.computeIfAbsent(keys.get(0), k -> new LinkedHashMap<String, String>())
+                    .put(String.join(".", keys.subList(1, keys.size())), value);
+            }
+        }
+        return worlds;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the keys to set for the specified world settings.
+     *
+     * @param settings a map from world name to settings.
+     * @return a map from world name to a map from key to value.
+     */
+    protected static Map<String, Map<String, String>> toKeys(Map<String, WorldSettings> settings) {
+        Map<String, Map<String, String>> keys = new LinkedHashMap<String, Map<String, String>>();
+        for (Map.Entry<String, WorldSettings> entry : settings.entrySet()) {
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, Integer> key : entry.getValue().getKeys().entrySet()) {
+                values.put(key.getKey(), key.getValue().toString());
+            }
+            keys.put(entry.getKey(), values);
+        }
+        return keys;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the values of the keys that DVDA sets, in all worlds, from the
+     * contents of spigot.yml.
+     *
+     * @param yaml the contents of spigot.yml.
+     * @return a map from world name to a map from key to value.
+     * @throws IOException never, since the contents are in memory.
+     */
+    protected static Map<String, Map<String, String>> getManagedKeys(String yaml) throws IOException {
+        Map<String, Map<String, String>> worlds = readWorldSettings(new BufferedReader(new StringReader(yaml)));
+        for (Map<String, String> values : worlds.values()) {
+            values.keySet().removeIf(key -> !WorldSettings.isKey(key));
+        }
+        return worlds;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the keys whose values differ from, or are missing in, a base.
+     *
+     * Patching only those keys leaves lines whose values are unchanged, and
+     * their comments, as they are.
+     *
+     * @param keys a map from world name to a map from key to value.
+     * @param base a map from world name to a map from key to value.
+     * @return the entries of keys that are not in base.
+     */
+    protected static Map<String, Map<String, String>> difference(Map<String, Map<String, String>> keys,
+                                                                 Map<String, Map<String, String>> base) {
+        Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+        for (Map.Entry<String, Map<String, String>> world : keys.entrySet()) {
+            Map<String, String> baseValues = base.getOrDefault(world.getKey(), Collections.<String, String> emptyMap());
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> key : world.getValue().entrySet()) {
+                if (!key.getValue().equals(baseValues.get(key.getKey()))) {
+                    values.put(key.getKey(), key.getValue());
+                }
+            }
+            if (!values.isEmpty()) {
+                result.put(world.getKey(), values);
+            }
+        }
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of spigot.yml text with the specified keys of each world
+     * replaced or removed.
+     *
+     * @param yaml the contents of spigot.yml.
+     * @param worldKeys a map from world name to a map from key, with nested
+     *        keys separated by '.', to value, or to null to remove the key.
+     * @return the updated contents.
+     */
+    protected static String patchKeys(String yaml, Map<String, Map<String, String>> worldKeys) {
+        String eol = yaml.contains("\r\n") ? "\r\n" : "\n";
+        List<String> lines = new ArrayList<String>(Arrays.asList(yaml.split("\r?\n", -1)));
+        boolean trailingNewline = !lines.isEmpty() && lines.get(lines.size() - 1).isEmpty();
+        if (trailingNewline) {
+            lines.remove(lines.size() - 1);
+        }
+
+        int settingsLine = -1;
+        for (int i = 0; i < lines.size(); ++i) {
+            if (lines.get(i).matches("world-settings:\\s*(#.*)?")) {
+                settingsLine = i;
+                break;
+            }
+        }
+        if (settingsLine < 0) {
+            lines.add("world-settings:");
+            settingsLine = lines.size() - 1;
+        }
+
+        // Nested sections are indented by the same step as the worlds.
+        int settingsEnd = blockEnd(lines, settingsLine, 0);
+        int step = childIndent(lines, settingsLine, settingsEnd, 2);
+        for (Map.Entry<String, Map<String, String>> entry : worldKeys.entrySet()) {
+            for (Map.Entry<String, String> key : entry.getValue().entrySet()) {
+                // The world name may itself contain '.'.
+                String[] keys = key.getKey().split("\\.");
+                String[] path = new String[keys.length + 1];
+                path[0] = entry.getKey();
+                System.arraycopy(keys, 0, path, 1, keys.length);
+                set(lines, settingsLine, 0, step, path, 0, key.getValue());
+            }
+        }
+
+        StringBuilder result = new StringBuilder(yaml.length() + 64);
+        for (int i = 0; i < lines.size(); ++i) {
+            if (i != 0) {
+                result.append(eol);
+            }
+            result.append(lines.get(i));
+        }
+        if (trailingNewline) {
+            result.append(eol);
+        }
+        return result.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the value of a key nested within the block that begins with the
+     * specified key line, inserting any missing sections, or remove the key
+     * and any sections that removing it leaves empty.
+     *
+     * @param lines the lines, which are modified.
+     * @param keyLine the index of the line containing the block's key.
+     * @param indent the indentation of the block's key.
+     * @param step the indentation step used when the block is empty.
+     * @param path the keys, from outermost to innermost.
+     * @param depth the index in path of the key that is a child of the block.
+     * @param value the value of the innermost key, or null to remove it.
+     */
+    protected static void set(List<String> lines, int keyLine, int indent, int step,
+                              String[] path, int depth, String value) {
+        int end = blockEnd(lines, keyLine, indent);
+        int childIndent = childIndent(lines, keyLine, end, indent + step);
+        String key = path[depth];
+        boolean last = (depth == path.length - 1);
+        for (int i = keyLine + 1; i < end; ++i) {
+            String line = lines.get(i);
+            if (indentOf(line) == childIndent && isKey(line.substring(childIndent), key)) {
+                if (last) {
+                    if (value == null) {
+                        lines.remove(i);
+                    } else {
+                        lines.set(i, spaces(childIndent) + key + ": " + value);
+                    }
+                } else {
+                    set(lines, i, childIndent, step, path, depth + 1, value);
+                    if (value == null && blockEnd(lines, i, childIndent) == i + 1) {
+                        lines.remove(i);
+                    }
+                }
+                return;
+            }
+        }
+        if (value == null) {
+            return;
+        }
+
+        // Insert the missing key after the block's existing children.
+        if (last) {
+            lines.add(end, spaces(childIndent) + key + ": " + value);
+        } else {
+            lines.add(end, spaces(childIndent) + key + ":");
+            set(lines, end, childIndent, step, path, depth + 1, value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the line after the end of the block that begins with
+     * the specified key line, i.e. the next significant line indented no more
+     * than the key.
+     *
+     * @param lines the lines.
+     * @param keyLine the index of the line containing the block's key.
+     * @param indent the indentation of the key.
+     * @return the index of the line after the block.
+     */
+    protected static int blockEnd(List<String> lines, int keyLine, int indent) {
+        int end = keyLine + 1;
+        for (int i = keyLine + 1; i < lines.size(); ++i) {
+            String line = lines.get(i);
+            if (isSignificant(line)) {
+                if (indentOf(line) <= indent) {
+                    break;
+                }
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the indentation of the first significant line in a block, or the
+     * specified default if the block is empty.
+     *
+     * @param lines the lines.
+     * @param keyLine the index of the line containing the block's key.
+     * @param end the index of the line after the block.
+     * @param defaultIndent the indentation to return if the block is empty.
+     * @return the indentation of the block's children.
+     */
+    protected static int childIndent(List<String> lines, int keyLine, int end, int defaultIndent) {
+        for (int i = keyLine + 1; i < end; ++i) {
+            if (isSignificant(lines.get(i))) {
+                return indentOf(lines.get(i));
+            }
+        }
+        return defaultIndent;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the line is neither blank nor a comment.
+     *
+     * @param line the line.
+     * @return true if the line is significant.
+     */
+    protected static boolean isSignificant(String line) {
+        String trimmed = line.trim();
+        return !trimmed.isEmpty() && !trimmed.startsWith("#");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of leading spaces in the line.
+     *
+     * @param line the line.
+     * @return the number of leading spaces.
+     */
+    protected static int indentOf(String line) {
+        int indent = 0;
+        while (indent < line.length() && line.charAt(indent) == ' ') {
+            ++indent;
+        }
+        return indent;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the unindented text begins with the specified key, which
+     * may be quoted, followed by a colon.
+     *
+     * @param text the line with its indentation removed.
+     * @param key the key.
+     * @return true if the line defines the key.
+     */
+    protected static boolean isKey(String text, String key) {
+        return text.startsWith(key + ":") ||
+               text.startsWith("'" + key + "':") ||
+               text.startsWith("\"" + key + "\":");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove matching single or double quotes around a key or value.
+     *
+     * @param text the key or value.
+     * @return the text without quotes.
+     */
+    protected static String unquote(String text) {
+        if (text.length() >= 2 &&
+            (text.startsWith("'") && text.endsWith("'") || text.startsWith("\"") && text.endsWith("\""))) {
+            return text.substring(1, text.length() - 1);
+        }
+        return text;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a string of the specified number of spaces.
+     *
+     * @param count the number of spaces.
+     * @return the spaces.
+     */
+    protected static String spaces(int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, ' ');
+        return new String(chars);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The spigot.yml file.
+     */
+    protected final Path _configFile;
+
+    /**
+     * The backup of the original spigot.yml.
+     */
+    protected final Path _backupFile;
+
+    /**
+     * The temporary file written before being moved over spigot.yml.
+     */
+    protected final Path _tempFile;
+
+    /**
+     * The world settings that the prepared contents set, or null if not
+     * prepared.
+     */
+    protected Map<String, WorldSettings> _preparedFor;
+
+    /**
+     * The last modification time of spigot.yml when the contents were
+     * prepared.
+     */
+    protected long _preparedModified;
+
+    /**
+     * The length of spigot.yml when the contents were prepared.
+     */
+    protected long _preparedLength;
+
+    /**
+     * The prepared contents of spigot.yml, or null if the file does not need
+     * to change.
+     */
+    protected byte[] _content;
+} // class SpigotConfigWriter
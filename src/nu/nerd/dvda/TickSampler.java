@@ -0,0 +1,192 @@
+package nu.nerd.dvda;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the server tick rate by recording the wall clock time between
+ * successive runs of a task that is scheduled to run every tick.
+ *
+ * The Bukkit API does not expose the server's own tick timings, so the
+ * "milliseconds per tick" (MSPT) reported here is the interval between ticks,
+ * which is never less than 50 ms on a healthy server. Tick intervals are kept
+ * in a fixed size ring buffer with running sums over a short and a long
+ * sliding window, so sampling and querying never allocate.
+ */
+public class TickSampler implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Nominal tick interval in nanoseconds.
+     */
+    public static final long NANOS_PER_TICK = 50_000_000L;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the sizes of the short and long sliding windows.
+     *
+     * Recorded samples are discarded if the window sizes change.
+     *
+     * @param shortTicks the number of ticks in the short window.
+     * @param longTicks the number of ticks in the long window.
+     */
+    public void configure(int shortTicks, int longTicks) {
+        longTicks = Math.max(1, longTicks);
+        shortTicks = Math.max(1, Math.min(shortTicks, longTicks));
+        if (longTicks != _intervals.length || shortTicks != _shortTicks) {
+            _intervals = new long[longTicks];
+            _shortTicks = shortTicks;
+            _count = 0;
+            _next = 0;
+            _shortSum = 0;
+            _longSum = 0;
+            _lastNanos = 0;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the time since the previous tick.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        if (_lastNanos != 0) {
+            record(now - _lastNanos);
+        }
+        _lastNanos = now;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record one tick interval.
+     *
+     * @param nanos the duration of the tick in nanoseconds.
+     */
+    public void record(long nanos) {
+        int capacity = _intervals.length;
+        if (_count == capacity) {
+            _longSum -= _intervals[_next];
+        }
+        if (_count >= _shortTicks) {
+            _shortSum -= _intervals[(_next - _shortTicks + capacity) % capacity];
+        }
+
+        _intervals[_next] = nanos;
+        _longSum += nanos;
+        _shortSum += nanos;
+        _next = (_next + 1) % capacity;
+        if (_count < capacity) {
+            ++_count;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of recorded samples in the long window.
+     *
+     * @return the number of recorded samples in the long window.
+     */
+    public int getSampleCount() {
+        return _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the long window has been completely filled with samples.
+     *
+     * @return true if the long window has been completely filled with samples.
+     */
+    public boolean isWarmedUp() {
+        return _count == _intervals.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the mean tick interval in milliseconds over the short window.
+     *
+     * @return the mean tick interval in milliseconds over the short window, or
+     *         the nominal 50 ms if there are no samples.
+     */
+    public double getShortMspt() {
+        int n = Math.min(_count, _shortTicks);
+        return (n == 0) ? NANOS_PER_TICK / 1e6 : _shortSum / 1e6 / n;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the mean tick interval in milliseconds over the long window.
+     *
+     * @return the mean tick interval in milliseconds over the long window, or
+     *         the nominal 50 ms if there are no samples.
+     */
+    public double getLongMspt() {
+        return (_count == 0) ? NANOS_PER_TICK / 1e6 : _longSum / 1e6 / _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ticks per second corresponding to the short window MSPT.
+     *
+     * @return the short window TPS, at most 20.
+     */
+    public double getShortTps() {
+        return toTps(getShortMspt());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the ticks per second corresponding to the long window MSPT.
+     *
+     * @return the long window TPS, at most 20.
+     */
+    public double getLongTps() {
+        return toTps(getLongMspt());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Convert a tick interval in milliseconds to ticks per second.
+     *
+     * @param mspt the tick interval in milliseconds.
+     * @return the ticks per second, capped at 20.
+     */
+    protected static double toTps(double mspt) {
+        return Math.min(20.0, 1000.0 / Math.max(mspt, 1.0));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Ring buffer of tick intervals in nanoseconds, sized to the long window.
+     */
+    protected long[] _intervals = new long[1];
+
+    /**
+     * Number of ticks in the short window.
+     */
+    protected int _shortTicks = 1;
+
+    /**
+     * Number of valid samples in _intervals.
+     */
+    protected int _count;
+
+    /**
+     * Index in _intervals where the next sample will be stored.
+     */
+    protected int _next;
+
+    /**
+     * Sum of the samples in the short window.
+     */
+    protected long _shortSum;
+
+    /**
+     * Sum of the samples in the long window.
+     */
+    protected long _longSum;
+
+    /**
+     * System.nanoTime() at the previous tick, or 0 if not yet known.
+     */
+    protected long _lastNanos;
+} // class TickSampler
@@ -0,0 +1,147 @@
+package nu.nerd.dvda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.ChatColor;
+
+// ----------------------------------------------------------------------------
+/**
+ * Collects every problem found while loading schedules, so that they can all
+ * be reported together rather than aborting at the first.
+ *
+ * Problems are identified by the configuration key of the schedule and the
+ * 1-based line number of the entry within that schedule's list.
+ */
+public class ValidationReport {
+    // ------------------------------------------------------------------------
+    /**
+     * Count a successfully parsed entry.
+     */
+    public void entry() {
+        ++_entries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record an entry that could not be parsed.
+     *
+     * @param key the configuration key of the schedule.
+     * @param line the 1-based index of the entry in the schedule.
+     * @param entry the text of the entry.
+     * @param message a description of the error.
+     */
+    public void error(String key, int line, String entry, String message) {
+        ++_errors;
+        _messages.add(ChatColor.RED + key + " line " + line + ": " + ChatColor.WHITE + "'" + entry + "'" +
+                      ChatColor.RED + ": " + message);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record an error in the configuration that is not specific to one entry,
+     * such as an invalid date or time zone.
+     *
+     * @param key the configuration key.
+     * @param message a description of the error.
+     */
+    public void error(String key, String message) {
+        ++_errors;
+        _messages.add(ChatColor.RED + key + ": " + message);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record an entry whose time duplicates that of an earlier entry in the
+     * same schedule. The earlier entry takes effect.
+     *
+     * @param key the configuration key of the schedule.
+     * @param line the 1-based index of the entry in the schedule.
+     * @param entry the text of the entry.
+     * @param existing the earlier change at the same time.
+     */
+    public void duplicate(String key, int line, String entry, ViewDistanceChange existing) {
+        ++_duplicates;
+        _messages.add(ChatColor.YELLOW + key + " line " + line + ": " + ChatColor.WHITE + "'" + entry + "'" +
+                      ChatColor.YELLOW + ": duplicate time; ignored in favour of '" + existing + "'");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if no errors or duplicates were found.
+     *
+     * @return true if no errors or duplicates were found.
+     */
+    public boolean isClean() {
+        return _messages.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of successfully parsed entries.
+     *
+     * @return the number of successfully parsed entries.
+     */
+    public int getEntryCount() {
+        return _entries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of errors.
+     *
+     * @return the number of errors.
+     */
+    public int getErrorCount() {
+        return _errors;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of duplicate entries.
+     *
+     * @return the number of duplicate entries.
+     */
+    public int getDuplicateCount() {
+        return _duplicates;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * List all problems to the sink, preceded by a summary. Nothing is listed
+     * if there are no problems.
+     *
+     * @param sink the MessageSink to report to.
+     */
+    public void list(MessageSink sink) {
+        if (isClean()) {
+            return;
+        }
+        sink.accept(ChatColor.GOLD + "Schedule: " + _entries + " entries loaded, " +
+                    _errors + " errors, " + _duplicates + " duplicates:");
+        for (String message : _messages) {
+            sink.accept(message);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Messages describing each problem, in the order found.
+     */
+    protected List<String> _messages = new ArrayList<String>();
+
+    /**
+     * Number of successfully parsed entries.
+     */
+    protected int _entries;
+
+    /**
+     * Number of errors.
+     */
+    protected int _errors;
+
+    /**
+     * Number of duplicate entries.
+     */
+    protected int _duplicates;
+} // class ValidationReport
@@ -5,18 +5,24 @@ import java.time.LocalTime;
 // ----------------------------------------------------------------------------
 /**
  * Stores the details of a scheduled view distance change.
+ *
+ * Besides the view distance, a change may carry a chunk budget and the other
+ * distance settings that are written to spigot.yml with it: the simulation
+ * distance, entity tracking range and entity activation range. Settings that
+ * are not specified are 0.
+ *
+ * Serialised changes are parsed by {@link ScheduleParser}.
  */
 public class ViewDistanceChange implements Comparable<ViewDistanceChange> {
     // ------------------------------------------------------------------------
     /**
      * Constructor.
      *
-     * @param serialised the serialised string form of the change.
+     * @param time the time of the change.
+     * @param viewDistance the new view distance.
      */
-    ViewDistanceChange(String serialised) throws NumberFormatException {
-        String[] parts = serialised.split("\\s+");
-        _time = LocalTime.parse(parts[0]);
-        _viewDistance = Integer.parseInt(parts[1]);
+    ViewDistanceChange(LocalTime time, int viewDistance) {
+        this(time, viewDistance, 0);
     }
 
     // ------------------------------------------------------------------------
@@ -24,11 +30,53 @@ public class ViewDistanceChange implements Comparable<ViewDistanceChange> {
      * Constructor.
      *
      * @param time the time of the change.
-     * @param viewDistance the new view distance.
+     * @param viewDistance the new view distance; the maximum in any world if
+     *        there is a chunk budget.
+     * @param chunkBudget the total loaded chunk budget to divide between
+     *        worlds, or 0 to use the same view distance in all worlds.
      */
-    ViewDistanceChange(LocalTime time, int viewDistance) {
+    ViewDistanceChange(LocalTime time, int viewDistance, int chunkBudget) {
+        this(time, viewDistance, chunkBudget, 0, 0, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param time the time of the change.
+     * @param viewDistance the new view distance; the maximum in any world if
+     *        there is a chunk budget.
+     * @param chunkBudget the total loaded chunk budget to divide between
+     *        worlds, or 0 to use the same view distance in all worlds.
+     * @param simulationDistance the simulation distance in chunks, or 0 if
+     *        not specified.
+     * @param trackingRange the entity tracking range in blocks, or 0 if not
+     *        specified.
+     * @param activationRange the entity activation range in blocks, or 0 if
+     *        not specified.
+     */
+    ViewDistanceChange(LocalTime time, int viewDistance, int chunkBudget,
+                       int simulationDistance, int trackingRange, int activationRange) {
         _time = time;
         _viewDistance = viewDistance;
+        _chunkBudget = chunkBudget;
+        _simulationDistance = simulationDistance;
+        _trackingRange = trackingRange;
+        _activationRange = activationRange;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this change at a different time and view distance,
+     * keeping its chunk budget and other settings.
+     *
+     * @param time the time of the new change.
+     * @param viewDistance the view distance of the new change.
+     * @return the new change.
+     */
+    public ViewDistanceChange derive(LocalTime time, int viewDistance) {
+        return new ViewDistanceChange(time, viewDistance, _chunkBudget,
+                                      _simulationDistance, _trackingRange, _activationRange);
     }
 
     // ------------------------------------------------------------------------
@@ -51,6 +99,57 @@ public class ViewDistanceChange implements Comparable<ViewDistanceChange> {
         return _viewDistance;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this change specifies a chunk budget to be divided
+     * between worlds.
+     *
+     * @return true if this change specifies a chunk budget.
+     */
+    public boolean hasChunkBudget() {
+        return _chunkBudget > 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total loaded chunk budget.
+     *
+     * @return the total loaded chunk budget, or 0 if not specified.
+     */
+    public int getChunkBudget() {
+        return _chunkBudget;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the simulation distance.
+     *
+     * @return the simulation distance in chunks, or 0 if not specified.
+     */
+    public int getSimulationDistance() {
+        return _simulationDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entity tracking range.
+     *
+     * @return the entity tracking range in blocks, or 0 if not specified.
+     */
+    public int getTrackingRange() {
+        return _trackingRange;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entity activation range.
+     *
+     * @return the entity activation range in blocks, or 0 if not specified.
+     */
+    public int getActivationRange() {
+        return _activationRange;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * @see java.lang.Comparable#compareTo(java.lang.Object)
@@ -68,7 +167,20 @@ public class ViewDistanceChange implements Comparable<ViewDistanceChange> {
      */
     @Override
     public String toString() {
-        return _time.toString() + " " + _viewDistance;
+        StringBuilder s = new StringBuilder().append(_time).append(' ').append(_viewDistance);
+        if (hasChunkBudget()) {
+            s.append(" budget ").append(_chunkBudget);
+        }
+        if (_simulationDistance > 0) {
+            s.append(" simulation ").append(_simulationDistance);
+        }
+        if (_trackingRange > 0) {
+            s.append(" tracking ").append(_trackingRange);
+        }
+        if (_activationRange > 0) {
+            s.append(" activation ").append(_activationRange);
+        }
+        return s.toString();
     }
 
     // ------------------------------------------------------------------------
@@ -81,4 +193,24 @@ public class ViewDistanceChange implements Comparable<ViewDistanceChange> {
      * New view distance.
      */
     protected int _viewDistance;
+
+    /**
+     * Total loaded chunk budget, or 0 if not specified.
+     */
+    protected int _chunkBudget;
+
+    /**
+     * Simulation distance in chunks, or 0 if not specified.
+     */
+    protected int _simulationDistance;
+
+    /**
+     * Entity tracking range in blocks, or 0 if not specified.
+     */
+    protected int _trackingRange;
+
+    /**
+     * Entity activation range in blocks, or 0 if not specified.
+     */
+    protected int _activationRange;
 } // class ViewDistanceChange
\ No newline at end of file
@@ -0,0 +1,128 @@
+package nu.nerd.dvda;
+
+import org.bukkit.Location;
+
+// ----------------------------------------------------------------------------
+/**
+ * A configured rectangular area of a world, such as the spawn or a shopping
+ * district, in which the view distance of players is limited.
+ */
+public class ViewDistanceRegion {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * The corners may be given in any order.
+     *
+     * @param name the name of the region in the configuration.
+     * @param world the name of the world containing the region.
+     * @param x1 the X coordinate of one corner, in blocks.
+     * @param z1 the Z coordinate of one corner, in blocks.
+     * @param x2 the X coordinate of the opposite corner, in blocks.
+     * @param z2 the Z coordinate of the opposite corner, in blocks.
+     * @param viewDistance the maximum view distance of players in the region.
+     */
+    public ViewDistanceRegion(String name, String world, int x1, int z1, int x2, int z2, int viewDistance) {
+        _name = name;
+        _world = world;
+        _minX = Math.min(x1, x2);
+        _minZ = Math.min(z1, z2);
+        _maxX = Math.max(x1, x2);
+        _maxZ = Math.max(z1, z2);
+        _viewDistance = viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the region.
+     *
+     * @return the name of the region in the configuration.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the world containing the region.
+     *
+     * @return the world name.
+     */
+    public String getWorld() {
+        return _world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum view distance of players in the region.
+     *
+     * @return the view distance.
+     */
+    public int getViewDistance() {
+        return _viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the region contains the specified location.
+     *
+     * The bounds are inclusive.
+     *
+     * @param location the location.
+     * @return true if the location is in the region.
+     */
+    public boolean contains(Location location) {
+        int x = location.getBlockX();
+        int z = location.getBlockZ();
+        return x >= _minX && x <= _maxX && z >= _minZ && z <= _maxZ &&
+               location.getWorld() != null && location.getWorld().getName().equals(_world);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a description of the region.
+     *
+     * @return the description.
+     */
+    @Override
+    public String toString() {
+        return _name + " (" + _world + " " + _minX + "," + _minZ + " to " + _maxX + "," + _maxZ +
+               ": " + _viewDistance + ")";
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the region in the configuration.
+     */
+    protected final String _name;
+
+    /**
+     * The name of the world containing the region.
+     */
+    protected final String _world;
+
+    /**
+     * The minimum X coordinate, in blocks, inclusive.
+     */
+    protected final int _minX;
+
+    /**
+     * The minimum Z coordinate, in blocks, inclusive.
+     */
+    protected final int _minZ;
+
+    /**
+     * The maximum X coordinate, in blocks, inclusive.
+     */
+    protected final int _maxX;
+
+    /**
+     * The maximum Z coordinate, in blocks, inclusive.
+     */
+    protected final int _maxZ;
+
+    /**
+     * The maximum view distance of players in the region.
+     */
+    protected final int _viewDistance;
+} // class ViewDistanceRegion
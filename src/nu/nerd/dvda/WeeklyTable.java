@@ -0,0 +1,262 @@
+package nu.nerd.dvda;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TimeZone;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable lookup table of all scheduled view distance changes in one
+ * week, sorted by the time of the week.
+ *
+ * The table is compiled from the per-day and default {@link DaySchedule}s so
+ * that finding the change that applies at a particular time is a binary search
+ * over a primitive array, rather than a walk over each day's entries. Lookups
+ * do not allocate.
+ *
+ * A WeeklyTable is used when the schedule repeats every week, i.e. when no
+ * {@link DateRule}s are configured.
+ */
+public class WeeklyTable implements ScheduleIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Number of seconds in a day.
+     */
+    public static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Number of seconds in a week.
+     */
+    public static final int SECONDS_PER_WEEK = 7 * SECONDS_PER_DAY;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile a table from the schedules in effect on each day of the week.
+     *
+     * @param days the schedule of each day, indexed by
+     *        {@link DayOfWeek#ordinal()}.
+     * @param zone the time zone used to interpret scheduled times.
+     * @return the table.
+     */
+    public static WeeklyTable compile(DaySchedule[] days, TimeZone zone) {
+        int size = 0;
+        for (DaySchedule schedule : days) {
+            size += schedule.size();
+        }
+
+        int[] seconds = new int[size];
+        ViewDistanceChange[] changes = new ViewDistanceChange[size];
+        int i = 0;
+        for (DayOfWeek day : DayOfWeek.values()) {
+            for (Iterator<ViewDistanceChange> it = days[day.ordinal()].iterator(); it.hasNext();) {
+                ViewDistanceChange change = it.next();
+                seconds[i] = day.ordinal() * SECONDS_PER_DAY + change.getTime().toSecondOfDay();
+                changes[i] = change;
+                ++i;
+            }
+        }
+        return new WeeklyTable(seconds, changes, zone);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of changes in the table.
+     *
+     * @return the number of changes in the table.
+     */
+    public int size() {
+        return _seconds.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the last change that falls strictly between the specified times,
+     * or null if there is no such change.
+     *
+     * Uptimes of any length are handled; if the period spans a week or more,
+     * the last change before the end time is returned.
+     *
+     * @param startMillis the start time in milliseconds since the epoch.
+     * @param endMillis the end time in milliseconds since the epoch.
+     * @return the last change between the times, or null.
+     */
+    @Override
+    public ViewDistanceChange findLast(long startMillis, long endMillis) {
+        if (_seconds.length == 0) {
+            return null;
+        }
+        long endLocal = toLocalSeconds(endMillis);
+        int index = lastIndex(endLocal);
+        return (localTimeOf(index, endLocal) > toLocalSeconds(startMillis)) ? _changes[index] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the change that is in force at the specified time, i.e. the last
+     * change at or before that time, wrapping around to the previous week if
+     * necessary.
+     *
+     * @param millis the time in milliseconds since the epoch.
+     * @return the change in force, or null if the table is empty.
+     */
+    @Override
+    public ViewDistanceChange inForce(long millis) {
+        return (_seconds.length == 0) ? null : _changes[lastIndex(toLocalSeconds(millis) + 1)];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.dvda.ScheduleIndex#nextTime(long)
+     */
+    @Override
+    public long nextTime(long millis) {
+        if (_seconds.length == 0) {
+            return -1;
+        }
+        long localSeconds = toLocalSeconds(millis);
+        int sow = secondOfWeek(localSeconds);
+        int entrySow = _seconds[nextIndex(localSeconds)];
+        long nextLocal = localSeconds - sow + entrySow + ((entrySow > sow) ? 0 : SECONDS_PER_WEEK);
+        LocalDateTime next = LocalDateTime.ofEpochSecond(nextLocal, 0, ZoneOffset.UTC);
+        return next.atZone(_zone.toZoneId()).toInstant().toEpochMilli();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.dvda.ScheduleIndex#next(long)
+     */
+    @Override
+    public ViewDistanceChange next(long millis) {
+        return (_seconds.length == 0) ? null : _changes[nextIndex(toLocalSeconds(millis))];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A weekly table is valid at all times.
+     *
+     * @see nu.nerd.dvda.ScheduleIndex#covers(long)
+     */
+    @Override
+    public boolean covers(long millis) {
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Convert a time in milliseconds since the epoch to seconds since the
+     * epoch in the local time zone.
+     *
+     * @param millis the time in milliseconds since the epoch.
+     * @return the local time in seconds.
+     */
+    public long toLocalSeconds(long millis) {
+        return Math.floorDiv(millis + _zone.getOffset(millis), 1000L);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the second of the week (where 0 is Monday midnight) of the
+     * specified local time.
+     *
+     * @param localSeconds the local time in seconds since the epoch.
+     * @return the second of the week.
+     */
+    public static int secondOfWeek(long localSeconds) {
+        // 1970-01-01 was a Thursday.
+        return (int) Math.floorMod(localSeconds + 3L * SECONDS_PER_DAY, (long) SECONDS_PER_WEEK);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param seconds the second of the week of each change, in ascending
+     *        order.
+     * @param changes the corresponding changes.
+     * @param zone the time zone used to interpret scheduled times.
+     */
+    protected WeeklyTable(int[] seconds, ViewDistanceChange[] changes, TimeZone zone) {
+        _seconds = seconds;
+        _changes = changes;
+        _zone = zone;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the local time of the occurrence of the change at the specified
+     * index that most recently preceded the specified local time.
+     *
+     * @param index the index of the change.
+     * @param localSeconds the local time in seconds since the epoch.
+     * @return the local time of the change, in seconds since the epoch.
+     */
+    protected long localTimeOf(int index, long localSeconds) {
+        int sow = secondOfWeek(localSeconds);
+        int entrySow = _seconds[index];
+        return localSeconds - sow + entrySow - ((entrySow < sow) ? 0 : SECONDS_PER_WEEK);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the last change strictly before the specified local
+     * time, wrapping around to the end of the table if necessary.
+     *
+     * @param localSeconds the local time in seconds since the epoch.
+     * @return the index of the last change before that time.
+     */
+    protected int lastIndex(long localSeconds) {
+        int sow = secondOfWeek(localSeconds);
+        int index = Arrays.binarySearch(_seconds, sow);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // Step back to the first of any equal keys.
+            while (index > 0 && _seconds[index - 1] == sow) {
+                --index;
+            }
+        }
+        // index is now the first entry >= sow.
+        return (index == 0) ? _seconds.length - 1 : index - 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the first change strictly after the specified local
+     * time, wrapping around to the start of the table if necessary.
+     *
+     * @param localSeconds the local time in seconds since the epoch.
+     * @return the index of the first change after that time.
+     */
+    protected int nextIndex(long localSeconds) {
+        int sow = secondOfWeek(localSeconds);
+        int index = Arrays.binarySearch(_seconds, sow);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // Step forward past any equal keys.
+            while (index < _seconds.length && _seconds[index] == sow) {
+                ++index;
+            }
+        }
+        return (index == _seconds.length) ? 0 : index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The time zone used to interpret scheduled times.
+     */
+    protected final TimeZone _zone;
+
+    /**
+     * Second of the week of each change, in ascending order.
+     */
+    protected final int[] _seconds;
+
+    /**
+     * Changes corresponding to _seconds.
+     */
+    protected final ViewDistanceChange[] _changes;
+} // class WeeklyTable
@@ -0,0 +1,240 @@
+package nu.nerd.dvda;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// ----------------------------------------------------------------------------
+/**
+ * The bundle of distance settings written to one world's section of
+ * spigot.yml: the view distance and, optionally, the simulation distance, the
+ * entity tracking range and the entity activation range.
+ *
+ * Optional settings that a change does not specify are 0 and are left as they
+ * are in spigot.yml. Settings are clamped so that they never exceed the world's
+ * view distance: the simulation distance is at most the view distance, the
+ * tracking range is at most the view distance in blocks and the activation
+ * range is at most the simulation distance (or view distance) in blocks.
+ *
+ * Instances are immutable and compared by value, so that prepared spigot.yml
+ * contents can be reused when the settings have not changed.
+ */
+public class WorldSettings {
+    // ------------------------------------------------------------------------
+    /**
+     * The number of blocks along the side of a chunk, used to convert
+     * distances in chunks to ranges in blocks.
+     */
+    public static final int CHUNK_BLOCKS = 16;
+
+    /**
+     * The entity categories whose tracking range is set, under
+     * world-settings.&lt;world&gt;.entity-tracking-range.
+     */
+    public static final String[] TRACKING_CATEGORIES = { "players", "animals", "monsters", "misc", "other" };
+
+    /**
+     * The entity categories whose activation range is set, under
+     * world-settings.&lt;world&gt;.entity-activation-range.
+     */
+    public static final String[] ACTIVATION_CATEGORIES = { "animals", "monsters", "misc" };
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the settings of a world after a change, at the specified view
+     * distance.
+     *
+     * The view distance may be lower than that of the change, when a chunk
+     * budget is divided between worlds, so the change's other settings are
+     * clamped to it.
+     *
+     * @param change the change.
+     * @param viewDistance the view distance of the world.
+     * @return the settings.
+     */
+    public static WorldSettings of(ViewDistanceChange change, int viewDistance) {
+        int simulationDistance = Math.min(change.getSimulationDistance(), viewDistance);
+        int trackingRange = Math.min(change.getTrackingRange(), viewDistance * CHUNK_BLOCKS);
+        int activationLimit = (simulationDistance > 0) ? simulationDistance : viewDistance;
+        int activationRange = Math.min(change.getActivationRange(), activationLimit * CHUNK_BLOCKS);
+        return new WorldSettings(viewDistance, simulationDistance, trackingRange, activationRange);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the specified key, relative to a world's section of
+     * spigot.yml, is one that these settings may set.
+     *
+     * @param key the key, with nested keys separated by '.'.
+     * @return true if the key is set by some WorldSettings.
+     */
+    public static boolean isKey(String key) {
+        if (key.equals("view-distance") || key.equals("simulation-distance")) {
+            return true;
+        }
+        for (String category : TRACKING_CATEGORIES) {
+            if (key.equals("entity-tracking-range." + category)) {
+                return true;
+            }
+        }
+        for (String category : ACTIVATION_CATEGORIES) {
+            if (key.equals("entity-activation-range." + category)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param viewDistance the view distance in chunks.
+     * @param simulationDistance the simulation distance in chunks, or 0 if
+     *        not set.
+     * @param trackingRange the entity tracking range in blocks, or 0 if not
+     *        set.
+     * @param activationRange the entity activation range in blocks, or 0 if
+     *        not set.
+     */
+    public WorldSettings(int viewDistance, int simulationDistance, int trackingRange, int activationRange) {
+        _viewDistance = viewDistance;
+        _simulationDistance = simulationDistance;
+        _trackingRange = trackingRange;
+        _activationRange = activationRange;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the view distance.
+     *
+     * @return the view distance in chunks.
+     */
+    public int getViewDistance() {
+        return _viewDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the simulation distance.
+     *
+     * @return the simulation distance in chunks, or 0 if not set.
+     */
+    public int getSimulationDistance() {
+        return _simulationDistance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entity tracking range.
+     *
+     * @return the entity tracking range in blocks, or 0 if not set.
+     */
+    public int getTrackingRange() {
+        return _trackingRange;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entity activation range.
+     *
+     * @return the entity activation range in blocks, or 0 if not set.
+     */
+    public int getActivationRange() {
+        return _activationRange;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the spigot.yml keys to set, relative to the world's section, and
+     * their values.
+     *
+     * Nested keys are separated by '.'.
+     *
+     * @return a map from key to value, in the order the keys are written.
+     */
+    public Map<String, Integer> getKeys() {
+        Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+        keys.put("view-distance", _viewDistance);
+        if (_simulationDistance > 0) {
+            keys.put("simulation-distance", _simulationDistance);
+        }
+        if (_trackingRange > 0) {
+            for (String category : TRACKING_CATEGORIES) {
+                keys.put("entity-tracking-range." + category, _trackingRange);
+            }
+        }
+        if (_activationRange > 0) {
+            for (String category : ACTIVATION_CATEGORIES) {
+                keys.put("entity-activation-range." + category, _activationRange);
+            }
+        }
+        return keys;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof WorldSettings)) {
+            return false;
+        }
+        WorldSettings settings = (WorldSettings) other;
+        return _viewDistance == settings._viewDistance &&
+               _simulationDistance == settings._simulationDistance &&
+               _trackingRange == settings._trackingRange &&
+               _activationRange == settings._activationRange;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return ((_viewDistance * 31 + _simulationDistance) * 31 + _trackingRange) * 31 + _activationRange;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a description of the settings, omitting those that are not set.
+     *
+     * @return the description.
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("view distance ").append(_viewDistance);
+        if (_simulationDistance > 0) {
+            s.append(", simulation distance ").append(_simulationDistance);
+        }
+        if (_trackingRange > 0) {
+            s.append(", tracking range ").append(_trackingRange);
+        }
+        if (_activationRange > 0) {
+            s.append(", activation range ").append(_activationRange);
+        }
+        return s.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The view distance in chunks.
+     */
+    protected final int _viewDistance;
+
+    /**
+     * The simulation distance in chunks, or 0 if not set.
+     */
+    protected final int _simulationDistance;
+
+    /**
+     * The entity tracking range in blocks, or 0 if not set.
+     */
+    protected final int _trackingRange;
+
+    /**
+     * The entity activation range in blocks, or 0 if not set.
+     */
+    protected final int _activationRange;
+} // class WorldSettings
@@ -0,0 +1,162 @@
+package nu.nerd.dvda;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bukkit.World;
+
+// ----------------------------------------------------------------------------
+/**
+ * Counters of chunk and player events in one world, with rolling rates.
+ *
+ * Counters are incremented lock-free from event handlers. Once a second, the
+ * counters are copied into a ring buffer of snapshots so that the number of
+ * events in the last minute can be computed without allocating.
+ */
+public class WorldStats {
+    // ------------------------------------------------------------------------
+    /**
+     * Index of the count of chunks loaded.
+     */
+    public static final int CHUNK_LOADS = 0;
+
+    /**
+     * Index of the count of chunks generated.
+     */
+    public static final int CHUNK_GENERATIONS = 1;
+
+    /**
+     * Index of the count of chunks unloaded.
+     */
+    public static final int CHUNK_UNLOADS = 2;
+
+    /**
+     * Index of the count of players joining the server in this world.
+     */
+    public static final int JOINS = 3;
+
+    /**
+     * Index of the count of players leaving the server from this world.
+     */
+    public static final int QUITS = 4;
+
+    /**
+     * Index of the count of players teleporting from this world.
+     */
+    public static final int TELEPORTS = 5;
+
+    /**
+     * Number of counters.
+     */
+    public static final int COUNTERS = 6;
+
+    /**
+     * Names of the counters, used when reporting.
+     */
+    public static final String[] NAMES = {
+        "chunk_loads", "chunk_generations", "chunk_unloads", "joins", "quits", "teleports" };
+
+    /**
+     * Number of one second snapshots used to compute rates.
+     */
+    public static final int WINDOW_SECONDS = 60;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param world the world.
+     */
+    public WorldStats(World world) {
+        _world = world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the world.
+     *
+     * @return the world.
+     */
+    public World getWorld() {
+        return _world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Increment a counter.
+     *
+     * @param counter the index of the counter.
+     */
+    public void increment(int counter) {
+        _counters.incrementAndGet(counter);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total count of a counter.
+     *
+     * @param counter the index of the counter.
+     * @return the total count.
+     */
+    public long get(int counter) {
+        return _counters.get(counter);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a snapshot of all counters.
+     *
+     * This should be called once per second, always from the same thread.
+     */
+    public void snapshot() {
+        int base = _next * COUNTERS;
+        for (int i = 0; i < COUNTERS; ++i) {
+            _snapshots[base + i] = _counters.get(i);
+        }
+        _next = (_next + 1) % WINDOW_SECONDS;
+        if (_snapshotCount < WINDOW_SECONDS) {
+            ++_snapshotCount;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of times a counter was incremented over the last
+     * minute, or since the oldest snapshot, if less than a minute ago.
+     *
+     * @param counter the index of the counter.
+     * @return the count in the last minute.
+     */
+    public long getLastMinute(int counter) {
+        if (_snapshotCount == 0) {
+            return _counters.get(counter);
+        }
+        int oldest = (_snapshotCount < WINDOW_SECONDS) ? 0 : _next;
+        return _counters.get(counter) - _snapshots[oldest * COUNTERS + counter];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The world.
+     */
+    protected final World _world;
+
+    /**
+     * Total counts.
+     */
+    protected final AtomicLongArray _counters = new AtomicLongArray(COUNTERS);
+
+    /**
+     * Ring buffer of WINDOW_SECONDS snapshots of all counters.
+     */
+    protected final long[] _snapshots = new long[WINDOW_SECONDS * COUNTERS];
+
+    /**
+     * Index of the next snapshot to write in _snapshots.
+     */
+    protected int _next;
+
+    /**
+     * Number of valid snapshots.
+     */
+    protected int _snapshotCount;
+} // class WorldStats